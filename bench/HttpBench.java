@@ -0,0 +1,217 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Closed-loop HTTP load for the history and send endpoints. Each of {@code --concurrency} virtual-thread
+ * workers issues one request at a time for {@code --duration} seconds after a warmup; latencies of the
+ * measured window are reported as percentiles and optionally appended as one JSON line per scenario.
+ *
+ * <pre>
+ * java bench/HttpBench.java --base http://localhost:8080 --concurrency 1000 --duration 30 \
+ *     --label virtual --out bench/results/run.jsonl
+ * </pre>
+ *
+ * Needs a running app with an empty-enough database; it signs up two fresh users per run.
+ */
+public class HttpBench {
+
+    private static final Pattern STRING_FIELD = Pattern.compile("\"(%s)\"\\s*:\\s*\"([^\"]*)\"".formatted("token|userId|chatId"));
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        String base = options.getOrDefault("base", "http://localhost:8080");
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "500"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "10"));
+        int seed = Integer.parseInt(options.getOrDefault("seed", "200"));
+        String label = options.getOrDefault("label", "run");
+        List<String> scenarios = List.of(options.getOrDefault("scenarios", "history,send").split(","));
+
+        HttpClient client = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+
+        String run = Long.toString(System.currentTimeMillis(), 36);
+        Map<String, String> alice = signup(client, base, "bench-" + run + "-a");
+        Map<String, String> bob = signup(client, base, "bench-" + run + "-b");
+        String sendBody = "{\"receiverId\":\"" + bob.get("userId") + "\",\"content\":\"benchmark message\"}";
+
+        String chatId = null;
+        for (int i = 0; i < seed; i++) {
+            HttpResponse<String> response = client.send(post(base + "/api/messages/send", alice.get("token"), sendBody),
+                    HttpResponse.BodyHandlers.ofString());
+            chatId = field(response.body(), "chatId");
+        }
+        String historyUrl = base + "/api/messages/chat/" + chatId + "/page?limit=50";
+
+        for (String scenario : scenarios) {
+            HttpRequest request = switch (scenario) {
+                case "history" -> HttpRequest.newBuilder(URI.create(historyUrl))
+                        .header("Authorization", "Bearer " + alice.get("token"))
+                        .timeout(Duration.ofSeconds(30))
+                        .GET()
+                        .build();
+                case "send" -> post(base + "/api/messages/send", alice.get("token"), sendBody);
+                default -> throw new IllegalArgumentException("Unknown scenario " + scenario);
+            };
+            Result result = runScenario(client, request, concurrency, warmupSeconds, durationSeconds);
+            String json = result.toJson(label, scenario, concurrency);
+            System.out.println(json);
+            if (options.containsKey("out")) {
+                Path out = Path.of(options.get("out"));
+                if (out.getParent() != null) {
+                    Files.createDirectories(out.getParent());
+                }
+                Files.writeString(out, json + System.lineSeparator(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static Result runScenario(HttpClient client, HttpRequest request, int concurrency, int warmupSeconds,
+            int durationSeconds) throws InterruptedException {
+        AtomicBoolean measuring = new AtomicBoolean();
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Worker> workers = new ArrayList<>(concurrency);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < concurrency; i++) {
+                Worker worker = new Worker(client, request, measuring, running);
+                workers.add(worker);
+                executor.execute(worker);
+            }
+            Thread.sleep(Duration.ofSeconds(warmupSeconds));
+            measuring.set(true);
+            long startedAt = System.nanoTime();
+            Thread.sleep(Duration.ofSeconds(durationSeconds));
+            measuring.set(false);
+            long elapsed = System.nanoTime() - startedAt;
+            running.set(false);
+
+            long[] all = workers.stream().flatMapToLong(worker -> Arrays.stream(worker.latencies, 0, worker.count)).sorted().toArray();
+            long errors = workers.stream().mapToLong(worker -> worker.errors).sum();
+            return new Result(all, errors, elapsed);
+        }
+    }
+
+    private static final class Worker implements Runnable {
+
+        private final HttpClient client;
+        private final HttpRequest request;
+        private final AtomicBoolean measuring;
+        private final AtomicBoolean running;
+
+        private long[] latencies = new long[1024];
+        private int count;
+        private long errors;
+
+        private Worker(HttpClient client, HttpRequest request, AtomicBoolean measuring, AtomicBoolean running) {
+            this.client = client;
+            this.request = request;
+            this.measuring = measuring;
+            this.running = running;
+        }
+
+        @Override
+        public void run() {
+            while (running.get()) {
+                long startedAt = System.nanoTime();
+                boolean ok;
+                try {
+                    HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                    ok = response.statusCode() == 200;
+                } catch (Exception e) {
+                    ok = false;
+                }
+                long latency = System.nanoTime() - startedAt;
+                if (!measuring.get()) {
+                    continue;
+                }
+                if (!ok) {
+                    errors++;
+                    continue;
+                }
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = latency;
+            }
+        }
+    }
+
+    private record Result(long[] sortedLatencies, long errors, long elapsedNanos) {
+
+        String toJson(String label, String scenario, int concurrency) {
+            double seconds = elapsedNanos / 1e9;
+            return ("{\"label\":\"%s\",\"scenario\":\"%s\",\"concurrency\":%d,\"requests\":%d,\"errors\":%d,"
+                    + "\"throughput\":%.1f,\"p50Ms\":%.2f,\"p99Ms\":%.2f,\"p999Ms\":%.2f,\"maxMs\":%.2f}")
+                    .formatted(label, scenario, concurrency, sortedLatencies.length, errors,
+                            sortedLatencies.length / seconds, percentile(0.50), percentile(0.99), percentile(0.999),
+                            percentile(1.0));
+        }
+
+        private double percentile(double quantile) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(sortedLatencies.length - 1, Math.ceil(quantile * sortedLatencies.length) - 1);
+            return sortedLatencies[Math.max(0, index)] / 1e6;
+        }
+    }
+
+    private static Map<String, String> signup(HttpClient client, String base, String name) throws Exception {
+        String body = "{\"name\":\"%s\",\"email\":\"%s@example.com\",\"mobile\":\"%s\",\"password\":\"benchmark\"}"
+                .formatted(name, name, Math.abs(name.hashCode()));
+        HttpResponse<String> response = client.send(post(base + "/api/auth/signup", null, body), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Signup failed: " + response.statusCode() + " " + response.body());
+        }
+        return Map.of("token", field(response.body(), "token"), "userId", field(response.body(), "userId"));
+    }
+
+    private static HttpRequest post(String url, String token, String body) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(30))
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (token != null) {
+            builder.header("Authorization", "Bearer " + token);
+        }
+        return builder.build();
+    }
+
+    private static String field(String json, String name) {
+        Matcher matcher = STRING_FIELD.matcher(json);
+        while (matcher.find()) {
+            if (matcher.group(1).equals(name)) {
+                return matcher.group(2);
+            }
+        }
+        throw new IllegalStateException("No " + name + " in " + json);
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        return options;
+    }
+}
@@ -0,0 +1,44 @@
+#!/usr/bin/env bash
+# Compares platform and virtual threads on the history and send endpoints.
+# Starts the packaged app once per mode against the same MongoDB, runs bench/HttpBench.java and appends
+# one JSON line per mode and scenario to the results file.
+#
+#   MONGODB_URI='mongodb://localhost:27017/chatbench?maxPoolSize=500' JWT_SECRET=... bench/virtual-threads.sh
+#
+# Tunables (env): CONCURRENCY (1000), DURATION (30), WARMUP (10), TOMCAT_MAX_THREADS (200), PORT (18080), OUT.
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+
+: "${MONGODB_URI:?set MONGODB_URI (raise maxPoolSize so the pool is not the bottleneck)}"
+: "${JWT_SECRET:?set JWT_SECRET}"
+CONCURRENCY=${CONCURRENCY:-1000}
+DURATION=${DURATION:-30}
+WARMUP=${WARMUP:-10}
+PORT=${PORT:-18080}
+OUT=${OUT:-bench/results/virtual-threads-$(date +%Y%m%d-%H%M%S).jsonl}
+
+./mvnw -q -B package -DskipTests
+JAR=$(ls target/*.jar | grep -v plain | head -1)
+
+for mode in platform virtual; do
+  enabled=false
+  [ "$mode" = virtual ] && enabled=true
+
+  VIRTUAL_THREADS_ENABLED=$enabled PORT=$PORT java -XX:+UseZGC -jar "$JAR" > "target/bench-$mode.log" 2>&1 &
+  app=$!
+  trap 'kill $app 2>/dev/null || true' EXIT
+
+  until curl -s -o /dev/null "http://localhost:$PORT/api/auth/login"; do
+    kill -0 $app 2>/dev/null || { echo "app exited, see target/bench-$mode.log"; exit 1; }
+    sleep 1
+  done
+
+  java bench/HttpBench.java --base "http://localhost:$PORT" --concurrency "$CONCURRENCY" \
+      --duration "$DURATION" --warmup "$WARMUP" --label "$mode" --out "$OUT"
+
+  kill $app
+  wait $app 2>/dev/null || true
+done
+
+echo "results: $OUT"
@@ -0,0 +1,78 @@
+package com.substring.chat.dto;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.substring.chat.model.Message;
+
+import tools.jackson.databind.json.JsonMapper;
+
+/**
+ * Building and serializing a history page: entity to DTO mapping alone, and mapping plus Jackson
+ * writing the {@link MessagePageResponse} the page endpoint returns.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageSerializationBenchmark {
+
+    @Param({ "50", "200" })
+    private int pageSize;
+
+    private List<Message> messages;
+
+    private JsonMapper jsonMapper;
+
+    @Setup
+    public void setUp() {
+        jsonMapper = JsonMapper.builder().build();
+        messages = new ArrayList<>(pageSize);
+        LocalDateTime start = LocalDateTime.of(2026, 1, 1, 12, 0);
+        for (int i = 0; i < pageSize; i++) {
+            Message message = new Message();
+            message.setMessageId("65f0c0ffee00000000%06d".formatted(i));
+            message.setChatId("65f0c0ffee0000000000c4a7");
+            message.setSenderId(i % 2 == 0 ? "65f0c0ffee0000000000aaaa" : "65f0c0ffee0000000000bbbb");
+            message.setReceiverId(i % 2 == 0 ? "65f0c0ffee0000000000bbbb" : "65f0c0ffee0000000000aaaa");
+            message.setContent("Message number " + i + " with a typical sentence of chat text in it.");
+            message.setTimestamp(start.plusSeconds(i));
+            message.setStatus(Message.MessageStatus.DELIVERED);
+            messages.add(message);
+        }
+    }
+
+    @Benchmark
+    public List<MessageResponse> mapPage() {
+        List<MessageResponse> responses = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            responses.add(MessageResponse.fromMessage(message));
+        }
+        return responses;
+    }
+
+    @Benchmark
+    public byte[] mapAndSerializePage() {
+        MessagePageResponse page = new MessagePageResponse();
+        page.setMessages(mapPage());
+        page.setPrevCursor("eyJ0IjoiMjAyNi0wMS0wMVQxMjowMCIsImlkIjoiNjVmMCJ9");
+        page.setHasMore(true);
+        return jsonMapper.writeValueAsBytes(page);
+    }
+}
@@ -0,0 +1,94 @@
+package com.substring.chat.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.substring.chat.model.Chat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * In-process part of resolving the private chat for a pair of users. {@code participantScan} is the
+ * filter {@code createOrGetChat} used to run over every chat containing both users (group chats
+ * included); {@code pairKeyLookup} is the current path, a pair key plus a cache hit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrivateChatLookupBenchmark {
+
+    private static final String USER_1 = "65f0c0ffee0000000000bbbb";
+    private static final String USER_2 = "65f0c0ffee0000000000aaaa";
+
+    // chats both users are in; the private one is last
+    @Param({ "1", "20", "200" })
+    private int sharedChats;
+
+    private List<Chat> candidates;
+
+    private ChatService chatService;
+
+    @Setup
+    public void setUp() {
+        candidates = new ArrayList<>(sharedChats);
+        for (int i = 0; i < sharedChats - 1; i++) {
+            Chat group = new Chat();
+            group.setChatId("group-" + i);
+            group.setParticipants(List.of(USER_1, USER_2, "member-" + i, "other-" + i));
+            group.setChatType(Chat.ChatType.GROUP);
+            candidates.add(group);
+        }
+        Chat direct = new Chat();
+        direct.setChatId("65f0c0ffee0000000000c4a7");
+        direct.setParticipants(List.of(USER_1, USER_2));
+        direct.setChatType(Chat.ChatType.PRIVATE);
+        candidates.add(direct);
+
+        chatService = new ChatService();
+        ReflectionTestUtils.setField(chatService, "privateChatCacheMaxSize", 100_000L);
+        ReflectionTestUtils.setField(chatService, "meterRegistry", new SimpleMeterRegistry());
+        chatService.init();
+        Cache<String, String> privateChatIds = getPrivateChatIds(chatService);
+        privateChatIds.put(Chat.pairKeyOf(USER_1, USER_2), direct.getChatId());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Cache<String, String> getPrivateChatIds(ChatService chatService) {
+        return (Cache<String, String>) ReflectionTestUtils.getField(chatService, "privateChatIds");
+    }
+
+    @Benchmark
+    public Chat participantScan() {
+        for (Chat chat : candidates) {
+            if (chat.getParticipants().contains(USER_1)
+                    && chat.getParticipants().contains(USER_2)
+                    && chat.getParticipants().size() == 2) {
+                return chat;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public String pairKeyLookup() {
+        return chatService.resolvePrivateChatId(USER_1, USER_2);
+    }
+}
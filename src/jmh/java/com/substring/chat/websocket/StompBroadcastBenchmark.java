@@ -0,0 +1,88 @@
+package com.substring.chat.websocket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompEncoder;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.TextMessage;
+
+/**
+ * Cost of turning one broadcast into WebSocket messages for every subscriber. {@code perSession} is what
+ * the STOMP handler does for each session (header conversion, frame encoding, UTF-8 decode into a
+ * {@link TextMessage}); {@code shared} is the {@link SharedFrameFanout} path, one encode per publication.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StompBroadcastBenchmark {
+
+    @Param({ "1", "100", "1000" })
+    private int subscribers;
+
+    private final StompEncoder encoder = new StompEncoder();
+
+    private Message<byte[]>[] deliveries;
+
+    private byte[] payload;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        payload = ("{\"id\":\"65f0c0ffee0000000000d00d\",\"chatId\":\"65f0c0ffee0000000000c4a7\","
+                + "\"senderId\":\"65f0c0ffee0000000000aaaa\",\"receiverId\":\"65f0c0ffee0000000000bbbb\","
+                + "\"content\":\"Are we still on for tonight?\",\"timestamp\":\"2026-01-01T12:00:00\",\"status\":\"SENT\"}")
+                .getBytes(StandardCharsets.UTF_8);
+
+        // what the simple broker hands the outbound channel: same payload, per-session headers
+        deliveries = new Message[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+            accessor.setSessionId("session-" + i);
+            accessor.setSubscriptionId("sub-0");
+            accessor.setDestination("/topic/chat/65f0c0ffee0000000000c4a7");
+            accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+            deliveries[i] = MessageBuilder.createMessage(payload, accessor.getMessageHeaders());
+        }
+    }
+
+    @Benchmark
+    public void perSession(Blackhole blackhole) {
+        for (Message<byte[]> delivery : deliveries) {
+            StompHeaderAccessor accessor = StompHeaderAccessor.wrap(delivery);
+            accessor.updateStompCommandAsServerMessage();
+            blackhole.consume(new TextMessage(encoder.encode(accessor.getMessageHeaders(), delivery.getPayload())));
+        }
+    }
+
+    @Benchmark
+    public void shared(Blackhole blackhole) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.wrap(deliveries[0]);
+        accessor.setNativeHeader(StompHeaderAccessor.STOMP_MESSAGE_ID_HEADER, "1");
+        accessor.updateStompCommandAsServerMessage();
+        TextMessage frame = new TextMessage(encoder.encode(accessor.getMessageHeaders(), payload));
+        for (int i = 0; i < deliveries.length; i++) {
+            blackhole.consume(frame);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.substring.chat.loadtest;
+
+/**
+ * Open-loop send schedule: message {@code n} is due at {@code start + n / rate}. Latency is measured
+ * from the due time rather than the moment the send actually happened, so a stalled server shows up as
+ * latency instead of silently lowering the offered load.
+ */
+final class LoadClock {
+
+    private final double nanosPerMessage;
+    private final long warmupMessages;
+    private final long measuredMessages;
+
+    private volatile long startNanos;
+
+    LoadClock(double messagesPerSecond, int warmupSeconds, int durationSeconds) {
+        this.nanosPerMessage = 1e9 / messagesPerSecond;
+        this.warmupMessages = (long) (messagesPerSecond * warmupSeconds);
+        this.measuredMessages = (long) (messagesPerSecond * durationSeconds);
+    }
+
+    void start() {
+        startNanos = System.nanoTime();
+    }
+
+    long totalMessages() {
+        return warmupMessages + measuredMessages;
+    }
+
+    long scheduledAt(long sequence) {
+        return startNanos + (long) (sequence * nanosPerMessage);
+    }
+
+    boolean isMeasured(long sequence) {
+        return sequence >= warmupMessages && sequence < warmupMessages + measuredMessages;
+    }
+
+    long measuredMessages() {
+        return measuredMessages;
+    }
+}
@@ -0,0 +1,505 @@
+package com.substring.chat.loadtest;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * End-to-end STOMP load: signs up {@code --users} users, pairs them into private chats, opens one or more
+ * sessions per user (the {@code --devices} distribution sets how many subscribers each chat has), then
+ * sends {@code /app/sendMessage} at {@code --rate} messages per second for {@code --duration} seconds after
+ * a warmup. Chats are picked with a Zipf distribution ({@code --zipf 0} is uniform), so a few hot chats
+ * carry most of the traffic.
+ *
+ * <p>Without {@code --base} the app is started as a child JVM on the current classpath, against an
+ * in-memory Mongo stand-in ({@code --mongo embedded}, the default) or a real {@code --mongo} URI. Server
+ * heap is read over JMX: after GC with no sessions, after every session has subscribed, and after the run.
+ * Environment variables are passed through to the child, so any {@code WEBSOCKET_*} or {@code MESSAGE_*}
+ * setting can be compared run against run.
+ *
+ * <pre>
+ * ./mvnw -Ploadtest test-compile exec:exec -Dloadtest.args="--users 2000 --rate 1000 --devices 1:80,2:15,4:5 \
+ *     --label lanes --out target/loadtest.jsonl"
+ * </pre>
+ */
+public class StompLoadTest {
+
+    private static final Pattern STRING_FIELD = Pattern.compile("\"(token|userId|chatId)\"\\s*:\\s*\"([^\"]*)\"");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        int userCount = Integer.parseInt(options.getOrDefault("users", "200"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "200"));
+        int warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "10"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int drainSeconds = Integer.parseInt(options.getOrDefault("drain", "10"));
+        double zipf = Double.parseDouble(options.getOrDefault("zipf", "1.0"));
+        String devices = options.getOrDefault("devices", "1");
+        String endpoint = options.getOrDefault("endpoint", "/ws/websocket");
+        String label = options.getOrDefault("label", "run");
+        SplittableRandom random = new SplittableRandom(Long.parseLong(options.getOrDefault("seed", "42")));
+        // the Mongo stand-in logs every connection at INFO
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+
+        MongoServer mongo = null;
+        Process server = null;
+        List<StompSession> sessions = new ArrayList<>();
+        HttpClient client = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        try {
+            String base = options.get("base");
+            String jmx = options.get("jmx");
+            if (base == null) {
+                String mongoUri = options.getOrDefault("mongo", "embedded");
+                if (mongoUri.equals("embedded")) {
+                    mongo = new MongoServer(new MemoryBackend());
+                    InetSocketAddress address = mongo.bind();
+                    mongoUri = "mongodb://" + address.getHostString() + ":" + address.getPort() + "/chatload";
+                }
+                int port = freePort();
+                int jmxPort = freePort();
+                server = startServer(port, jmxPort, mongoUri, mongo != null, options.getOrDefault("server-jvm-args", ""));
+                base = "http://127.0.0.1:" + port;
+                jmx = "127.0.0.1:" + jmxPort;
+                awaitServer(client, base, server);
+            }
+            ServerHeap heap = jmx != null ? ServerHeap.connect(jmx) : null;
+
+            log("signing up %d users", userCount + userCount % 2);
+            List<Map<String, String>> users = signupAll(client, base, userCount + userCount % 2);
+            List<Chat> chats = openChats(client, base, users);
+            Long heapBaseline = heap != null ? heap.usedAfterGc() : null;
+
+            URI wsUri = URI.create(base.replaceFirst("^http", "ws") + endpoint);
+            LoadClock clock = new LoadClock(rate, warmupSeconds, durationSeconds);
+            int[] deviceCounts = deviceCounts(devices, users.size(), random);
+            long connectErrors = connectAll(client, wsUri, users, chats, deviceCounts, clock, sessions);
+            Long heapConnected = heap != null ? heap.usedAfterGc() : null;
+            log("%d sessions open, %d failed; driving %.0f msg/s for %ds + %ds warmup", sessions.size(),
+                    connectErrors, rate, durationSeconds, warmupSeconds);
+
+            Drive drive = drive(chats, clock, zipfCdf(chats.size(), zipf), random);
+            awaitDeliveries(sessions, drive.expectedDeliveries(), drainSeconds);
+            Long heapAfterRun = heap != null ? heap.usedAfterGc() : null;
+
+            long[] latencies = sessions.stream().flatMapToLong(session -> Arrays.stream(session.latencies())).sorted().toArray();
+            String json = new Report(label, endpoint, users.size(), sessions.size(), chats.size(), devices, zipf, rate,
+                    warmupSeconds, durationSeconds, clock.measuredMessages(), drive, latencies, connectErrors,
+                    sessions.stream().filter(StompSession::isClosed).count(), heapBaseline, heapConnected, heapAfterRun)
+                    .toJson();
+            System.out.println(json);
+            if (options.containsKey("out")) {
+                Path out = Path.of(options.get("out"));
+                if (out.getParent() != null) {
+                    Files.createDirectories(out.getParent());
+                }
+                Files.writeString(out, json + System.lineSeparator(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        } finally {
+            sessions.forEach(StompSession::close);
+            if (server != null) {
+                server.destroy();
+                if (!server.waitFor(15, TimeUnit.SECONDS)) {
+                    server.destroyForcibly();
+                }
+            }
+            if (mongo != null) {
+                mongo.shutdownNow();
+            }
+        }
+        System.exit(0);
+    }
+
+    private record Chat(String chatId, Map<String, String> first, Map<String, String> second, List<StompSession> sessions) {
+    }
+
+    private record Drive(long expectedDeliveries, long sendErrors, long measuredStartNanos, long measuredEndNanos) {
+    }
+
+    private static Process startServer(int port, int jmxPort, String mongoUri, boolean embeddedMongo, String jvmArgs)
+            throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if (!jvmArgs.isBlank()) {
+            command.addAll(List.of(jvmArgs.trim().split("\\s+")));
+        }
+        command.addAll(List.of(
+                "-Dcom.sun.management.jmxremote.port=" + jmxPort,
+                "-Dcom.sun.management.jmxremote.rmi.port=" + jmxPort,
+                "-Dcom.sun.management.jmxremote.authenticate=false",
+                "-Dcom.sun.management.jmxremote.ssl=false",
+                "-Djava.rmi.server.hostname=127.0.0.1",
+                "-Dspring.devtools.restart.enabled=false",
+                "-Dlogging.level.com.substring.chat=INFO",
+                "-Dlogging.level.org.springframework.web.socket=INFO",
+                "-Dlogging.level.org.springframework.security=INFO",
+                "-cp", System.getProperty("java.class.path"),
+                "com.substring.chat.Application"));
+
+        Path logFile = Path.of("target", "loadtest-server.log");
+        Files.createDirectories(logFile.getParent());
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(logFile.toFile());
+        builder.environment().put("PORT", Integer.toString(port));
+        builder.environment().put("MONGODB_URI", mongoUri);
+        builder.environment().putIfAbsent("JWT_SECRET", HexFormat.of().formatHex(randomBytes(32)));
+        if (embeddedMongo) {
+            // the stand-in starts empty, has no secondary indexes and cannot run the backfill pipelines
+            builder.environment().put("MONGO_ENSURE_INDEXES", "false");
+        }
+        log("starting server on port %d against %s (log: %s)", port, mongoUri, logFile);
+        return builder.start();
+    }
+
+    private static void awaitServer(HttpClient client, String base, Process server) throws Exception {
+        HttpRequest probe = HttpRequest.newBuilder(URI.create(base + "/api/auth/login")).timeout(Duration.ofSeconds(2)).GET().build();
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(2);
+        while (System.nanoTime() < deadline) {
+            if (!server.isAlive()) {
+                throw new IllegalStateException("Server exited with " + server.exitValue() + ", see target/loadtest-server.log");
+            }
+            try {
+                client.send(probe, HttpResponse.BodyHandlers.discarding());
+                return;
+            } catch (IOException e) {
+                Thread.sleep(500);
+            }
+        }
+        throw new IllegalStateException("Server did not start within 2 minutes");
+    }
+
+    private static List<Map<String, String>> signupAll(HttpClient client, String base, int count) throws Exception {
+        String run = Long.toString(System.currentTimeMillis(), 36);
+        @SuppressWarnings("unchecked")
+        Map<String, String>[] users = new Map[count];
+        Semaphore permits = new Semaphore(64);
+        AtomicLong failures = new AtomicLong();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < count; i++) {
+                int index = i;
+                permits.acquire();
+                executor.execute(() -> {
+                    try {
+                        users[index] = signup(client, base, "lt-" + run + "-" + index, run + index);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        log("signup failed: %s", e.getMessage());
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+        if (failures.get() > 0) {
+            throw new IllegalStateException(failures.get() + " signups failed");
+        }
+        return List.of(users);
+    }
+
+    // pairs users 2i and 2i+1; the first REST message creates the private chat and returns its id
+    private static List<Chat> openChats(HttpClient client, String base, List<Map<String, String>> users) throws Exception {
+        Chat[] chats = new Chat[users.size() / 2];
+        Semaphore permits = new Semaphore(64);
+        AtomicLong failures = new AtomicLong();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < chats.length; i++) {
+                int index = i;
+                permits.acquire();
+                executor.execute(() -> {
+                    try {
+                        Map<String, String> first = users.get(2 * index);
+                        Map<String, String> second = users.get(2 * index + 1);
+                        String body = "{\"receiverId\":\"" + second.get("userId") + "\",\"content\":\"hello\"}";
+                        HttpResponse<String> response = client.send(post(base + "/api/messages/send", first.get("token"), body),
+                                HttpResponse.BodyHandlers.ofString());
+                        if (response.statusCode() != 200) {
+                            throw new IllegalStateException(response.statusCode() + " " + response.body());
+                        }
+                        chats[index] = new Chat(field(response.body(), "chatId"), first, second, new ArrayList<>());
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        log("chat creation failed: %s", e.getMessage());
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+        if (failures.get() > 0) {
+            throw new IllegalStateException(failures.get() + " chats could not be created");
+        }
+        return List.of(chats);
+    }
+
+    private static long connectAll(HttpClient client, URI wsUri, List<Map<String, String>> users, List<Chat> chats,
+            int[] deviceCounts, LoadClock clock, List<StompSession> sessions) throws InterruptedException {
+        Semaphore permits = new Semaphore(64);
+        AtomicLong failures = new AtomicLong();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < users.size(); i++) {
+                Chat chat = chats.get(i / 2);
+                Map<String, String> user = users.get(i);
+                for (int device = 0; device < deviceCounts[i]; device++) {
+                    StompSession session = new StompSession(user.get("userId"), chat.chatId(), clock);
+                    permits.acquire();
+                    executor.execute(() -> {
+                        try {
+                            session.open(client, wsUri, user.get("token"), 10);
+                            synchronized (chat.sessions()) {
+                                chat.sessions().add(session);
+                            }
+                            synchronized (sessions) {
+                                sessions.add(session);
+                            }
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                }
+            }
+        }
+        // SUBSCRIBE has no acknowledgement from the simple broker; give the last ones a moment to register
+        Thread.sleep(1000);
+        return failures.get();
+    }
+
+    private static Drive drive(List<Chat> chats, LoadClock clock, double[] cdf, SplittableRandom random) {
+        AtomicLong sendErrors = new AtomicLong();
+        long expectedDeliveries = 0;
+        long measuredStart = 0;
+        long measuredEnd = 0;
+        clock.start();
+        try (ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long sequence = 0; sequence < clock.totalMessages(); sequence++) {
+                long wait = clock.scheduledAt(sequence) - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                Chat chat = chats.get(sample(cdf, random));
+                boolean firstSends = random.nextBoolean();
+                String senderId = (firstSends ? chat.first() : chat.second()).get("userId");
+                String receiverId = (firstSends ? chat.second() : chat.first()).get("userId");
+                List<StompSession> senderSessions = chat.sessions().stream()
+                        .filter(session -> session.userId().equals(senderId) && !session.isClosed())
+                        .toList();
+                if (clock.isMeasured(sequence)) {
+                    if (measuredStart == 0) {
+                        measuredStart = System.nanoTime();
+                    }
+                    expectedDeliveries += chat.sessions().size();
+                }
+                if (senderSessions.isEmpty()) {
+                    sendErrors.incrementAndGet();
+                    continue;
+                }
+                StompSession sender = senderSessions.get(random.nextInt(senderSessions.size()));
+                long current = sequence;
+                senders.execute(() -> {
+                    try {
+                        sender.sendMessage(receiverId, current);
+                    } catch (Exception e) {
+                        sendErrors.incrementAndGet();
+                    }
+                });
+                if (clock.isMeasured(sequence)) {
+                    measuredEnd = System.nanoTime();
+                }
+            }
+        }
+        return new Drive(expectedDeliveries, sendErrors.get(), measuredStart, measuredEnd);
+    }
+
+    private static void awaitDeliveries(List<StompSession> sessions, long expected, int drainSeconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+        while (System.nanoTime() < deadline && sessions.stream().mapToLong(StompSession::samples).sum() < expected) {
+            Thread.sleep(100);
+        }
+    }
+
+    // Zipf weights 1/k^s over chat ranks, as a cumulative distribution
+    private static double[] zipfCdf(int chats, double exponent) {
+        double[] cdf = new double[chats];
+        double total = 0;
+        for (int k = 0; k < chats; k++) {
+            total += 1 / Math.pow(k + 1, exponent);
+            cdf[k] = total;
+        }
+        for (int k = 0; k < chats; k++) {
+            cdf[k] /= total;
+        }
+        return cdf;
+    }
+
+    private static int sample(double[] cdf, SplittableRandom random) {
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(cdf.length - 1, index >= 0 ? index : -index - 1);
+    }
+
+    // "1" or weighted choices such as "1:80,2:15,4:5"
+    private static int[] deviceCounts(String spec, int users, SplittableRandom random) {
+        String[] choices = spec.split(",");
+        int[] counts = new int[choices.length];
+        double[] cdf = new double[choices.length];
+        double total = 0;
+        for (int i = 0; i < choices.length; i++) {
+            String[] parts = choices[i].trim().split(":");
+            counts[i] = Integer.parseInt(parts[0]);
+            total += parts.length > 1 ? Double.parseDouble(parts[1]) : 1;
+            cdf[i] = total;
+        }
+        for (int i = 0; i < cdf.length; i++) {
+            cdf[i] /= total;
+        }
+        int[] perUser = new int[users];
+        for (int i = 0; i < users; i++) {
+            perUser[i] = counts[sample(cdf, random)];
+        }
+        return perUser;
+    }
+
+    private record Report(String label, String endpoint, int users, int sessions, int chats, String devices, double zipf,
+            double targetRate, int warmupSeconds, int durationSeconds, long measuredMessages, Drive drive,
+            long[] sortedLatencies, long connectErrors, long closedSessions, Long heapBaseline, Long heapConnected,
+            Long heapAfterRun) {
+
+        String toJson() {
+            double sendSeconds = Math.max(1, drive.measuredEndNanos() - drive.measuredStartNanos()) / 1e9;
+            Long perConnection = heapBaseline != null && sessions > 0 ? (heapConnected - heapBaseline) / sessions : null;
+            return ("{\"label\":\"%s\",\"endpoint\":\"%s\",\"users\":%d,\"sessions\":%d,\"chats\":%d,\"devices\":\"%s\","
+                    + "\"zipf\":%.2f,\"targetRate\":%.1f,\"warmupSeconds\":%d,\"durationSeconds\":%d,"
+                    + "\"messages\":%d,\"sendRate\":%.1f,\"expectedDeliveries\":%d,\"deliveries\":%d,\"lost\":%d,"
+                    + "\"deliveryRate\":%.1f,\"sendErrors\":%d,\"connectErrors\":%d,\"closedSessions\":%d,"
+                    + "\"p50Ms\":%.2f,\"p99Ms\":%.2f,\"p999Ms\":%.2f,\"maxMs\":%.2f,"
+                    + "\"serverHeapBaselineBytes\":%s,\"serverHeapConnectedBytes\":%s,\"serverHeapPerConnectionBytes\":%s,"
+                    + "\"serverHeapAfterRunBytes\":%s}")
+                    .formatted(label, endpoint, users, sessions, chats, devices, zipf, targetRate, warmupSeconds,
+                            durationSeconds, measuredMessages, measuredMessages / sendSeconds, drive.expectedDeliveries(),
+                            sortedLatencies.length, drive.expectedDeliveries() - sortedLatencies.length,
+                            sortedLatencies.length / (double) durationSeconds, drive.sendErrors(), connectErrors,
+                            closedSessions, percentile(0.50), percentile(0.99), percentile(0.999), percentile(1.0),
+                            heapBaseline, heapConnected, perConnection, heapAfterRun);
+        }
+
+        private double percentile(double quantile) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(sortedLatencies.length - 1, Math.ceil(quantile * sortedLatencies.length) - 1);
+            return sortedLatencies[Math.max(0, index)] / 1e6;
+        }
+    }
+
+    private record ServerHeap(MemoryMXBean memory) {
+
+        static ServerHeap connect(String hostAndPort) throws IOException {
+            JMXConnector connector = JMXConnectorFactory.connect(
+                    new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + hostAndPort + "/jmxrmi"));
+            return new ServerHeap(ManagementFactory.newPlatformMXBeanProxy(connector.getMBeanServerConnection(),
+                    ManagementFactory.MEMORY_MXBEAN_NAME, MemoryMXBean.class));
+        }
+
+        long usedAfterGc() throws InterruptedException {
+            memory.gc();
+            Thread.sleep(200);
+            memory.gc();
+            return memory.getHeapMemoryUsage().getUsed();
+        }
+    }
+
+    private static Map<String, String> signup(HttpClient client, String base, String name, String mobile) throws Exception {
+        String body = "{\"name\":\"%s\",\"email\":\"%s@example.com\",\"mobile\":\"%s\",\"password\":\"loadtest\"}"
+                .formatted(name, name, mobile);
+        HttpResponse<String> response = client.send(post(base + "/api/auth/signup", null, body), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException(response.statusCode() + " " + response.body());
+        }
+        return Map.of("token", field(response.body(), "token"), "userId", field(response.body(), "userId"));
+    }
+
+    private static HttpRequest post(String url, String token, String body) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(30))
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (token != null) {
+            builder.header("Authorization", "Bearer " + token);
+        }
+        return builder.build();
+    }
+
+    private static String field(String json, String name) {
+        Matcher matcher = STRING_FIELD.matcher(json);
+        while (matcher.find()) {
+            if (matcher.group(1).equals(name)) {
+                return matcher.group(2);
+            }
+        }
+        throw new IllegalStateException("No " + name + " in " + json);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void log(String format, Object... args) {
+        System.err.println("[loadtest] " + format.formatted(args));
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        return options;
+    }
+}
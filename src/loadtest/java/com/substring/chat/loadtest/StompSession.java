@@ -0,0 +1,149 @@
+package com.substring.chat.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One STOMP session over a plain WebSocket: CONNECT with the user's bearer token, one SUBSCRIBE to the
+ * chat topic, SENDs to {@code /app/sendMessage}. Every MESSAGE whose content carries a load-test sequence
+ * number is turned into a latency sample against the send time the driver scheduled for it.
+ */
+final class StompSession implements WebSocket.Listener {
+
+    private static final String SEQUENCE_MARKER = "\"content\":\"lt:";
+
+    private final String userId;
+    private final String chatId;
+    private final LoadClock clock;
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final CompletableFuture<Void> connected = new CompletableFuture<>();
+    private final StringBuilder inbound = new StringBuilder();
+
+    private WebSocket webSocket;
+
+    // written only by the listener, which the client calls one message at a time
+    private long[] latencies = new long[1024];
+    private volatile int samples;
+    private volatile boolean closed;
+
+    StompSession(String userId, String chatId, LoadClock clock) {
+        this.userId = userId;
+        this.chatId = chatId;
+        this.clock = clock;
+    }
+
+    String userId() {
+        return userId;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    int samples() {
+        return samples;
+    }
+
+    long[] latencies() {
+        return Arrays.copyOf(latencies, samples);
+    }
+
+    void open(HttpClient client, URI endpoint, String token, long timeoutSeconds) throws Exception {
+        webSocket = client.newWebSocketBuilder().buildAsync(endpoint, this).get(timeoutSeconds, TimeUnit.SECONDS);
+        send("CONNECT\naccept-version:1.2\nhost:localhost\nheart-beat:0,0\nAuthorization:Bearer " + token + "\n\n\0");
+        connected.get(timeoutSeconds, TimeUnit.SECONDS);
+        send("SUBSCRIBE\nid:sub-0\ndestination:/topic/chat/" + chatId + "\n\n\0");
+    }
+
+    void sendMessage(String receiverId, long sequence) {
+        String body = "{\"receiverId\":\"" + receiverId + "\",\"content\":\"lt:" + sequence + "\"}";
+        send("SEND\ndestination:/app/sendMessage\ncontent-type:application/json\ncontent-length:" + body.length()
+                + "\n\n" + body + "\0");
+    }
+
+    void close() {
+        if (webSocket != null && !webSocket.isOutputClosed()) {
+            webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "").exceptionally(ex -> null);
+        }
+    }
+
+    // java.net.http allows one outstanding send per WebSocket
+    private void send(String frame) {
+        sendLock.lock();
+        try {
+            webSocket.sendText(frame, true).join();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        inbound.append(data);
+        if (last) {
+            int start = 0;
+            for (int end = inbound.indexOf("\0"); end >= 0; end = inbound.indexOf("\0", start)) {
+                onFrame(inbound, start, end);
+                start = end + 1;
+            }
+            inbound.delete(0, start);
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    private void onFrame(CharSequence buffer, int start, int end) {
+        // heart-beat newlines may precede a frame
+        while (start < end && (buffer.charAt(start) == '\n' || buffer.charAt(start) == '\r')) {
+            start++;
+        }
+        String frame = buffer.subSequence(start, end).toString();
+        if (frame.startsWith("CONNECTED")) {
+            connected.complete(null);
+        } else if (frame.startsWith("ERROR")) {
+            connected.completeExceptionally(new IllegalStateException(frame));
+        } else if (frame.startsWith("MESSAGE")) {
+            onMessage(frame);
+        }
+    }
+
+    private void onMessage(String frame) {
+        long receivedAt = System.nanoTime();
+        int marker = frame.indexOf(SEQUENCE_MARKER);
+        if (marker < 0) {
+            return;
+        }
+        int from = marker + SEQUENCE_MARKER.length();
+        int to = from;
+        while (to < frame.length() && Character.isDigit(frame.charAt(to))) {
+            to++;
+        }
+        long sequence = Long.parseLong(frame, from, to, 10);
+        if (!clock.isMeasured(sequence)) {
+            return;
+        }
+        if (samples == latencies.length) {
+            latencies = Arrays.copyOf(latencies, samples * 2);
+        }
+        latencies[samples++] = receivedAt - clock.scheduledAt(sequence);
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+        closed = true;
+        connected.completeExceptionally(new IllegalStateException("Closed " + statusCode + " " + reason));
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        closed = true;
+        connected.completeExceptionally(error);
+    }
+}
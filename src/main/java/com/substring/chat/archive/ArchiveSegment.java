@@ -0,0 +1,472 @@
+package com.substring.chat.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.bson.types.ObjectId;
+
+import com.substring.chat.model.Message;
+
+/**
+ * An immutable file of one chat's archived messages in (timestamp, id) order, memory-mapped and decoded a
+ * block at a time. Layout, all offsets absolute:
+ * <pre>
+ * header  magic, version, message count, block count, index position, first and last timestamp, and the
+ *         generation of the segment this one replaces (0 for none)
+ * chatId  u16 length + UTF-8
+ * blocks  each a deflated run of up to block-messages rows, stored column by column
+ * index   per block: first and last timestamp (i64), first row (i32), position (i64), compressed and
+ *         decompressed length (i32)
+ * </pre>
+ * The index is sparse, one entry per block, so a keyset or offset read decompresses only the blocks it
+ * returns rows from. Timestamps are local date-times encoded as epoch millis as if they were UTC; they only
+ * have to round-trip within the archive.
+ */
+final class ArchiveSegment {
+
+    private static final int MAGIC = 0x43484131;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 48;
+
+    private static final int INDEX_BYTES = 36;
+
+    // id column encodings
+    private static final byte OBJECT_IDS = 0;
+
+    private static final byte STRING_IDS = 1;
+
+    private static final Message.MessageStatus[] STATUSES = Message.MessageStatus.values();
+
+    private final ByteBuffer buffer;
+
+    private final String chatId;
+
+    private final int count;
+
+    private final int blockCount;
+
+    private final int indexOffset;
+
+    private final long replaces;
+
+    private ArchiveSegment(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.count = buffer.getInt(8);
+        this.blockCount = buffer.getInt(12);
+        this.indexOffset = (int) buffer.getLong(16);
+        this.replaces = buffer.getLong(40);
+        byte[] chatBytes = new byte[buffer.getShort(HEADER_BYTES) & 0xFFFF];
+        buffer.get(HEADER_BYTES + 2, chatBytes);
+        this.chatId = new String(chatBytes, StandardCharsets.UTF_8);
+    }
+
+    static ArchiveSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES + 2 || size > Integer.MAX_VALUE) {
+                throw new IOException("Not an archive segment: " + file);
+            }
+            // the mapping outlives the channel
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not an archive segment: " + file);
+            }
+            return new ArchiveSegment(buffer);
+        }
+    }
+
+    /**
+     * Writes messages of one chat, already in (timestamp, id) order, via a temporary file so a crash never
+     * leaves a partial segment. A segment that rewrites an earlier one with more messages names its
+     * generation in {@code replaces}, so readers skip the earlier one if it is still there.
+     */
+    static void write(String chatId, List<Message> messages, int blockMessages, long replaces, Path file)
+            throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        int blocks = (messages.size() + blockMessages - 1) / blockMessages;
+        ByteBuffer index = ByteBuffer.allocate(blocks * INDEX_BYTES);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.write(new byte[HEADER_BYTES]);
+            byte[] chatBytes = chatId.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(chatBytes.length);
+            out.write(chatBytes);
+            long position = HEADER_BYTES + 2 + chatBytes.length;
+
+            byte[] compressed = new byte[64 * 1024];
+            for (int start = 0; start < messages.size(); start += blockMessages) {
+                List<Message> rows = messages.subList(start, Math.min(messages.size(), start + blockMessages));
+                byte[] raw = encodeBlock(rows);
+                deflater.reset();
+                deflater.setInput(raw);
+                deflater.finish();
+                long blockStart = position;
+                while (!deflater.finished()) {
+                    int length = deflater.deflate(compressed);
+                    out.write(compressed, 0, length);
+                    position += length;
+                }
+                index.putLong(millis(rows.get(0).getTimestamp()))
+                        .putLong(millis(rows.get(rows.size() - 1).getTimestamp()))
+                        .putInt(start)
+                        .putLong(blockStart)
+                        .putInt((int) (position - blockStart))
+                        .putInt(raw.length);
+            }
+            long indexStart = position;
+            out.write(index.array());
+            if (indexStart + index.capacity() > Integer.MAX_VALUE) {
+                throw new IOException("Archive segment exceeds 2 GB; lower archive.segment-messages");
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                    .putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(messages.size())
+                    .putInt(blocks)
+                    .putLong(indexStart)
+                    .putLong(millis(messages.get(0).getTimestamp()))
+                    .putLong(millis(messages.get(messages.size() - 1).getTimestamp()))
+                    .putLong(replaces)
+                    .flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        } finally {
+            deflater.end();
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    String chatId() {
+        return chatId;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long replaces() {
+        return replaces;
+    }
+
+    int blockCount() {
+        return blockCount;
+    }
+
+    long firstTimestamp(int block) {
+        return buffer.getLong(indexOffset + block * INDEX_BYTES);
+    }
+
+    long lastTimestamp(int block) {
+        return buffer.getLong(indexOffset + block * INDEX_BYTES + 8);
+    }
+
+    int firstRow(int block) {
+        return buffer.getInt(indexOffset + block * INDEX_BYTES + 16);
+    }
+
+    /** The block holding the given row. */
+    int blockOfRow(int row) {
+        int low = 0;
+        int high = blockCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (firstRow(mid) <= row) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /** The first block that may hold rows at or after {@code millis}, or blockCount if none does. */
+    int firstBlockEndingAtOrAfter(long millis) {
+        int low = 0;
+        int high = blockCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (lastTimestamp(mid) < millis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** The last block that may hold rows at or before {@code millis}, or -1 if none does. */
+    int lastBlockStartingAtOrBefore(long millis) {
+        int low = -1;
+        int high = blockCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (firstTimestamp(mid) <= millis) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /** Decompresses one block's rows, oldest first. */
+    List<Message> block(int block) {
+        int entry = indexOffset + block * INDEX_BYTES;
+        int position = (int) buffer.getLong(entry + 20);
+        int compressedLength = buffer.getInt(entry + 28);
+        byte[] raw = new byte[buffer.getInt(entry + 32)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(buffer.slice(position, compressedLength));
+            int read = 0;
+            while (read < raw.length && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, read, raw.length - read);
+                if (inflated == 0 && inflater.needsInput()) {
+                    break;
+                }
+                read += inflated;
+            }
+            if (read != raw.length) {
+                throw new IllegalStateException("Truncated archive block " + block + " of chat " + chatId);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt archive block " + block + " of chat " + chatId, e);
+        } finally {
+            inflater.end();
+        }
+        return decodeBlock(ByteBuffer.wrap(raw));
+    }
+
+    private static byte[] encodeBlock(List<Message> rows) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(rows.size() * 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeVarint(out, rows.size());
+
+        long previous = millis(rows.get(0).getTimestamp());
+        out.writeLong(previous);
+        for (Message message : rows) {
+            long timestamp = millis(message.getTimestamp());
+            writeVarlong(out, timestamp - previous);
+            previous = timestamp;
+        }
+
+        boolean objectIds = rows.stream().allMatch(message -> ObjectId.isValid(message.getMessageId()));
+        out.writeByte(objectIds ? OBJECT_IDS : STRING_IDS);
+        for (Message message : rows) {
+            if (objectIds) {
+                out.write(new ObjectId(message.getMessageId()).toByteArray());
+            } else {
+                writeString(out, message.getMessageId());
+            }
+        }
+
+        // a private chat has two participants, so each row stores small ordinals into a per-block dictionary
+        Map<String, Integer> users = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        int[] senders = new int[rows.size()];
+        int[] receivers = new int[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            senders[i] = ordinal(users, dictionary, rows.get(i).getSenderId());
+            receivers[i] = ordinal(users, dictionary, rows.get(i).getReceiverId());
+        }
+        writeVarint(out, dictionary.size());
+        for (String user : dictionary) {
+            writeString(out, user);
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            writeVarint(out, senders[i]);
+            writeVarint(out, receivers[i]);
+        }
+
+        for (Message message : rows) {
+            out.writeByte(message.getStatus() != null ? message.getStatus().ordinal() + 1 : 0);
+        }
+        for (Message message : rows) {
+            writeVarlong(out, message.getSequence() != null ? message.getSequence() + 1 : 0);
+        }
+
+        // all lengths, then all text, so similar bytes sit together for the compressor
+        List<byte[]> contents = new ArrayList<>(rows.size());
+        for (Message message : rows) {
+            byte[] content = message.getContent() != null ? message.getContent().getBytes(StandardCharsets.UTF_8) : null;
+            contents.add(content);
+            writeVarint(out, content != null ? content.length + 1 : 0);
+        }
+        for (byte[] content : contents) {
+            if (content != null) {
+                out.write(content);
+            }
+        }
+
+        for (Message message : rows) {
+            List<Message.AttachmentRef> attachments = message.getAttachments();
+            writeVarint(out, attachments != null ? attachments.size() + 1 : 0);
+            if (attachments != null) {
+                for (Message.AttachmentRef attachment : attachments) {
+                    writeString(out, attachment.getId());
+                    writeString(out, attachment.getFileName());
+                    writeString(out, attachment.getContentType());
+                    writeVarlong(out, attachment.getSize());
+                }
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private List<Message> decodeBlock(ByteBuffer in) {
+        int rows = readVarint(in);
+        List<Message> messages = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            Message message = new Message();
+            message.setChatId(chatId);
+            messages.add(message);
+        }
+
+        long timestamp = in.getLong();
+        for (Message message : messages) {
+            timestamp += readVarlong(in);
+            message.setTimestamp(LocalDateTime.ofEpochSecond(Math.floorDiv(timestamp, 1000),
+                    Math.floorMod(timestamp, 1000) * 1_000_000, ZoneOffset.UTC));
+        }
+
+        boolean objectIds = in.get() == OBJECT_IDS;
+        byte[] objectId = new byte[12];
+        for (Message message : messages) {
+            if (objectIds) {
+                in.get(objectId);
+                message.setMessageId(new ObjectId(objectId).toHexString());
+            } else {
+                message.setMessageId(readString(in));
+            }
+        }
+
+        String[] dictionary = new String[readVarint(in) + 1];
+        for (int i = 1; i < dictionary.length; i++) {
+            dictionary[i] = readString(in);
+        }
+        for (Message message : messages) {
+            message.setSenderId(dictionary[readVarint(in)]);
+            message.setReceiverId(dictionary[readVarint(in)]);
+        }
+
+        for (Message message : messages) {
+            int status = in.get();
+            message.setStatus(status > 0 ? STATUSES[status - 1] : null);
+        }
+        for (Message message : messages) {
+            long sequence = readVarlong(in);
+            message.setSequence(sequence > 0 ? sequence - 1 : null);
+        }
+
+        int[] lengths = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            lengths[i] = readVarint(in);
+        }
+        for (int i = 0; i < rows; i++) {
+            if (lengths[i] > 0) {
+                byte[] content = new byte[lengths[i] - 1];
+                in.get(content);
+                messages.get(i).setContent(new String(content, StandardCharsets.UTF_8));
+            }
+        }
+
+        for (Message message : messages) {
+            int attachments = readVarint(in);
+            if (attachments > 0) {
+                List<Message.AttachmentRef> refs = new ArrayList<>(attachments - 1);
+                for (int i = 1; i < attachments; i++) {
+                    Message.AttachmentRef ref = new Message.AttachmentRef();
+                    ref.setId(readString(in));
+                    ref.setFileName(readString(in));
+                    ref.setContentType(readString(in));
+                    ref.setSize(readVarlong(in));
+                    refs.add(ref);
+                }
+                message.setAttachments(refs);
+            }
+        }
+        return messages;
+    }
+
+    // 0 stands for null, so dictionary ordinals start at 1
+    private static int ordinal(Map<String, Integer> users, List<String> dictionary, String user) {
+        if (user == null) {
+            return 0;
+        }
+        return users.computeIfAbsent(user, u -> {
+            dictionary.add(u);
+            return dictionary.size();
+        });
+    }
+
+    static long millis(LocalDateTime timestamp) {
+        return timestamp.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[readVarint(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        writeVarlong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarlong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        return (int) readVarlong(in);
+    }
+
+    private static long readVarlong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
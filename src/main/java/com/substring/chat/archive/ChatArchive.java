@@ -0,0 +1,153 @@
+package com.substring.chat.archive;
+
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import com.substring.chat.model.Message;
+import com.substring.chat.service.KeysetCursor;
+
+/**
+ * The archived part of one chat's history: its segments in order, all older than anything still in Mongo.
+ * Reads mirror the Mongo history queries, ordered by (timestamp, id).
+ */
+public final class ChatArchive {
+
+    static final ChatArchive EMPTY = new ChatArchive(List.of(), List.of(), null, null);
+
+    private final List<ArchiveSegment> segments;
+
+    private final List<Long> generations;
+
+    // rows before each segment, for offset reads
+    private final long[] starts;
+
+    private final long size;
+
+    private final KeysetCursor newest;
+
+    // the chat directory's modification time when loaded; a different one means segments changed
+    private final FileTime modified;
+
+    ChatArchive(List<ArchiveSegment> segments, List<Long> generations, KeysetCursor newest, FileTime modified) {
+        this.segments = segments;
+        this.generations = generations;
+        this.newest = newest;
+        this.modified = modified;
+        this.starts = new long[segments.size()];
+        long rows = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            starts[i] = rows;
+            rows += segments.get(i).count();
+        }
+        this.size = rows;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /** Position of the newest archived message; every message still in Mongo comes after it. */
+    public KeysetCursor newest() {
+        return newest;
+    }
+
+    /**
+     * Up to {@code limit} messages strictly before the cursor, newest first; without a cursor, the newest ones.
+     */
+    public List<Message> before(KeysetCursor cursor, int limit) {
+        List<Message> messages = new ArrayList<>(Math.min(limit, 256));
+        for (int s = segments.size() - 1; s >= 0 && messages.size() < limit; s--) {
+            ArchiveSegment segment = segments.get(s);
+            int block = cursor == null
+                    ? segment.blockCount() - 1
+                    : segment.lastBlockStartingAtOrBefore(ArchiveSegment.millis(cursor.timestamp()));
+            for (; block >= 0 && messages.size() < limit; block--) {
+                List<Message> rows = segment.block(block);
+                for (int i = rows.size() - 1; i >= 0 && messages.size() < limit; i--) {
+                    if (cursor == null || compare(rows.get(i), cursor) < 0) {
+                        messages.add(rows.get(i));
+                    }
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Up to {@code limit} messages strictly after the cursor, oldest first; without a cursor, the oldest ones.
+     */
+    public List<Message> after(KeysetCursor cursor, int limit) {
+        List<Message> messages = new ArrayList<>(Math.min(limit, 256));
+        for (int s = 0; s < segments.size() && messages.size() < limit; s++) {
+            ArchiveSegment segment = segments.get(s);
+            int block = cursor == null ? 0 : segment.firstBlockEndingAtOrAfter(ArchiveSegment.millis(cursor.timestamp()));
+            for (; block < segment.blockCount() && messages.size() < limit; block++) {
+                for (Message row : segment.block(block)) {
+                    if (messages.size() < limit && (cursor == null || compare(row, cursor) > 0)) {
+                        messages.add(row);
+                    }
+                }
+            }
+        }
+        return messages;
+    }
+
+    /** Up to {@code limit} messages from the given position in the archived history, oldest first. */
+    public List<Message> range(long offset, int limit) {
+        List<Message> messages = new ArrayList<>(Math.min(limit, 256));
+        for (int s = 0; s < segments.size() && messages.size() < limit; s++) {
+            ArchiveSegment segment = segments.get(s);
+            long end = starts[s] + segment.count();
+            if (offset >= end) {
+                continue;
+            }
+            int row = (int) Math.max(0, offset - starts[s]);
+            for (int block = segment.blockOfRow(row); block < segment.blockCount() && messages.size() < limit; block++) {
+                List<Message> rows = segment.block(block);
+                int first = Math.max(0, row - segment.firstRow(block));
+                for (int i = first; i < rows.size() && messages.size() < limit; i++) {
+                    messages.add(rows.get(i));
+                }
+            }
+        }
+        return messages;
+    }
+
+    /** Every archived message, oldest first, decompressed a block at a time as the stream is consumed. */
+    public Stream<Message> stream() {
+        return segments.stream().flatMap(ChatArchive::rows);
+    }
+
+    static Stream<Message> rows(ArchiveSegment segment) {
+        return IntStream.range(0, segment.blockCount())
+                .mapToObj(segment::block)
+                .flatMap(List::stream);
+    }
+
+    List<ArchiveSegment> segments() {
+        return segments;
+    }
+
+    List<Long> generations() {
+        return generations;
+    }
+
+    FileTime modified() {
+        return modified;
+    }
+
+    // same order as the history queries' (timestamp, _id) sort; ObjectId hex strings sort like the ids
+    private static int compare(Message message, KeysetCursor cursor) {
+        LocalDateTime timestamp = message.getTimestamp();
+        int byTime = timestamp.compareTo(cursor.timestamp());
+        return byTime != 0 ? byTime : message.getMessageId().compareTo(cursor.id());
+    }
+}
@@ -0,0 +1,361 @@
+package com.substring.chat.archive;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.substring.chat.model.Message;
+import com.substring.chat.service.ChatService;
+import com.substring.chat.service.KeysetCursor;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Cold tier of the message history. Messages older than {@code archive.age-days} are moved out of Mongo into
+ * per-chat {@link ArchiveSegment} files under {@code archive.path}, each chat in its own directory. A chat's
+ * segments hold up to {@code archive.segment-messages} each; a run tops up the newest one by rewriting it
+ * with the new messages, then starts new ones. Segment files are written before the messages are deleted
+ * from Mongo, so a message is never in neither tier.
+ * <p>
+ * Reads work on every node whether or not it runs the archiver: a chat's segments are mapped on first use
+ * and remapped when the chat directory changes. With several instances, share the directory and enable the
+ * archiver on one of them.
+ */
+@Component
+public class MessageArchive {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageArchive.class);
+
+    private static final Duration FIRST_RUN_DELAY = Duration.ofMinutes(1);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final Pattern CHAT_ID = Pattern.compile("[0-9A-Za-z_-]{2,64}");
+
+    private static final int SCAN_BATCH_SIZE = 1000;
+
+    // what counts toward a receiver's unread counter
+    private static final List<Message.MessageStatus> UNREAD = List.of(Message.MessageStatus.SENT,
+            Message.MessageStatus.DELIVERED);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ChatService chatService;
+
+    @Value("${archive.enabled:false}")
+    private boolean enabled;
+
+    @Value("${archive.path:./data/archive}")
+    private String path;
+
+    @Value("${archive.age-days:365}")
+    private long ageDays;
+
+    @Value("${archive.interval-hours:24}")
+    private long intervalHours;
+
+    @Value("${archive.block-messages:256}")
+    private int blockMessages;
+
+    @Value("${archive.segment-messages:20000}")
+    private int segmentMessages;
+
+    @Value("${archive.open-chats:2000}")
+    private long openChats;
+
+    private Path directory;
+
+    // mapped segments of recently read chats; evicted ones are unmapped once collected
+    private Cache<String, ChatArchive> chats;
+
+    private ScheduledExecutorService worker;
+
+    private Counter archivedMessages;
+
+    @PostConstruct
+    void init() {
+        directory = Path.of(path);
+        chats = Caffeine.newBuilder()
+                .maximumSize(openChats)
+                .build();
+        archivedMessages = Counter.builder("chat.archive.messages")
+                .description("Messages moved from Mongo to archive segments")
+                .register(meterRegistry);
+        if (enabled) {
+            worker = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("message-archiver").daemon().factory());
+            worker.scheduleWithFixedDelay(this::archiveOldMessages,
+                    FIRST_RUN_DELAY.toMinutes(), TimeUnit.HOURS.toMinutes(intervalHours), TimeUnit.MINUTES);
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        if (worker != null) {
+            worker.shutdownNow();
+        }
+    }
+
+    /**
+     * The chat's archived history, empty when nothing of it has been archived.
+     */
+    public ChatArchive chat(String chatId) {
+        Path chatDirectory = chatDirectory(chatId);
+        if (chatDirectory == null) {
+            return ChatArchive.EMPTY;
+        }
+        try {
+            FileTime modified = Files.getLastModifiedTime(chatDirectory);
+            ChatArchive cached = chats.getIfPresent(chatId);
+            if (cached != null && modified.equals(cached.modified())) {
+                return cached;
+            }
+            ChatArchive loaded = load(chatDirectory, modified);
+            chats.put(chatId, loaded);
+            return loaded;
+        } catch (NoSuchFileException e) {
+            return ChatArchive.EMPTY;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read archived history of chat " + chatId, e);
+        }
+    }
+
+    /** Hands every archived message to {@code consumer}, chat by chat; for rebuilding derived indexes. */
+    public void forEachArchived(Consumer<Message> consumer) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> shards = Files.list(directory)) {
+            for (Path shard : shards.filter(Files::isDirectory).toList()) {
+                try (Stream<Path> chatDirectories = Files.list(shard)) {
+                    for (Path chatDirectory : chatDirectories.filter(Files::isDirectory).toList()) {
+                        try (Stream<Message> messages = load(chatDirectory, null).stream()) {
+                            messages.forEach(consumer);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read archived history", e);
+        }
+    }
+
+    // <path>/<last two characters>/<chatId>; ids end in an ObjectId's counter, so chats spread evenly
+    private Path chatDirectory(String chatId) {
+        if (chatId == null || !CHAT_ID.matcher(chatId).matches()) {
+            return null;
+        }
+        return directory.resolve(chatId.substring(chatId.length() - 2)).resolve(chatId);
+    }
+
+    private ChatArchive load(Path chatDirectory, FileTime modified) throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(chatDirectory)) {
+            files = listing.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+        List<ArchiveSegment> opened = new ArrayList<>(files.size());
+        List<Long> openedGenerations = new ArrayList<>(files.size());
+        Set<Long> replaced = new HashSet<>();
+        for (Path file : files) {
+            try {
+                ArchiveSegment segment = ArchiveSegment.open(file);
+                opened.add(segment);
+                openedGenerations.add(generation(file));
+                replaced.add(segment.replaces());
+            } catch (NoSuchFileException e) {
+                // only replaced segments are deleted, and the replacement is already listed
+            }
+        }
+
+        List<ArchiveSegment> segments = new ArrayList<>(opened.size());
+        List<Long> generations = new ArrayList<>(opened.size());
+        for (int i = 0; i < opened.size(); i++) {
+            if (!replaced.contains(openedGenerations.get(i))) {
+                segments.add(opened.get(i));
+                generations.add(openedGenerations.get(i));
+            }
+        }
+        KeysetCursor newest = null;
+        if (!segments.isEmpty()) {
+            ArchiveSegment last = segments.get(segments.size() - 1);
+            List<Message> rows = last.block(last.blockCount() - 1);
+            newest = KeysetCursor.of(rows.get(rows.size() - 1));
+        }
+        return new ChatArchive(List.copyOf(segments), List.copyOf(generations), newest, modified);
+    }
+
+    private static long generation(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void archiveOldMessages() {
+        LocalDateTime cutoff = LocalDateTime.now().minusDays(ageDays).truncatedTo(ChronoUnit.MILLIS);
+        // ids carry their creation second, so chats with old messages are found on the primary key index
+        long cutoffSeconds = cutoff.atZone(ZoneId.systemDefault()).toEpochSecond();
+        ObjectId cutoffId = new ObjectId(String.format("%08x%016x", Math.max(0, cutoffSeconds), 0));
+        Aggregation chatsWithOldMessages = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("_id").lt(cutoffId)),
+                Aggregation.group("chatId"))
+                .withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+
+        long before = (long) archivedMessages.count();
+        int chatCount = 0;
+        try (Stream<Document> groups = mongoTemplate.aggregateStream(chatsWithOldMessages, Message.class, Document.class)) {
+            for (Document group : (Iterable<Document>) groups::iterator) {
+                String chatId = group.getString("_id");
+                try {
+                    archiveChat(chatId, cutoff);
+                    chatCount++;
+                } catch (IOException | RuntimeException e) {
+                    log.error("Failed to archive messages of chat {}", chatId, e);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Message archiving failed", e);
+        }
+        log.info("Archived {} messages older than {} from {} chats", (long) archivedMessages.count() - before,
+                cutoff, chatCount);
+    }
+
+    private void archiveChat(String chatId, LocalDateTime cutoff) throws IOException {
+        Path chatDirectory = chatDirectory(chatId);
+        if (chatDirectory == null) {
+            log.warn("Not archiving chat with unusable id {}", chatId);
+            return;
+        }
+        Files.createDirectories(chatDirectory);
+        ChatArchive current = load(chatDirectory, null);
+        deleteLeftovers(chatDirectory, current);
+        if (!current.isEmpty()) {
+            // a run that stopped between writing a segment and deleting its messages
+            deleteFromMongo(chatId, current.newest());
+        }
+
+        // the newest segment is topped up to segment-messages by rewriting it together with new messages
+        List<Message> pending = new ArrayList<>();
+        long replaces = 0;
+        int rewritten = 0;
+        long generation = current.generations().isEmpty() ? 0 : current.generations().getLast();
+        if (!current.isEmpty() && current.segments().getLast().count() < segmentMessages) {
+            replaces = generation;
+            ChatArchive.rows(current.segments().getLast()).forEach(pending::add);
+            rewritten = pending.size();
+        }
+
+        Query old = Query.query(Criteria.where("chatId").is(chatId).and("timestamp").lt(cutoff))
+                .with(Sort.by(Sort.Direction.ASC, "timestamp", "_id"))
+                .cursorBatchSize(SCAN_BATCH_SIZE);
+        try (Stream<Message> messages = mongoTemplate.stream(old, Message.class)) {
+            for (Message message : (Iterable<Message>) messages::iterator) {
+                pending.add(message);
+                if (pending.size() == segmentMessages) {
+                    generation = writeSegment(chatDirectory, chatId, pending, rewritten, replaces, generation);
+                    pending.clear();
+                    replaces = 0;
+                    rewritten = 0;
+                }
+            }
+        }
+        if (pending.size() > rewritten) {
+            writeSegment(chatDirectory, chatId, pending, rewritten, replaces, generation);
+        }
+    }
+
+    /**
+     * Writes the rows as the next segment, then removes them from Mongo and drops the segment it replaces.
+     * Returns the new segment's generation.
+     */
+    private long writeSegment(Path chatDirectory, String chatId, List<Message> rows, int rewritten, long replaces,
+            long generation) throws IOException {
+        long next = generation + 1;
+        ArchiveSegment.write(chatId, rows, blockMessages, replaces,
+                chatDirectory.resolve(String.format("%012d%s", next, SEGMENT_SUFFIX)));
+        deleteFromMongo(chatId, KeysetCursor.of(rows.getLast()));
+        if (replaces != 0) {
+            Files.deleteIfExists(chatDirectory.resolve(String.format("%012d%s", replaces, SEGMENT_SUFFIX)));
+        }
+        archivedMessages.increment(rows.size() - rewritten);
+        return next;
+    }
+
+    /**
+     * Removes the chat's messages up to and including the given position. Receipts can't reach archived
+     * messages, so unread ones are removed per receiver first and taken off that receiver's unread counter.
+     */
+    private void deleteFromMongo(String chatId, KeysetCursor upTo) {
+        List<String> receivers = mongoTemplate.findDistinct(
+                Query.query(archived(chatId, upTo).and("status").in(UNREAD)), "receiverId", Message.class, String.class);
+        for (String receiverId : receivers) {
+            // messages to oneself were never counted
+            Query unread = Query.query(archived(chatId, upTo).and("status").in(UNREAD)
+                    .and("receiverId").is(receiverId).and("senderId").ne(receiverId));
+            chatService.markRead(chatId, receiverId, mongoTemplate.remove(unread, Message.class).getDeletedCount());
+        }
+        mongoTemplate.remove(Query.query(archived(chatId, upTo)), Message.class);
+    }
+
+    private static Criteria archived(String chatId, KeysetCursor upTo) {
+        Object upToId = ObjectId.isValid(upTo.id()) ? new ObjectId(upTo.id()) : upTo.id();
+        return Criteria.where("chatId").is(chatId)
+                .orOperator(
+                        Criteria.where("timestamp").lt(upTo.timestamp()),
+                        Criteria.where("timestamp").is(upTo.timestamp()).and("_id").lte(upToId));
+    }
+
+    // temporary files of an interrupted write and segments a later one replaced; mappings of readers survive
+    private static void deleteLeftovers(Path chatDirectory, ChatArchive current) throws IOException {
+        Set<String> live = new HashSet<>();
+        current.generations().forEach(generation -> live.add(String.format("%012d%s", generation, SEGMENT_SUFFIX)));
+        try (Stream<Path> files = Files.list(chatDirectory)) {
+            for (Path file : files.toList()) {
+                if (!live.contains(file.getFileName().toString())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.substring.chat.cluster;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Default transport for {@link ClusterFanout}. Declare another {@link ClusterTransport} bean to replace it.
+ */
+@Configuration
+@ConditionalOnProperty(name = "cluster.enabled", havingValue = "true")
+public class ClusterConfig {
+
+    private static final int MIN_SECRET_LENGTH = 32;
+
+    private static final int PAYLOAD_HEADROOM = 8;
+
+    @Bean
+    @ConditionalOnMissingBean(ClusterTransport.class)
+    public ClusterTransport tcpClusterTransport(
+            @Value("${cluster.bind-address:127.0.0.1}") String bindAddress,
+            @Value("${cluster.port}") int port,
+            @Value("${cluster.advertise-address:}") String advertiseAddress,
+            @Value("${cluster.peers:}") String peers,
+            @Value("${cluster.max-batch:128}") int maxBatch,
+            @Value("${cluster.queue-capacity:10000}") int queueCapacity,
+            @Value("${cluster.secret:}") String secret,
+            @Value("${websocket.inbound.message-size-limit:65536}") int messageSizeLimit) {
+        if (secret.length() < MIN_SECRET_LENGTH) {
+            throw new IllegalStateException("cluster.secret must be at least " + MIN_SECRET_LENGTH
+                    + " characters when cluster.enabled=true");
+        }
+        List<String> configuredPeers = Arrays.stream(peers.split(","))
+                .map(String::trim)
+                .filter(peer -> !peer.isEmpty())
+                .toList();
+        // peers identify a link by the address it advertises, so a guessed one would be rejected by all of them
+        if (advertiseAddress.isBlank()) {
+            if (!configuredPeers.isEmpty()) {
+                throw new IllegalStateException("cluster.advertise-address must be set to this node's entry in"
+                        + " cluster.peers when cluster.peers is not empty");
+            }
+            advertiseAddress = "localhost:" + port;
+        }
+        String self = advertiseAddress.trim();
+        List<String> peerList = configuredPeers.stream()
+                .filter(peer -> !peer.equals(self))
+                .toList();
+        // publications are built from inbound messages of at most messageSizeLimit; JSON escaping and the
+        // response's other fields grow them, so leave room
+        return new TcpClusterTransport(bindAddress, port, self, peerList, maxBatch, queueCapacity,
+                secret, messageSizeLimit * PAYLOAD_HEADROOM);
+    }
+}
@@ -0,0 +1,243 @@
+package com.substring.chat.cluster;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+import org.springframework.web.socket.messaging.SessionUnsubscribeEvent;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Cluster-wide delivery for the in-JVM simple broker. Sits on the broker channel and forwards every
+ * publication under the cluster prefix to the peers that currently have subscribers for that exact
+ * destination; frames received from peers are published to the local broker only.
+ *
+ * <p>Each node tracks its own subscriber count per destination and announces 0 -> 1 and 1 -> 0 changes
+ * to all peers, plus a full snapshot whenever a link to a peer (re)connects.
+ */
+@Component
+@ConditionalOnProperty(name = "cluster.enabled", havingValue = "true")
+public class ClusterFanout implements ChannelInterceptor, ClusterTransport.Listener {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterFanout.class);
+
+    // marks publications that came from a peer so they are never forwarded again
+    static final String FORWARDED_HEADER = "clusterForwarded";
+
+    @Autowired
+    private ClusterTransport transport;
+
+    @Lazy
+    @Autowired
+    @Qualifier("brokerChannel")
+    private MessageChannel brokerChannel;
+
+    @Value("${cluster.destination-prefix:/topic/chat/}")
+    private String destinationPrefix;
+
+    // local subscriber count per destination
+    private final Map<String, Integer> localSubscribers = new ConcurrentHashMap<>();
+
+    // sessionId -> subscriptionId -> destination, so unsubscribe/disconnect can be undone
+    private final Map<String, Map<String, String>> sessionSubscriptions = new ConcurrentHashMap<>();
+
+    // destination -> peers with subscribers for it
+    private final Map<String, Set<String>> remoteInterest = new ConcurrentHashMap<>();
+
+    private final LongAdder forwardedFrames = new LongAdder();
+    private final LongAdder receivedFrames = new LongAdder();
+
+    @PostConstruct
+    void start() {
+        transport.start(this);
+    }
+
+    @PreDestroy
+    void stop() {
+        transport.stop();
+    }
+
+    // ---- outbound: local publications -> interested peers
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(message);
+        String destination = accessor.getDestination();
+        if (accessor.getMessageType() != SimpMessageType.MESSAGE
+                || destination == null
+                || !destination.startsWith(destinationPrefix)
+                || message.getHeaders().containsKey(FORWARDED_HEADER)) {
+            return message;
+        }
+
+        Set<String> peers = remoteInterest.get(destination);
+        if (peers == null || peers.isEmpty()) {
+            return message;
+        }
+        if (!(message.getPayload() instanceof byte[] payload)) {
+            log.debug("Not forwarding non-serialized payload for {}", destination);
+            return message;
+        }
+
+        MimeType contentType = accessor.getContentType();
+        ClusterFrame frame = ClusterFrame.publish(destination, contentType == null ? null : contentType.toString(), payload);
+        for (String peer : peers) {
+            if (transport.send(peer, frame)) {
+                forwardedFrames.increment();
+            }
+        }
+        return message;
+    }
+
+    // ---- inbound: peer frames -> local broker / interest table
+
+    @Override
+    public void onFrames(String peer, List<ClusterFrame> frames) {
+        for (ClusterFrame frame : frames) {
+            switch (frame.type()) {
+                case INTEREST -> addRemoteInterest(frame.destination(), peer);
+                case UNINTEREST -> removeRemoteInterest(frame.destination(), peer);
+                case PUBLISH -> publishLocally(frame);
+                case HELLO -> forgetPeer(peer);
+            }
+        }
+    }
+
+    @Override
+    public void onPeerConnected(String peer) {
+        localSubscribers.keySet().forEach(destination ->
+                transport.send(peer, ClusterFrame.interest(destination, true)));
+    }
+
+    @Override
+    public void onPeerLost(String peer) {
+        forgetPeer(peer);
+    }
+
+    private void publishLocally(ClusterFrame frame) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setDestination(frame.destination());
+        if (!frame.contentType().isEmpty()) {
+            accessor.setContentType(MimeType.valueOf(frame.contentType()));
+        }
+        accessor.setHeader(FORWARDED_HEADER, Boolean.TRUE);
+        brokerChannel.send(MessageBuilder.createMessage(frame.payload(), accessor.getMessageHeaders()));
+        receivedFrames.increment();
+    }
+
+    private void forgetPeer(String peer) {
+        remoteInterest.keySet().forEach(destination -> removeRemoteInterest(destination, peer));
+    }
+
+    private void addRemoteInterest(String destination, String peer) {
+        remoteInterest.compute(destination, (key, peers) -> {
+            Set<String> interested = peers == null ? ConcurrentHashMap.newKeySet() : peers;
+            interested.add(peer);
+            return interested;
+        });
+    }
+
+    private void removeRemoteInterest(String destination, String peer) {
+        remoteInterest.computeIfPresent(destination, (key, peers) -> {
+            peers.remove(peer);
+            return peers.isEmpty() ? null : peers;
+        });
+    }
+
+    // ---- local subscription tracking
+
+    @EventListener
+    public void onSubscribe(SessionSubscribeEvent event) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        String destination = accessor.getDestination();
+        if (destination == null || !destination.startsWith(destinationPrefix)
+                || accessor.getSessionId() == null || accessor.getSubscriptionId() == null) {
+            return;
+        }
+        sessionSubscriptions.computeIfAbsent(accessor.getSessionId(), sessionId -> new ConcurrentHashMap<>())
+                .put(accessor.getSubscriptionId(), destination);
+        // announce inside compute so interest changes for one destination reach peers in order
+        localSubscribers.compute(destination, (key, count) -> {
+            if (count == null) {
+                announce(destination, true);
+                return 1;
+            }
+            return count + 1;
+        });
+    }
+
+    @EventListener
+    public void onUnsubscribe(SessionUnsubscribeEvent event) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        Map<String, String> subscriptions = sessionSubscriptions.get(accessor.getSessionId());
+        if (subscriptions != null && accessor.getSubscriptionId() != null) {
+            String destination = subscriptions.remove(accessor.getSubscriptionId());
+            if (destination != null) {
+                releaseLocal(destination);
+            }
+        }
+    }
+
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        Map<String, String> subscriptions = sessionSubscriptions.remove(event.getSessionId());
+        if (subscriptions != null) {
+            subscriptions.values().forEach(this::releaseLocal);
+        }
+    }
+
+    private void releaseLocal(String destination) {
+        localSubscribers.computeIfPresent(destination, (key, count) -> {
+            if (count == 1) {
+                announce(destination, false);
+                return null;
+            }
+            return count - 1;
+        });
+    }
+
+    private void announce(String destination, boolean interested) {
+        ClusterFrame frame = ClusterFrame.interest(destination, interested);
+        for (String peer : transport.peers()) {
+            transport.send(peer, frame);
+        }
+    }
+
+    public long forwardedFrames() {
+        return forwardedFrames.sum();
+    }
+
+    public long receivedFrames() {
+        return receivedFrames.sum();
+    }
+
+    public int localDestinations() {
+        return localSubscribers.size();
+    }
+
+    public int remoteDestinations() {
+        return remoteInterest.size();
+    }
+}
@@ -0,0 +1,31 @@
+package com.substring.chat.cluster;
+
+/**
+ * Unit of node-to-node traffic. PUBLISH carries an already serialized broker payload for a destination;
+ * INTEREST/UNINTEREST tell a peer whether this node has local subscribers for a destination;
+ * HELLO opens a link and carries the sender's advertised address in {@code destination} and, over TCP, the
+ * proof that the sender knows the cluster secret in {@code payload}.
+ */
+public record ClusterFrame(Type type, String destination, String contentType, byte[] payload) {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    public enum Type {
+        HELLO,
+        INTEREST,
+        UNINTEREST,
+        PUBLISH
+    }
+
+    public static ClusterFrame hello(String advertisedAddress, byte[] proof) {
+        return new ClusterFrame(Type.HELLO, advertisedAddress, "", proof);
+    }
+
+    public static ClusterFrame interest(String destination, boolean interested) {
+        return new ClusterFrame(interested ? Type.INTEREST : Type.UNINTEREST, destination, "", EMPTY);
+    }
+
+    public static ClusterFrame publish(String destination, String contentType, byte[] payload) {
+        return new ClusterFrame(Type.PUBLISH, destination, contentType == null ? "" : contentType, payload);
+    }
+}
@@ -0,0 +1,33 @@
+package com.substring.chat.cluster;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Moves {@link ClusterFrame}s between nodes. Implementations own connection management and batching;
+ * frames queued for one peer must be delivered in order.
+ */
+public interface ClusterTransport {
+
+    void start(Listener listener);
+
+    void stop();
+
+    /** Queues a frame for one peer; returns false if it had to be dropped. */
+    boolean send(String peer, ClusterFrame frame);
+
+    Collection<String> peers();
+
+    String localAddress();
+
+    interface Listener {
+
+        /** An outbound link to the peer is up; the peer expects a full interest snapshot. */
+        void onPeerConnected(String peer);
+
+        /** The peer's inbound link went away; anything learned from it is stale. */
+        void onPeerLost(String peer);
+
+        void onFrames(String peer, List<ClusterFrame> frames);
+    }
+}
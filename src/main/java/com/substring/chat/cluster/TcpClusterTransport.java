@@ -0,0 +1,400 @@
+package com.substring.chat.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plain TCP transport with a static peer list. Every node dials each peer for its outbound traffic and
+ * accepts the peers' dials for inbound traffic. Frames for a peer are queued and written in batches:
+ * whatever has accumulated while the previous batch was on the wire goes out in the next one.
+ *
+ * <p>Links are authenticated with a shared secret: the accepting node sends a random challenge and the
+ * dialing node's HELLO must carry its HMAC-SHA256 over the challenge and the advertised address. Traffic
+ * itself is not encrypted, so bind to a private interface. A batch that breaks the limits below closes
+ * the link.
+ *
+ * <p>Wire format per batch: {@code int count}, then per frame {@code byte type, UTF destination,
+ * UTF contentType, int length, byte[length] payload}.
+ */
+public class TcpClusterTransport implements ClusterTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(TcpClusterTransport.class);
+
+    private static final ClusterFrame.Type[] TYPES = ClusterFrame.Type.values();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int CHALLENGE_BYTES = 32;
+
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5_000;
+
+    // a well-behaved peer sends at most its cluster.max-batch frames per batch
+    private static final int MAX_FRAMES_PER_BATCH = 4096;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String bindAddress;
+    private final int bindPort;
+    private final String advertisedAddress;
+    private final List<String> peers;
+    private final int maxBatch;
+    private final int queueCapacity;
+    private final byte[] secret;
+    private final int maxPayload;
+
+    private final Map<String, BlockingQueue<ClusterFrame>> outboundQueues = new ConcurrentHashMap<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<Socket> sockets = new ArrayList<>();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder sentBatches = new LongAdder();
+    private final LongAdder sentFrames = new LongAdder();
+
+    // peer -> generation of its current inbound link; older links of that peer no longer speak for it
+    private final Map<String, Long> inboundLinks = new ConcurrentHashMap<>();
+    private final Map<String, Object> peerLocks = new ConcurrentHashMap<>();
+    private final AtomicLong linkGenerations = new AtomicLong();
+
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    private Listener listener;
+
+    public TcpClusterTransport(String bindAddress, int bindPort, String advertisedAddress, List<String> peers,
+            int maxBatch, int queueCapacity, String secret, int maxPayload) {
+        this.bindAddress = bindAddress;
+        this.bindPort = bindPort;
+        this.advertisedAddress = advertisedAddress;
+        this.peers = List.copyOf(peers);
+        this.maxBatch = maxBatch;
+        this.queueCapacity = queueCapacity;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.maxPayload = maxPayload;
+    }
+
+    @Override
+    public synchronized void start(Listener listener) {
+        this.listener = listener;
+        running = true;
+        try {
+            serverSocket = new ServerSocket(bindPort, 50, InetAddress.getByName(bindAddress));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot bind cluster address " + bindAddress + ":" + bindPort, e);
+        }
+        startThread("cluster-accept", this::acceptLoop);
+        for (String peer : peers) {
+            outboundQueues.put(peer, new LinkedBlockingQueue<>(queueCapacity));
+            startThread("cluster-out-" + peer, () -> outboundLoop(peer));
+        }
+        log.info("Cluster transport listening on {}:{} as {}, peers {}", bindAddress, bindPort, advertisedAddress, peers);
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        closeQuietly(serverSocket);
+        synchronized (sockets) {
+            sockets.forEach(TcpClusterTransport::closeQuietly);
+        }
+        synchronized (threads) {
+            threads.forEach(Thread::interrupt);
+        }
+    }
+
+    @Override
+    public boolean send(String peer, ClusterFrame frame) {
+        BlockingQueue<ClusterFrame> queue = outboundQueues.get(peer);
+        if (queue == null || !queue.offer(frame)) {
+            droppedFrames.increment();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Collection<String> peers() {
+        return peers;
+    }
+
+    @Override
+    public String localAddress() {
+        return advertisedAddress;
+    }
+
+    public long droppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    public double averageBatchSize() {
+        long batches = sentBatches.sum();
+        return batches == 0 ? 0 : (double) sentFrames.sum() / batches;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                track(socket);
+                // per-link reader, ends when the link closes
+                Thread.ofPlatform()
+                        .name("cluster-in-" + socket.getRemoteSocketAddress())
+                        .daemon()
+                        .start(() -> inboundLoop(socket));
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("Cluster accept failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void inboundLoop(Socket socket) {
+        String peer = null;
+        long generation = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE))) {
+            byte[] challenge = new byte[CHALLENGE_BYTES];
+            RANDOM.nextBytes(challenge);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(challenge);
+            out.flush();
+
+            List<ClusterFrame> frames = readBatch(in, maxPayload);
+            ClusterFrame hello = frames.isEmpty() ? null : frames.get(0);
+            if (hello == null || hello.type() != ClusterFrame.Type.HELLO
+                    || !MessageDigest.isEqual(hello.payload(), proof(challenge, hello.destination()))) {
+                log.warn("Cluster link from {} failed authentication", socket.getRemoteSocketAddress());
+                return;
+            }
+            // send() queues by the configured address, so a link under any other name would only drop frames
+            if (!peers.contains(hello.destination())) {
+                log.warn("Cluster link from {} advertises {}, which is not one of the configured peers {}",
+                        socket.getRemoteSocketAddress(), hello.destination(), peers);
+                return;
+            }
+            socket.setSoTimeout(0);
+            peer = hello.destination();
+            generation = linkGenerations.incrementAndGet();
+            log.info("Cluster peer {} connected", peer);
+            // the HELLO goes to the listener too, so it drops what the peer's previous link told it
+            boolean opening = true;
+            while (running && deliver(peer, generation, frames, opening)) {
+                opening = false;
+                frames = readBatch(in, maxPayload);
+            }
+        } catch (EOFException e) {
+            // peer closed the link
+        } catch (IOException e) {
+            if (running) {
+                log.warn("Cluster link from {} failed: {}", peer == null ? socket.getRemoteSocketAddress() : peer,
+                        e.getMessage());
+            }
+        } finally {
+            untrack(socket);
+            if (peer != null) {
+                synchronized (peerLock(peer)) {
+                    // a reconnect may already have replaced this link; then its state is not ours to clear
+                    if (inboundLinks.remove(peer, generation)) {
+                        listener.onPeerLost(peer);
+                    }
+                }
+            }
+        }
+    }
+
+    // hands frames of one link to the listener unless a newer link of the same peer has taken over
+    private boolean deliver(String peer, long generation, List<ClusterFrame> frames, boolean opening) {
+        synchronized (peerLock(peer)) {
+            if (opening) {
+                inboundLinks.put(peer, generation);
+            } else if (inboundLinks.getOrDefault(peer, -1L) != generation) {
+                log.info("Cluster link of {} replaced by a newer one", peer);
+                return false;
+            }
+            if (!frames.isEmpty()) {
+                listener.onFrames(peer, frames);
+            }
+            return true;
+        }
+    }
+
+    private Object peerLock(String peer) {
+        return peerLocks.computeIfAbsent(peer, key -> new Object());
+    }
+
+    private byte[] proof(byte[] challenge, String address) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(challenge);
+            return mac.doFinal(address.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    private void outboundLoop(String peer) {
+        BlockingQueue<ClusterFrame> queue = outboundQueues.get(peer);
+        List<ClusterFrame> batch = new ArrayList<>(maxBatch);
+        long backoffMillis = 100;
+
+        while (running) {
+            Socket socket = null;
+            try {
+                socket = connect(peer);
+                track(socket);
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                byte[] challenge = new byte[CHALLENGE_BYTES];
+                new DataInputStream(socket.getInputStream()).readFully(challenge);
+                socket.setSoTimeout(0);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+                // anything queued while disconnected predates the snapshot the peer is about to get
+                queue.clear();
+                writeBatch(out, List.of(ClusterFrame.hello(advertisedAddress, proof(challenge, advertisedAddress))));
+                out.flush();
+                backoffMillis = 100;
+                listener.onPeerConnected(peer);
+
+                while (running) {
+                    ClusterFrame first = queue.take();
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatch - 1);
+                    writeBatch(out, batch);
+                    out.flush();
+                    sentBatches.increment();
+                    sentFrames.add(batch.size());
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                batch.clear();
+                if (running) {
+                    log.debug("Cluster peer {} unreachable: {}", peer, e.getMessage());
+                }
+            } finally {
+                untrack(socket);
+                closeQuietly(socket);
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoffMillis = Math.min(backoffMillis * 2, 5_000);
+        }
+    }
+
+    private static Socket connect(String peer) throws IOException {
+        int separator = peer.lastIndexOf(':');
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(peer.substring(0, separator),
+                Integer.parseInt(peer.substring(separator + 1))), 2_000);
+        return socket;
+    }
+
+    static void writeBatch(DataOutputStream out, List<ClusterFrame> frames) throws IOException {
+        out.writeInt(frames.size());
+        for (ClusterFrame frame : frames) {
+            out.writeByte(frame.type().ordinal());
+            out.writeUTF(frame.destination());
+            out.writeUTF(frame.contentType());
+            out.writeInt(frame.payload().length);
+            out.write(frame.payload());
+        }
+    }
+
+    /**
+     * Reads one batch, refusing anything a well-behaved peer would not send: too many frames, a payload over
+     * {@code maxPayload} bytes or an unknown frame type.
+     */
+    static List<ClusterFrame> readBatch(DataInputStream in, int maxPayload) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_FRAMES_PER_BATCH) {
+            throw new ProtocolException("Cluster batch of " + count + " frames");
+        }
+        List<ClusterFrame> frames = new ArrayList<>(Math.min(count, 256));
+        for (int i = 0; i < count; i++) {
+            int type = in.readUnsignedByte();
+            if (type >= TYPES.length) {
+                throw new ProtocolException("Unknown cluster frame type " + type);
+            }
+            String destination = in.readUTF();
+            String contentType = in.readUTF();
+            int length = in.readInt();
+            if (length < 0 || length > maxPayload) {
+                throw new ProtocolException("Cluster frame payload of " + length + " bytes");
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            frames.add(new ClusterFrame(TYPES[type], destination, contentType, payload));
+        }
+        return frames;
+    }
+
+    private void startThread(String name, Runnable task) {
+        Thread thread = Thread.ofPlatform().name(name).daemon().unstarted(task);
+        synchronized (threads) {
+            threads.add(thread);
+        }
+        thread.start();
+    }
+
+    private void track(Socket socket) {
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+    }
+
+    private void untrack(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        synchronized (sockets) {
+            sockets.remove(socket);
+        }
+        closeQuietly(socket);
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // nothing useful to do while shutting a link down
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.substring.chat.config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.regex.Pattern;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.simp.user.SimpSession;
+import org.springframework.messaging.simp.user.SimpSubscription;
+import org.springframework.messaging.simp.user.SimpUser;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.messaging.support.AbstractSubscribableChannel;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.socket.config.WebSocketMessageBrokerStats;
+import org.springframework.web.socket.messaging.SubProtocolWebSocketHandler;
+
+import com.substring.chat.cluster.ClusterFanout;
+import com.substring.chat.cluster.ClusterTransport;
+import com.substring.chat.cluster.TcpClusterTransport;
+import com.substring.chat.search.SearchIndex;
+import com.substring.chat.service.ChatMembershipCache;
+import com.substring.chat.service.MessageWriteBatcher;
+import com.substring.chat.service.RecentMessageCache;
+import com.substring.chat.websocket.BinaryFrameEncoder;
+import com.substring.chat.websocket.ChatLaneExecutor;
+import com.substring.chat.websocket.OutboundFlowControl;
+import com.substring.chat.websocket.SharedFrameFanout;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Registers the statistics the chat pipeline already keeps as meters. Timers and auth-failure counters
+ * are recorded where the work happens, Mongo command latency per collection comes from Boot's command
+ * listener ({@code mongodb.driver.commands}); all of it is scraped from {@code /actuator/prometheus}.
+ */
+@Configuration
+public class MetricsConfig {
+
+    // chat ids and other identifiers in destinations, so subscriptions are counted per destination kind
+    private static final Pattern ID_SEGMENT = Pattern.compile("/([0-9a-fA-F]{24}|[0-9a-fA-F-]{36}|\\d+)(?=/|$)");
+
+    @Value("${metrics.websocket.subscriptions-refresh-seconds:15}")
+    private long subscriptionsRefreshSeconds;
+
+    @Bean
+    public MeterBinder webSocketMetrics(WebSocketMessageBrokerStats brokerStats,
+            @Qualifier("clientInboundChannel") AbstractSubscribableChannel clientInboundChannel,
+            @Qualifier("clientOutboundChannel") AbstractSubscribableChannel clientOutboundChannel,
+            @Qualifier("brokerChannel") AbstractSubscribableChannel brokerChannel,
+            OutboundFlowControl flowControl,
+            SharedFrameFanout sharedFrameFanout,
+            BinaryFrameEncoder binaryFrameEncoder) {
+        return registry -> {
+            sessionGauge(registry, brokerStats, "websocket", SubProtocolWebSocketHandler.Stats::getWebSocketSessions);
+            sessionGauge(registry, brokerStats, "http_streaming", SubProtocolWebSocketHandler.Stats::getHttpStreamingSessions);
+            sessionGauge(registry, brokerStats, "http_polling", SubProtocolWebSocketHandler.Stats::getHttpPollingSessions);
+            closedSessionCounter(registry, brokerStats, "send_limit", SubProtocolWebSocketHandler.Stats::getLimitExceededSessions);
+            closedSessionCounter(registry, brokerStats, "transport_error", SubProtocolWebSocketHandler.Stats::getTransportErrorSessions);
+            closedSessionCounter(registry, brokerStats, "no_messages", SubProtocolWebSocketHandler.Stats::getNoMessagesReceivedSessions);
+            FunctionCounter.builder("websocket.sessions.closed", flowControl, OutboundFlowControl::slowConsumerDisconnects)
+                    .tag("reason", "slow_consumer")
+                    .register(registry);
+            Gauge.builder("websocket.sessions.binary", binaryFrameEncoder, BinaryFrameEncoder::binarySessions)
+                    .description("Native sessions receiving CBOR frames")
+                    .register(registry);
+
+            Map<String, AbstractSubscribableChannel> channels = new LinkedHashMap<>();
+            channels.put("inbound", clientInboundChannel);
+            channels.put("outbound", clientOutboundChannel);
+            channels.put("broker", brokerChannel);
+            channelGauges(registry, channels);
+
+            Gauge.builder("websocket.outbound.queued", flowControl, OutboundFlowControl::totalQueuedBytes)
+                    .description("Bytes waiting in per-session outbound queues")
+                    .baseUnit("bytes")
+                    .register(registry);
+            Gauge.builder("websocket.outbound.queued.max", flowControl, OutboundFlowControl::maxSessionQueuedBytes)
+                    .description("Largest single-session outbound queue")
+                    .baseUnit("bytes")
+                    .register(registry);
+            FunctionCounter.builder("websocket.outbound.coalesced", flowControl, OutboundFlowControl::coalescedFrames)
+                    .description("Ephemeral frames replaced by a newer frame for the same destination")
+                    .register(registry);
+            dropCounter(registry, "outbound", flowControl, OutboundFlowControl::droppedFrames);
+
+            FunctionCounter.builder("websocket.frames.encoded", sharedFrameFanout, SharedFrameFanout::encodedFrames)
+                    .register(registry);
+            FunctionCounter.builder("websocket.frames.shared", sharedFrameFanout, SharedFrameFanout::deliveredFrames)
+                    .description("Broadcast frames delivered from a shared encoding")
+                    .register(registry);
+        };
+    }
+
+    @Bean
+    public SubscriptionMetrics subscriptionMetrics(SimpUserRegistry userRegistry,
+            @Qualifier("messageBrokerTaskScheduler") TaskScheduler scheduler) {
+        return new SubscriptionMetrics(userRegistry, scheduler, Duration.ofSeconds(subscriptionsRefreshSeconds));
+    }
+
+    @Bean
+    public MeterBinder chatPipelineMetrics(ChatLaneExecutor chatLanes,
+            MessageWriteBatcher writeBatcher,
+            ChatMembershipCache membershipCache,
+            RecentMessageCache recentMessages,
+            SearchIndex searchIndex,
+            ObjectProvider<ClusterFanout> clusterFanout,
+            ObjectProvider<ClusterTransport> clusterTransport) {
+        return registry -> {
+            Gauge.builder("chat.lanes.queued", chatLanes, ChatLaneExecutor::totalQueued)
+                    .description("Inbound tasks waiting in per-chat lanes")
+                    .register(registry);
+            dropCounter(registry, "lane", chatLanes, ChatLaneExecutor::rejectedTasks);
+
+            Gauge.builder("message.batch.queued", writeBatcher, batcher -> batcher.stats().queueDepth())
+                    .register(registry);
+            FunctionCounter.builder("message.batch.flushes", writeBatcher, batcher -> batcher.stats().batches())
+                    .register(registry);
+            FunctionCounter.builder("message.batch.messages", writeBatcher, batcher -> batcher.stats().messages())
+                    .register(registry);
+            dropCounter(registry, "batch", writeBatcher, batcher -> batcher.stats().rejected());
+
+            // same names and tags as Micrometer's Caffeine binder
+            Tags cacheTags = Tags.of("cache", "chat-membership");
+            Gauge.builder("cache.size", membershipCache, ChatMembershipCache::size).tags(cacheTags).register(registry);
+            FunctionCounter.builder("cache.gets", membershipCache, cache -> cache.stats().hitCount())
+                    .tags(cacheTags).tag("result", "hit").register(registry);
+            FunctionCounter.builder("cache.gets", membershipCache, cache -> cache.stats().missCount())
+                    .tags(cacheTags).tag("result", "miss").register(registry);
+            FunctionCounter.builder("cache.evictions", membershipCache, cache -> cache.stats().evictionCount())
+                    .tags(cacheTags).register(registry);
+
+            Tags recentTags = Tags.of("cache", "recent-messages");
+            Gauge.builder("cache.size", recentMessages, RecentMessageCache::size).tags(recentTags).register(registry);
+            FunctionCounter.builder("cache.gets", recentMessages, RecentMessageCache::hitCount)
+                    .tags(recentTags).tag("result", "hit").register(registry);
+            FunctionCounter.builder("cache.gets", recentMessages, RecentMessageCache::missCount)
+                    .tags(recentTags).tag("result", "miss").register(registry);
+            FunctionCounter.builder("cache.evictions", recentMessages, RecentMessageCache::evictionCount)
+                    .tags(recentTags).register(registry);
+            Gauge.builder("cache.memory", recentMessages, RecentMessageCache::memoryBytes)
+                    .description("Estimated size of the cached recent messages")
+                    .tags(recentTags)
+                    .baseUnit("bytes")
+                    .register(registry);
+
+            Gauge.builder("search.index.documents", searchIndex, SearchIndex::documentCount).register(registry);
+            Gauge.builder("search.index.segments", searchIndex, SearchIndex::segmentCount)
+                    .description("Segments a search reads, besides the one being filled")
+                    .register(registry);
+
+            clusterFanout.ifAvailable(fanout -> {
+                FunctionCounter.builder("cluster.frames.forwarded", fanout, ClusterFanout::forwardedFrames).register(registry);
+                FunctionCounter.builder("cluster.frames.received", fanout, ClusterFanout::receivedFrames).register(registry);
+                Gauge.builder("cluster.destinations", fanout, ClusterFanout::localDestinations).tag("side", "local").register(registry);
+                Gauge.builder("cluster.destinations", fanout, ClusterFanout::remoteDestinations).tag("side", "remote").register(registry);
+            });
+            clusterTransport.ifAvailable(transport -> {
+                if (transport instanceof TcpClusterTransport tcp) {
+                    dropCounter(registry, "cluster", tcp, TcpClusterTransport::droppedFrames);
+                }
+            });
+        };
+    }
+
+    // one counter name for every place a message or frame is given up on, by pipeline stage
+    private static <T> void dropCounter(MeterRegistry registry, String stage, T source,
+            ToDoubleFunction<T> count) {
+        FunctionCounter.builder("chat.dropped", source, count)
+                .description("Messages or frames dropped under load")
+                .tag("stage", stage)
+                .register(registry);
+    }
+
+    private static void sessionGauge(MeterRegistry registry, WebSocketMessageBrokerStats brokerStats, String transport,
+            ToIntFunction<SubProtocolWebSocketHandler.Stats> value) {
+        Gauge.builder("websocket.sessions", brokerStats, stats -> {
+            SubProtocolWebSocketHandler.Stats sessions = stats.getWebSocketSessionStats();
+            return sessions == null ? 0 : value.applyAsInt(sessions);
+        }).tag("transport", transport).register(registry);
+    }
+
+    private static void closedSessionCounter(MeterRegistry registry, WebSocketMessageBrokerStats brokerStats,
+            String reason, ToIntFunction<SubProtocolWebSocketHandler.Stats> value) {
+        FunctionCounter.builder("websocket.sessions.closed", brokerStats, stats -> {
+            SubProtocolWebSocketHandler.Stats sessions = stats.getWebSocketSessionStats();
+            return sessions == null ? 0 : value.applyAsInt(sessions);
+        }).tag("reason", reason).register(registry);
+    }
+
+    // queue depth only exists for pooled executors; virtual-thread executors start every task immediately.
+    // Boot runs both client channels on applicationTaskExecutor, so a shared pool is registered once,
+    // tagged with every channel it serves
+    private static void channelGauges(MeterRegistry registry, Map<String, AbstractSubscribableChannel> channels) {
+        Map<ThreadPoolExecutor, List<String>> pools = new IdentityHashMap<>();
+        channels.forEach((name, channel) -> {
+            if (channel instanceof ExecutorSubscribableChannel executorChannel) {
+                ThreadPoolExecutor pool = threadPool(executorChannel.getExecutor());
+                if (pool != null) {
+                    pools.computeIfAbsent(pool, key -> new ArrayList<>()).add(name);
+                }
+            }
+        });
+        pools.forEach((pool, names) -> {
+            String channel = String.join(",", names);
+            Gauge.builder("websocket.channel.queued", pool, executor -> executor.getQueue().size())
+                    .tag("channel", channel)
+                    .register(registry);
+            Gauge.builder("websocket.channel.active", pool, ThreadPoolExecutor::getActiveCount)
+                    .tag("channel", channel)
+                    .register(registry);
+        });
+    }
+
+    private static ThreadPoolExecutor threadPool(Executor executor) {
+        if (executor instanceof ThreadPoolTaskExecutor taskExecutor) {
+            return taskExecutor.getThreadPoolExecutor();
+        }
+        return executor instanceof ThreadPoolExecutor pool ? pool : null;
+    }
+
+    /**
+     * Subscription counts by destination kind. Walking every session is too costly per scrape, so one
+     * scheduled task refreshes the rows of every registry this is bound to.
+     */
+    public static final class SubscriptionMetrics implements MeterBinder, DisposableBean {
+
+        private final SimpUserRegistry userRegistry;
+
+        private final List<MultiGauge> gauges = new CopyOnWriteArrayList<>();
+
+        private final ScheduledFuture<?> refresh;
+
+        SubscriptionMetrics(SimpUserRegistry userRegistry, TaskScheduler scheduler, Duration refreshInterval) {
+            this.userRegistry = userRegistry;
+            this.refresh = scheduler.scheduleAtFixedRate(this::refresh, refreshInterval);
+        }
+
+        @Override
+        public void bindTo(MeterRegistry registry) {
+            gauges.add(MultiGauge.builder("websocket.subscriptions")
+                    .description("Subscriptions of authenticated sessions, by destination with ids masked")
+                    .register(registry));
+        }
+
+        @Override
+        public void destroy() {
+            refresh.cancel(false);
+        }
+
+        private void refresh() {
+            if (gauges.isEmpty()) {
+                return;
+            }
+            List<MultiGauge.Row<?>> rows = subscriptionRows(userRegistry);
+            for (MultiGauge gauge : gauges) {
+                gauge.register(rows, true);
+            }
+        }
+    }
+
+    private static List<MultiGauge.Row<?>> subscriptionRows(SimpUserRegistry userRegistry) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (SimpUser user : userRegistry.getUsers()) {
+            for (SimpSession session : user.getSessions()) {
+                for (SimpSubscription subscription : session.getSubscriptions()) {
+                    String destination = ID_SEGMENT.matcher(subscription.getDestination()).replaceAll("/{id}");
+                    counts.merge(destination, 1, Integer::sum);
+                }
+            }
+        }
+        List<MultiGauge.Row<?>> rows = new ArrayList<>(counts.size());
+        counts.forEach((destination, count) -> rows.add(MultiGauge.Row.of(Tags.of("destination", destination), count)));
+        return rows;
+    }
+}
@@ -0,0 +1,155 @@
+package com.substring.chat.config;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.health.contributor.Health;
+import org.springframework.boot.health.contributor.HealthIndicator;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.Fields;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.data.mongodb.core.index.MongoPersistentEntityIndexResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.substring.chat.model.Chat;
+import com.substring.chat.model.Message;
+import com.substring.chat.model.User;
+
+/**
+ * Creates the indexes declared on our documents ({@code @Indexed}, {@code @CompoundIndex}) once the
+ * application is up, after backfilling fields those indexes rely on. Unlike Spring Data's auto index
+ * creation, a missing database only logs a warning.
+ * <p>
+ * Unique indexes are different: the {@code pairKey} one is all that keeps a pair of users to a single
+ * private chat. If one cannot be created startup fails, and until they all exist (say the database was
+ * down at startup) the {@code mongoIndexes} health check reports DOWN.
+ */
+@Configuration
+public class MongoIndexConfig {
+
+    private static final Logger log = LoggerFactory.getLogger(MongoIndexConfig.class);
+
+    private static final List<Class<?>> INDEXED_DOCUMENTS = List.of(User.class, Chat.class, Message.class);
+
+    private static final int BACKFILL_BATCH_SIZE = 1000;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MongoMappingContext mappingContext;
+
+    @Value("${mongo.ensure-indexes:true}")
+    private boolean ensureIndexes;
+
+    private volatile boolean uniqueIndexesReady;
+
+    @Bean
+    public HealthIndicator mongoIndexesHealthIndicator() {
+        return () -> !ensureIndexes || uniqueIndexesReady
+                ? Health.up().build()
+                : Health.down().withDetail("reason", "unique indexes not created").build();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void ensureIndexes() {
+        if (!ensureIndexes) {
+            return;
+        }
+
+        try {
+            backfillChatActivity();
+        } catch (DataAccessResourceFailureException e) {
+            log.warn("MongoDB unavailable, skipping index creation: {}", e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            log.warn("Could not backfill chat activity times: {}", e.getMessage());
+        }
+
+        try {
+            backfillUserSearchFields();
+        } catch (RuntimeException e) {
+            log.warn("Could not backfill user search fields: {}", e.getMessage());
+        }
+
+        IndexResolver resolver = new MongoPersistentEntityIndexResolver(mappingContext);
+        for (Class<?> documentType : INDEXED_DOCUMENTS) {
+            IndexOperations indexOps = mongoTemplate.indexOps(documentType);
+            for (IndexDefinition index : resolver.resolveIndexFor(documentType)) {
+                try {
+                    indexOps.createIndex(index);
+                } catch (DataAccessResourceFailureException e) {
+                    log.warn("MongoDB unavailable, skipping index creation: {}", e.getMessage());
+                    return;
+                } catch (RuntimeException e) {
+                    if (isUnique(index)) {
+                        // e.g. duplicate pair keys from before the index existed; running without it lets them grow
+                        throw new IllegalStateException("Could not create unique index " + index.getIndexKeys()
+                                + " on " + documentType.getSimpleName(), e);
+                    }
+                    log.warn("Could not ensure index {} for {}: {}",
+                            index.getIndexKeys(), documentType.getSimpleName(), e.getMessage());
+                }
+            }
+        }
+        uniqueIndexesReady = true;
+    }
+
+    private static boolean isUnique(IndexDefinition index) {
+        return Boolean.TRUE.equals(index.getIndexOptions().get("unique"));
+    }
+
+    // Chats created before inbox ordering existed sort by their creation time.
+    private void backfillChatActivity() {
+        mongoTemplate.updateMulti(
+                Query.query(Criteria.where("lastActivityAt").exists(false)),
+                AggregationUpdate.update().set("lastActivityAt").toValueOf(Fields.field("createdAt")),
+                Chat.class);
+    }
+
+    // Users who signed up before directory search existed, or before email search was case-insensitive.
+    // Lowered in Java the way signup does it: Mongo's $toLower only folds ASCII.
+    private void backfillUserSearchFields() {
+        Query missing = Query.query(new Criteria().orOperator(
+                Criteria.where("searchName").exists(false),
+                Criteria.where("searchEmail").exists(false)));
+        missing.fields().include("name").include("email");
+
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, User.class);
+        int batched = 0;
+        try (Stream<User> users = mongoTemplate.stream(missing, User.class)) {
+            Iterator<User> iterator = users.iterator();
+            while (iterator.hasNext()) {
+                User user = iterator.next();
+                bulk.updateOne(Query.query(Criteria.where("_id").is(user.getId())), new Update()
+                        .set("searchName", User.searchNameOf(user.getName()))
+                        .set("searchEmail", User.searchEmailOf(user.getEmail())));
+                if (++batched == BACKFILL_BATCH_SIZE) {
+                    bulk.execute();
+                    bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, User.class);
+                    batched = 0;
+                }
+            }
+        }
+        if (batched > 0) {
+            bulk.execute();
+        }
+    }
+}
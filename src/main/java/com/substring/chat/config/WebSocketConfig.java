@@ -3,6 +3,7 @@ package com.substring.chat.config;
 import java.util.Collections;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
@@ -11,14 +12,26 @@ import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageHeaderAccessor;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
 
+import com.substring.chat.cluster.ClusterFanout;
+import com.substring.chat.security.AuthFailures;
+import com.substring.chat.security.CustomUserDetailsService;
 import com.substring.chat.security.JwtUtil;
+import com.substring.chat.security.VerifiedToken;
+import com.substring.chat.websocket.BinaryFrameEncoder;
+import com.substring.chat.websocket.NativeHandshakeHandler;
+import com.substring.chat.websocket.OutboundFlowControl;
+import com.substring.chat.websocket.SharedFrameFanout;
+
+import io.jsonwebtoken.JwtException;
 
 @Configuration
 @EnableWebSocketMessageBroker
@@ -27,10 +40,52 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
     @Autowired
     private JwtUtil jwtUtil;
 
+    @Autowired
+    private CustomUserDetailsService userDetailsService;
+
+    @Autowired
+    private AuthFailures authFailures;
+
+    @Autowired(required = false)
+    private ClusterFanout clusterFanout;
+
+    @Autowired
+    private OutboundFlowControl outboundFlowControl;
+
+    @Autowired
+    private BinaryFrameEncoder binaryFrameEncoder;
+
+    @Autowired
+    private SharedFrameFanout sharedFrameFanout;
+
+    @Value("${websocket.inbound.preserve-receive-order:true}")
+    private boolean preserveReceiveOrder;
+
+    @Value("${websocket.outbound.preserve-publish-order:true}")
+    private boolean preservePublishOrder;
+
+    @Value("${websocket.outbound.send-time-limit-ms:10000}")
+    private int sendTimeLimitMs;
+
+    @Value("${websocket.outbound.buffer-size-limit:524288}")
+    private int sendBufferSizeLimit;
+
+    @Value("${websocket.inbound.message-size-limit:65536}")
+    private int messageSizeLimit;
+
+    @Value("${websocket.native.permessage-deflate:true}")
+    private boolean permessageDeflate;
+
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
-        config.enableSimpleBroker("/topic");
+        // /queue only carries per-session errors, sent through /user destinations
+        config.enableSimpleBroker("/topic", "/queue");
         config.setApplicationDestinationPrefixes("/app");
+        // keep per-session delivery in publish order so chat order survives the outbound pool
+        config.setPreservePublishOrder(preservePublishOrder);
+        if (clusterFanout != null) {
+            config.configureBrokerChannel().interceptors(clusterFanout);
+        }
     }
 
     @Override
@@ -38,26 +93,58 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
         registry.addEndpoint("/ws")
                 .setAllowedOriginPatterns("*")
                 .withSockJS();
+        // plain WebSocket for clients that don't need the SockJS fallbacks; may negotiate CBOR payloads
+        NativeHandshakeHandler nativeHandshake = new NativeHandshakeHandler(permessageDeflate);
+        registry.addEndpoint("/ws-native")
+                .setAllowedOriginPatterns("*")
+                .setHandshakeHandler(nativeHandshake)
+                .addInterceptors(nativeHandshake);
+        // hand each session's frames to the application in the order the client sent them
+        registry.setPreserveReceiveOrder(preserveReceiveOrder);
     }
     
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        // Spring applies these limits to the session our decorator hands it. With outbound flow control on that
+        // session never blocks, so they never trigger; flow control enforces the same two properties itself
+        registration.setSendTimeLimit(sendTimeLimitMs)
+                .setSendBufferSizeLimit(sendBufferSizeLimit)
+                .setMessageSizeLimit(messageSizeLimit)
+                .addDecoratorFactory(outboundFlowControl::decorate);
+    }
+
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        // binary re-encoding first, then frames are encoded once per publication and shared across sessions
+        registration.interceptors(binaryFrameEncoder, sharedFrameFanout);
+    }
+
     @Override
     public void configureClientInboundChannel(ChannelRegistration registration) {
         registration.interceptors(new ChannelInterceptor() {
             @Override
             public Message<?> preSend(Message<?> message, MessageChannel channel) {
                 
-                StompHeaderAccessor accessor = StompHeaderAccessor.wrap(message);
+                // the session's own accessor, so the user set below sticks to the session
+                StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
                 
-                if (SimpMessageType.CONNECT.equals(accessor.getMessageType())) {
+                if (accessor != null && SimpMessageType.CONNECT.equals(accessor.getMessageType())) {
+                    binaryFrameEncoder.negotiate(accessor);
                     String authToken = accessor.getFirstNativeHeader("Authorization");
                     if (authToken != null && authToken.startsWith("Bearer ")) {
                         String token = authToken.substring(7);
-                        String userId = jwtUtil.extractUserId(token);
-                        
-                        if (userId != null && jwtUtil.validateToken(token, userId)) {
+                        try {
+                            VerifiedToken verified = jwtUtil.verifyToken(token);
+                            if (userDetailsService.isRevoked(verified.userId())) {
+                                authFailures.record("stomp", AuthFailures.REVOKED);
+                                return message;
+                            }
                             Authentication auth = new UsernamePasswordAuthenticationToken(
-                                userId, null, Collections.singletonList(new SimpleGrantedAuthority("ROLE_USER")));
+                                verified.userId(), null, Collections.singletonList(new SimpleGrantedAuthority("ROLE_USER")));
                             accessor.setUser(auth);
+                        } catch (JwtException | IllegalArgumentException e) {
+                            // leave the session unauthenticated
+                            authFailures.record("stomp", AuthFailures.INVALID_TOKEN);
                         }
                     }
                 }
@@ -0,0 +1,176 @@
+package com.substring.chat.controller;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.substring.chat.dto.AttachmentResponse;
+import com.substring.chat.dto.AttachmentUploadRequest;
+import com.substring.chat.model.Attachment;
+import com.substring.chat.service.AttachmentService;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+@RestController
+@RequestMapping("/api/attachments")
+@CrossOrigin(origins = "*")
+public class AttachmentController {
+
+    // Tomcat's sendfile request attributes: the connector writes the file region to the socket itself
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    @Autowired
+    private AttachmentService attachmentService;
+
+    // Declares an upload; send the bytes to /{attachmentId}/content
+    @PostMapping
+    public ResponseEntity<AttachmentResponse> createUpload(
+            @RequestBody AttachmentUploadRequest request,
+            Authentication authentication) {
+
+        String userId = authentication.getName();
+        return ResponseEntity.ok(attachmentService.createUpload(userId, request));
+    }
+
+    // Upload state; after an interrupted chunk, resume from "received"
+    @GetMapping("/{attachmentId}")
+    public ResponseEntity<AttachmentResponse> getUpload(
+            @PathVariable String attachmentId,
+            Authentication authentication) {
+
+        String userId = authentication.getName();
+        return ResponseEntity.ok(attachmentService.getUpload(attachmentId, userId));
+    }
+
+    // One chunk of raw bytes, streamed to the blob store without buffering the body
+    @PutMapping("/{attachmentId}/content")
+    public ResponseEntity<AttachmentResponse> uploadChunk(
+            @PathVariable String attachmentId,
+            @RequestParam long offset,
+            HttpServletRequest request,
+            Authentication authentication) throws IOException {
+
+        String userId = authentication.getName();
+        AttachmentResponse response = attachmentService.appendChunk(
+                attachmentId, userId, offset, Channels.newChannel(request.getInputStream()));
+        return ResponseEntity.ok(response);
+    }
+
+    // Download with single-range support; served by sendfile when the connector offers it
+    @GetMapping("/{attachmentId}/content")
+    public ResponseEntity<StreamingResponseBody> download(
+            @PathVariable String attachmentId,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            HttpServletRequest request,
+            Authentication authentication) {
+
+        String userId = authentication.getName();
+        Attachment attachment = attachmentService.getForDownload(attachmentId, userId);
+        String etag = "\"" + attachment.getBlobKey() + "\"";
+
+        // the content never changes under its hash, so a matching tag is always current
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+
+        long length = attachment.getSize();
+        long start = 0;
+        long end = length - 1;
+        boolean partial = false;
+        if (range != null) {
+            try {
+                List<HttpRange> ranges = HttpRange.parseRanges(range);
+                // multipart/byteranges isn't supported; several ranges get the whole file
+                if (ranges.size() == 1) {
+                    start = ranges.get(0).getRangeStart(length);
+                    end = ranges.get(0).getRangeEnd(length);
+                    partial = true;
+                }
+            } catch (IllegalArgumentException e) {
+                start = length;
+            }
+            if (start >= length || start > end) {
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length)
+                        .build();
+            }
+        }
+
+        long count = end - start + 1;
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(partial ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK)
+                .contentType(mediaType(attachment))
+                .contentLength(count)
+                .eTag(etag)
+                .cacheControl(CacheControl.maxAge(365, TimeUnit.DAYS).cachePrivate().immutable())
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .header(HttpHeaders.CONTENT_DISPOSITION, disposition(attachment).toString());
+        if (partial) {
+            response.header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        }
+
+        Path file = attachmentService.localFile(attachment);
+        if (file != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))
+                && !HttpMethod.HEAD.matches(request.getMethod())) {
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+            return response.build();
+        }
+
+        long position = start;
+        return response.body(out -> attachmentService.transferTo(attachment, position, count, Channels.newChannel(out)));
+    }
+
+    private static MediaType mediaType(Attachment attachment) {
+        try {
+            return MediaType.parseMediaType(attachment.getContentType());
+        } catch (InvalidMediaTypeException e) {
+            return MediaType.APPLICATION_OCTET_STREAM;
+        }
+    }
+
+    // media the browser can show inline; anything else (HTML, SVG, ...) is downloaded, never rendered
+    private static ContentDisposition disposition(Attachment attachment) {
+        String type = attachment.getContentType().toLowerCase(Locale.ROOT);
+        boolean inline = (type.startsWith("image/") && !type.contains("svg"))
+                || type.startsWith("video/")
+                || type.startsWith("audio/");
+        ContentDisposition.Builder builder = inline ? ContentDisposition.inline() : ContentDisposition.attachment();
+        String fileName = attachment.getFileName();
+        return (StandardCharsets.US_ASCII.newEncoder().canEncode(fileName)
+                ? builder.filename(fileName)
+                : builder.filename(fileName, StandardCharsets.UTF_8))
+                .build();
+    }
+}
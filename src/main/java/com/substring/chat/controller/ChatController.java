@@ -9,9 +9,12 @@ import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.substring.chat.dto.ChatPageResponse;
 import com.substring.chat.dto.ChatResponse;
+import com.substring.chat.model.Chat;
 import com.substring.chat.service.ChatService;
 
 @RestController
@@ -29,15 +32,26 @@ public class ChatController {
         return ResponseEntity.ok(chats);
     }
 
+    @GetMapping("/page")
+    public ResponseEntity<ChatPageResponse> getUserChatsPage(
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "20") int limit,
+            Authentication authentication) {
+        String userId = authentication.getName();
+        ChatPageResponse page = chatService.getChatsPageForUser(userId, cursor, limit);
+        return ResponseEntity.ok(page);
+    }
+
     @GetMapping("/{chatId}")
     public ResponseEntity<ChatResponse> getChatById(@PathVariable String chatId, Authentication authentication) {
         String userId = authentication.getName();
         
-        if (!chatService.isUserParticipantOfChat(chatId, userId)) {
+        Chat chat = chatService.getChatById(chatId);
+        if (!chat.getParticipants().contains(userId)) {
             return ResponseEntity.status(403).build();
         }
         
-        ChatResponse response = ChatResponse.fromChat(chatService.getChatById(chatId));
+        ChatResponse response = ChatResponse.fromChat(chat, userId);
         return ResponseEntity.ok(response);
     }
 }
\ No newline at end of file
@@ -1,8 +1,11 @@
 package com.substring.chat.controller;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.stream.Stream;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.security.core.Authentication;
@@ -15,19 +18,37 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.substring.chat.dto.MessagePageResponse;
 import com.substring.chat.dto.MessageRequest;
 import com.substring.chat.dto.MessageResponse;
+import com.substring.chat.dto.MessageSearchResponse;
+import com.substring.chat.dto.ReceiptRequest;
+import com.substring.chat.dto.ReceiptResponse;
+import com.substring.chat.dto.SyncRequest;
+import com.substring.chat.dto.SyncResponse;
+import com.substring.chat.jfr.MessageTrace;
 import com.substring.chat.model.Message;
+import com.substring.chat.service.KeysetCursor;
 import com.substring.chat.service.MessageService;
 
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.ObjectWriter;
+import tools.jackson.databind.SequenceWriter;
+
 @RestController
 @RequestMapping("/api/messages")
 @CrossOrigin(origins = "*")
 public class MessageController {
 
+    private static final int STREAM_FLUSH_EVERY = 256;
+
     @Autowired
     private MessageService messageService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
     
     @Autowired
     private SimpMessagingTemplate messagingTemplate;
@@ -38,24 +59,34 @@ public class MessageController {
             Authentication authentication) {
         
         String senderId = authentication.getName();
-        Message message = messageService.sendMessage(senderId, request);
+        MessageTrace trace = MessageTrace.start("rest");
+        Message message;
+        try {
+            message = messageService.sendMessage(senderId, request, trace);
+        } catch (RuntimeException e) {
+            trace.failed();
+            throw e;
+        }
         MessageResponse response = MessageResponse.fromMessage(message);
         
         // Publish message to WebSocket for real-time delivery
         messagingTemplate.convertAndSend("/topic/chat/" + message.getChatId(), response);
+        trace.broadcast();
         
         return ResponseEntity.ok(response);
     }
 
     @GetMapping("/{chatId}")
-    public ResponseEntity<List<MessageResponse>> getMessagesByChatId(
+    public ResponseEntity<StreamingResponseBody> getMessagesByChatId(
             @PathVariable String chatId,
             Authentication authentication) {
         
         String userId = authentication.getName();
-        List<MessageResponse> messages = messageService.getAllMessagesInChat(chatId, userId);
+        Stream<MessageResponse> messages = messageService.streamAllMessagesInChat(chatId, userId);
         
-        return ResponseEntity.ok(messages);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(writeMessages(messages, true));
     }
 
     @GetMapping("/chat/{chatId}")
@@ -71,23 +102,114 @@ public class MessageController {
         return ResponseEntity.ok(messages);
     }
 
+    @GetMapping("/chat/{chatId}/page")
+    public ResponseEntity<MessagePageResponse> getChatMessagesPage(
+            @PathVariable String chatId,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "BEFORE") KeysetCursor.Direction direction,
+            @RequestParam(defaultValue = "50") int limit,
+            Authentication authentication) {
+        
+        String userId = authentication.getName();
+        MessagePageResponse page = messageService.getChatHistoryPage(chatId, userId, cursor, direction, limit);
+        
+        return ResponseEntity.ok(page);
+    }
+
     @GetMapping("/chat/{chatId}/all")
-    public ResponseEntity<List<MessageResponse>> getAllChatMessages(
+    public ResponseEntity<StreamingResponseBody> getAllChatMessages(
             @PathVariable String chatId,
             Authentication authentication) {
         
         String userId = authentication.getName();
-        List<MessageResponse> messages = messageService.getAllMessagesInChat(chatId, userId);
+        Stream<MessageResponse> messages = messageService.streamAllMessagesInChat(chatId, userId);
         
-        return ResponseEntity.ok(messages);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(writeMessages(messages, true));
+    }
+
+    @GetMapping(value = "/chat/{chatId}/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportChatMessages(
+            @PathVariable String chatId,
+            Authentication authentication) {
+        
+        String userId = authentication.getName();
+        Stream<MessageResponse> messages = messageService.streamAllMessagesInChat(chatId, userId);
+        
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(writeMessages(messages, false));
+    }
+
+    @PostMapping("/receipts")
+    public ResponseEntity<ReceiptResponse> applyReceipt(
+            @RequestBody ReceiptRequest request,
+            Authentication authentication) {
+        
+        String userId = authentication.getName();
+        ReceiptResponse receipt = messageService.applyReceipt(userId, request);
+        
+        // One receipt event per watermark move instead of one per message
+        messagingTemplate.convertAndSend("/topic/chat/" + receipt.getChatId() + "/receipts", receipt);
+        
+        return ResponseEntity.ok(receipt);
+    }
+
+    // Reconnect catch-up: messages and receipt changes after the client's last sequence per chat
+    @PostMapping("/sync")
+    public ResponseEntity<SyncResponse> sync(
+            @RequestBody SyncRequest request,
+            Authentication authentication) {
+        
+        String userId = authentication.getName();
+        return ResponseEntity.ok(messageService.sync(userId, request));
+    }
+
+    // Full-text search across the user's chats, or one chat when chatId is given
+    @GetMapping("/search")
+    public ResponseEntity<MessageSearchResponse> search(
+            @RequestParam String q,
+            @RequestParam(required = false) String chatId,
+            @RequestParam(defaultValue = "20") int limit,
+            Authentication authentication) {
+        
+        String userId = authentication.getName();
+        return ResponseEntity.ok(messageService.search(userId, q, chatId, limit));
     }
 
     @PutMapping("/{messageId}/status")
     public ResponseEntity<Void> updateMessageStatus(
             @PathVariable String messageId,
-            @RequestParam Message.MessageStatus status) {
+            @RequestParam Message.MessageStatus status,
+            Authentication authentication) {
         
-        messageService.updateMessageStatus(messageId, status);
+        String userId = authentication.getName();
+        messageService.updateMessageStatus(messageId, status, userId);
         return ResponseEntity.ok().build();
     }
+
+    // Writes messages as they come off the cursor, either as one JSON array or as NDJSON lines.
+    private StreamingResponseBody writeMessages(Stream<MessageResponse> messages, boolean asArray) {
+        ObjectWriter writer = objectMapper.writerFor(MessageResponse.class);
+        return out -> {
+            try (messages;
+                 SequenceWriter sequence = asArray
+                         ? writer.writeValuesAsArray(out)
+                         : writer.withRootValueSeparator("\n").writeValues(out)) {
+                long written = 0;
+                Iterator<MessageResponse> iterator = messages.iterator();
+                while (iterator.hasNext()) {
+                    sequence.write(iterator.next());
+                    if (written++ % STREAM_FLUSH_EVERY == 0) {
+                        sequence.flush();
+                    }
+                }
+                if (!asArray && written > 0) {
+                    sequence.flush();
+                    out.write('\n');
+                }
+            }
+        };
+    }
 }
\ No newline at end of file
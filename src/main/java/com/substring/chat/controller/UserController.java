@@ -1,5 +1,6 @@
 package com.substring.chat.controller;
 
+import com.substring.chat.dto.UserPageResponse;
 import com.substring.chat.model.User;
 import com.substring.chat.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -24,6 +25,17 @@ public class UserController {
         return ResponseEntity.ok(users);
     }
 
+    @GetMapping("/search")
+    public ResponseEntity<UserPageResponse> searchUsers(
+            @RequestParam(required = false) String q,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "20") int limit,
+            Authentication authentication) {
+        String userId = authentication.getName();
+        UserPageResponse page = userService.searchUsers(userId, q, cursor, limit);
+        return ResponseEntity.ok(page);
+    }
+
     @GetMapping("/{userId}")
     public ResponseEntity<User> getUserById(@PathVariable String userId) {
         User user = userService.getUserById(userId);
@@ -0,0 +1,26 @@
+package com.substring.chat.dto;
+
+import com.substring.chat.model.Attachment;
+import lombok.Data;
+
+@Data
+public class AttachmentResponse {
+    private String id;
+    private String fileName;
+    private String contentType;
+    private long size;
+    // bytes staged so far; resume the upload from here
+    private long received;
+    private Attachment.AttachmentStatus status;
+    
+    public static AttachmentResponse fromAttachment(Attachment attachment, long received) {
+        AttachmentResponse response = new AttachmentResponse();
+        response.setId(attachment.getId());
+        response.setFileName(attachment.getFileName());
+        response.setContentType(attachment.getContentType());
+        response.setSize(attachment.getSize());
+        response.setReceived(received);
+        response.setStatus(attachment.getStatus());
+        return response;
+    }
+}
@@ -0,0 +1,12 @@
+package com.substring.chat.dto;
+
+import lombok.Data;
+
+@Data
+public class AttachmentUploadRequest {
+    private String fileName;
+    private String contentType;
+    private long size;
+    // optional; the upload is rejected if the stored content hashes differently
+    private String sha256;
+}
@@ -0,0 +1,13 @@
+package com.substring.chat.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ChatPageResponse {
+    // most recently active first
+    private List<ChatResponse> chats;
+    private String nextCursor;
+    private boolean hasMore;
+}
@@ -14,6 +14,9 @@ public class ChatResponse {
     private LocalDateTime createdAt;
     private String lastMessage;
     private LocalDateTime lastMessageTime;
+    private String lastMessageSenderId;
+    private LocalDateTime lastActivityAt;
+    private long unreadCount;
     
     public static ChatResponse fromChat(Chat chat) {
         ChatResponse response = new ChatResponse();
@@ -21,6 +24,18 @@ public class ChatResponse {
         response.setParticipants(chat.getParticipants());
         response.setChatType(chat.getChatType());
         response.setCreatedAt(chat.getCreatedAt());
+        response.setLastMessage(chat.getLastMessage());
+        response.setLastMessageTime(chat.getLastMessageTime());
+        response.setLastMessageSenderId(chat.getLastMessageSenderId());
+        response.setLastActivityAt(chat.getLastActivityAt());
+        return response;
+    }
+    
+    public static ChatResponse fromChat(Chat chat, String userId) {
+        ChatResponse response = fromChat(chat);
+        if (chat.getUnreadCounts() != null) {
+            response.setUnreadCount(chat.getUnreadCounts().getOrDefault(userId, 0L));
+        }
         return response;
     }
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.substring.chat.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ChatSyncResponse {
+    private String chatId;
+    // messages after the client's last sequence, oldest first
+    private List<MessageResponse> messages;
+    // receipt watermarks that changed after the client's last sequence
+    private List<ReceiptResponse> receipts;
+    // send back as this chat's last sequence next time; may repeat a few messages, dedupe by id
+    private long lastSequence;
+    // more messages follow, sync again right away
+    private boolean hasMore;
+}
@@ -0,0 +1,17 @@
+package com.substring.chat.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class MessagePageResponse {
+    // oldest first, like the rest of the history endpoints
+    private List<MessageResponse> messages;
+    // pass with direction=BEFORE to load older messages
+    private String prevCursor;
+    // pass with direction=AFTER to load newer messages
+    private String nextCursor;
+    // whether more messages exist in the requested direction
+    private boolean hasMore;
+}
@@ -2,8 +2,12 @@ package com.substring.chat.dto;
 
 import lombok.Data;
 
+import java.util.List;
+
 @Data
 public class MessageRequest {
     private String receiverId;
     private String content;
+    // ids of completed uploads from /api/attachments, owned by the sender
+    private List<String> attachmentIds;
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import com.substring.chat.model.Message;
 import lombok.Data;
 
 import java.time.LocalDateTime;
+import java.util.List;
 
 @Data
 public class MessageResponse {
@@ -13,7 +14,9 @@ public class MessageResponse {
     private String receiverId;
     private String content;
     private LocalDateTime timestamp;
+    private Long sequence;
     private Message.MessageStatus status;
+    private List<Message.AttachmentRef> attachments;
     
     public static MessageResponse fromMessage(Message message) {
         MessageResponse response = new MessageResponse();
@@ -23,7 +26,9 @@ public class MessageResponse {
         response.setReceiverId(message.getReceiverId());
         response.setContent(message.getContent());
         response.setTimestamp(message.getTimestamp());
+        response.setSequence(message.getSequence());
         response.setStatus(message.getStatus());
+        response.setAttachments(message.getAttachments());
         return response;
     }
 }
\ No newline at end of file
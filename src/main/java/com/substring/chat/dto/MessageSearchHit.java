@@ -0,0 +1,19 @@
+package com.substring.chat.dto;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Data
+public class MessageSearchHit {
+    private String messageId;
+    private String chatId;
+    private String senderId;
+    private LocalDateTime timestamp;
+    private double score;
+    // a window of the message around the first match, with "…" where it was cut
+    private String snippet;
+    // [start, end) character ranges of matched terms within the snippet
+    private List<int[]> highlights;
+}
@@ -0,0 +1,12 @@
+package com.substring.chat.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class MessageSearchResponse {
+    private List<MessageSearchHit> hits;
+    // the index is still catching up with Mongo (first start or rebuild), so older matches may be missing
+    private boolean partial;
+}
@@ -0,0 +1,12 @@
+package com.substring.chat.dto;
+
+import com.substring.chat.model.Message;
+import lombok.Data;
+
+@Data
+public class ReceiptRequest {
+    private String chatId;
+    // newest message the reader has delivered/read; everything up to it is covered
+    private String messageId;
+    private Message.MessageStatus status;
+}
@@ -0,0 +1,18 @@
+package com.substring.chat.dto;
+
+import com.substring.chat.model.Message;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+public class ReceiptResponse {
+    private String chatId;
+    private String userId;
+    private String messageId;
+    private Message.MessageStatus status;
+    private LocalDateTime upTo;
+    private long updatedCount;
+    // position of this receipt in the chat's sequence, set when it changed anything
+    private Long sequence;
+}
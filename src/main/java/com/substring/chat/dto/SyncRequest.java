@@ -0,0 +1,13 @@
+package com.substring.chat.dto;
+
+import lombok.Data;
+
+import java.util.Map;
+
+@Data
+public class SyncRequest {
+    // chatId -> the lastSequence the previous sync returned for it; chats not listed sync from the start
+    private Map<String, Long> lastSequences;
+    // messages per chat, capped by the server
+    private Integer limit;
+}
@@ -0,0 +1,12 @@
+package com.substring.chat.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class SyncResponse {
+    // only chats with something new
+    private List<ChatSyncResponse> chats;
+    private boolean hasMore;
+}
@@ -0,0 +1,12 @@
+package com.substring.chat.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class UserPageResponse {
+    private List<UserSummaryResponse> users;
+    private String nextCursor;
+    private boolean hasMore;
+}
@@ -0,0 +1,19 @@
+package com.substring.chat.dto;
+
+import com.substring.chat.model.User;
+import lombok.Data;
+
+@Data
+public class UserSummaryResponse {
+    private String id;
+    private String name;
+    private String profilePicture;
+    
+    public static UserSummaryResponse fromUser(User user) {
+        UserSummaryResponse response = new UserSummaryResponse();
+        response.setId(user.getId());
+        response.setName(user.getName());
+        response.setProfilePicture(user.getProfilePicture());
+        return response;
+    }
+}
@@ -0,0 +1,20 @@
+package com.substring.chat.dto;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * Sent to the one session whose STOMP message was not processed, on {@code /user/queue/errors}.
+ */
+@Data
+public class WebSocketErrorResponse {
+    // the /app destination the rejected message was sent to
+    private String destination;
+    private String chatId;
+    private String receiverId;
+    private String message;
+    // true when the same message can simply be sent again
+    private boolean retryable;
+    private LocalDateTime timestamp;
+}
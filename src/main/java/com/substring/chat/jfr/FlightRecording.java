@@ -0,0 +1,70 @@
+package com.substring.chat.jfr;
+
+import java.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/**
+ * Always-on flight recording named {@code chat}: the JDK's low-overhead settings plus slow
+ * {@link MessageLifecycleEvent}s, kept on disk for the last {@code max-age}. After a latency spike, dump
+ * it with {@code jcmd <pid> JFR.dump name=chat filename=spike.jfr}.
+ */
+@Component
+public class FlightRecording {
+
+    private static final Logger log = LoggerFactory.getLogger(FlightRecording.class);
+
+    @Value("${jfr.recording.enabled:true}")
+    private boolean enabled;
+
+    @Value("${jfr.recording.settings:default}")
+    private String settings;
+
+    @Value("${jfr.recording.max-age:5m}")
+    private Duration maxAge;
+
+    @Value("${jfr.recording.max-size-mb:100}")
+    private long maxSizeMb;
+
+    @Value("${jfr.message-lifecycle.threshold:20ms}")
+    private Duration messageThreshold;
+
+    private Recording recording;
+
+    @PostConstruct
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            recording = new Recording(Configuration.getConfiguration(settings));
+        } catch (Exception e) {
+            // observability must not keep the app from starting
+            log.warn("Flight recording not started, cannot load JFR settings '{}'", settings, e);
+            return;
+        }
+        recording.setName("chat");
+        recording.setToDisk(true);
+        recording.setMaxAge(maxAge);
+        recording.setMaxSize(maxSizeMb * 1024 * 1024);
+        recording.enable(MessageLifecycleEvent.class).withThreshold(messageThreshold).withoutStackTrace();
+        recording.start();
+        log.info("Flight recording 'chat' started, keeping {} of history, messages slower than {}",
+                maxAge, messageThreshold);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (recording != null) {
+            recording.close();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.substring.chat.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * One sent message, from the STOMP or REST handler receiving it to its broadcast being handed to the broker.
+ * The event's duration is the whole lifecycle; the phase fields split it up. Recorded only when the
+ * lifecycle takes longer than the threshold, see {@link FlightRecording}.
+ */
+@Name("com.substring.chat.MessageLifecycle")
+@Label("Message Lifecycle")
+@Category({ "Chat", "Messages" })
+@Description("Receipt, chat resolution, persistence and broadcast of one chat message")
+@StackTrace(false)
+@Threshold("20 ms")
+public class MessageLifecycleEvent extends Event {
+
+    @Label("Channel")
+    @Description("stomp or rest")
+    String channel;
+
+    @Label("Message Id")
+    String messageId;
+
+    @Label("Chat Id")
+    String chatId;
+
+    @Label("Chat Resolution")
+    @Timespan(Timespan.NANOSECONDS)
+    long resolveDuration;
+
+    @Label("Lane Wait")
+    @Description("Time queued on the chat's inbound lane, when lanes are enabled")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueDuration;
+
+    @Label("Persist")
+    @Description("Mongo insert, including the wait for the write batch when group commit is enabled")
+    @Timespan(Timespan.NANOSECONDS)
+    long persistDuration;
+
+    @Label("Broadcast")
+    @Description("convertAndSend to the chat topic")
+    @Timespan(Timespan.NANOSECONDS)
+    long broadcastDuration;
+
+    @Label("Failed")
+    boolean failed;
+}
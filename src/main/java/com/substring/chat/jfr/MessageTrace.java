@@ -0,0 +1,81 @@
+package com.substring.chat.jfr;
+
+import com.substring.chat.model.Message;
+
+/**
+ * Carries a {@link MessageLifecycleEvent} through the send path and times each phase. While no recording
+ * has the event enabled, {@link #start} returns a shared no-op trace and the send path pays for one check.
+ * A trace is handed from thread to thread along the send's future chain, never used concurrently.
+ */
+public final class MessageTrace {
+
+    private static final MessageTrace DISABLED = new MessageTrace(null);
+
+    private final MessageLifecycleEvent event;
+
+    private long phaseStart;
+
+    private MessageTrace(MessageLifecycleEvent event) {
+        this.event = event;
+    }
+
+    public static MessageTrace start(String channel) {
+        MessageLifecycleEvent event = new MessageLifecycleEvent();
+        if (!event.isEnabled()) {
+            return DISABLED;
+        }
+        event.channel = channel;
+        event.begin();
+        MessageTrace trace = new MessageTrace(event);
+        trace.phaseStart = System.nanoTime();
+        return trace;
+    }
+
+    public void chatResolved(String chatId) {
+        if (event != null) {
+            event.chatId = chatId;
+            event.resolveDuration += lap();
+        }
+    }
+
+    public void dequeued() {
+        if (event != null) {
+            event.queueDuration += lap();
+        }
+    }
+
+    public void persisted(Message message) {
+        if (event != null) {
+            event.messageId = message.getMessageId();
+            event.persistDuration += lap();
+        }
+    }
+
+    public void broadcast() {
+        if (event != null) {
+            event.broadcastDuration += lap();
+            commit();
+        }
+    }
+
+    public void failed() {
+        if (event != null) {
+            event.failed = true;
+            commit();
+        }
+    }
+
+    private long lap() {
+        long now = System.nanoTime();
+        long elapsed = now - phaseStart;
+        phaseStart = now;
+        return elapsed;
+    }
+
+    private void commit() {
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+}
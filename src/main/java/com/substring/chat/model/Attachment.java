@@ -0,0 +1,51 @@
+package com.substring.chat.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Data
+@Document(collection = "attachments")
+@CompoundIndex(name = "status_created", def = "{ 'status': 1, 'createdAt': 1 }")
+public class Attachment {
+    @Id
+    private String id;
+    
+    private String ownerId;
+    
+    private String fileName;
+    
+    private String contentType;
+    
+    // declared by the client up front; the upload completes when this many bytes are staged
+    private long size;
+    
+    // optional SHA-256 from the client, checked against the stored content
+    private String expectedSha256;
+    
+    // content key in the BlobStore (SHA-256 hex), set once the upload completes
+    private String blobKey;
+    
+    private AttachmentStatus status;
+    
+    // held by the request writing a chunk, on whichever instance; a second writer would clash at the same offset
+    private String chunkLease;
+    
+    private LocalDateTime chunkLeaseUntil;
+    
+    // chats with a message referencing this attachment; their participants may download it
+    private List<String> chatIds;
+    
+    private LocalDateTime createdAt;
+    
+    private LocalDateTime completedAt;
+    
+    public enum AttachmentStatus {
+        UPLOADING,
+        COMPLETE
+    }
+}
@@ -2,25 +2,75 @@ package com.substring.chat.model;
 
 import lombok.Data;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 
 @Data
 @Document(collection = "chats")
+@CompoundIndex(name = "participants_activity", def = "{ 'participants': 1, 'lastActivityAt': -1, '_id': -1 }")
 public class Chat {
     @Id
     private String chatId;
     
     private List<String> participants;
     
+    // canonical "a:b" key for private chats only, unique so each pair has exactly one chat
+    @Indexed(unique = true, sparse = true)
+    private String pairKey;
+    
     private ChatType chatType;
     
     private LocalDateTime createdAt;
     
+    // conversation summary, maintained on every send and read receipt
+    private String lastMessage;
+    
+    private String lastMessageSenderId;
+    
+    private LocalDateTime lastMessageTime;
+    
+    private LocalDateTime lastActivityAt;
+    
+    private Map<String, Long> unreadCounts;
+    
+    // highest sequence number reserved by any node (hi/lo blocks)
+    private Long sequenceHi;
+    
+    // cluster mode: numbers reserved by any node and not yet written, so sync never passes one of them
+    private List<SequenceLease> sequencesInFlight;
+    
+    // highest sequence number written, message or receipt, so delta sync can skip unchanged chats
+    private Long lastSequence;
+    
+    // participant -> newest receipt watermarks, positioned in the chat's sequence for delta sync
+    private Map<String, ReceiptMark> receipts;
+    
+    public static String pairKeyOf(String user1Id, String user2Id) {
+        return user1Id.compareTo(user2Id) <= 0
+                ? user1Id + ":" + user2Id
+                : user2Id + ":" + user1Id;
+    }
+    
     public enum ChatType {
         PRIVATE,
         GROUP
     }
+    
+    @Data
+    public static class SequenceLease {
+        private long sequence;
+        private LocalDateTime allocatedAt;
+    }
+    
+    @Data
+    public static class ReceiptMark {
+        private String deliveredUpTo;
+        private String readUpTo;
+        private long sequence;
+    }
 }
\ No newline at end of file
@@ -2,13 +2,17 @@ package com.substring.chat.model;
 
 import lombok.Data;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
+import java.util.List;
 
 @Data
 @Document(collection = "messages")
+@CompoundIndex(name = "chat_timestamp_id", def = "{ 'chatId': 1, 'timestamp': 1, '_id': 1 }")
+@CompoundIndex(name = "chat_sequence", def = "{ 'chatId': 1, 'sequence': 1 }")
 public class Message {
     @Id
     private String messageId;
@@ -24,11 +28,25 @@ public class Message {
     
     private LocalDateTime timestamp;
     
+    // per-chat position from ChatSequenceAllocator, absent on messages sent before sequences existed
+    private Long sequence;
+    
     private MessageStatus status;
     
+    // files uploaded through /api/attachments, described here so history and broadcasts need no lookup
+    private List<AttachmentRef> attachments;
+    
     public enum MessageStatus {
         SENT,
         DELIVERED,
         READ
     }
+    
+    @Data
+    public static class AttachmentRef {
+        private String id;
+        private String fileName;
+        private String contentType;
+        private long size;
+    }
 }
\ No newline at end of file
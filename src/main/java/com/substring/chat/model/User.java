@@ -2,22 +2,35 @@ package com.substring.chat.model;
 
 import lombok.Data;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
+import java.util.Locale;
 
 @Data
 @Document(collection = "users")
+@CompoundIndexes({
+    @CompoundIndex(name = "searchName_id", def = "{ 'searchName': 1, '_id': 1 }"),
+    @CompoundIndex(name = "searchEmail_id", def = "{ 'searchEmail': 1, '_id': 1 }")
+})
 public class User {
     @Id
     private String id;
     
     private String name;
     
+    // lower-cased name for indexed prefix search
+    private String searchName;
+    
     @Indexed(unique = true)
     private String email;
     
+    // lower-cased email for indexed prefix search; email keeps the case the user signed up with
+    private String searchEmail;
+    
     @Indexed(unique = true)
     private String mobile;
     
@@ -26,4 +39,12 @@ public class User {
     private String profilePicture;
     
     private LocalDateTime createdAt;
+    
+    public static String searchNameOf(String name) {
+        return name == null ? null : name.toLowerCase(Locale.ROOT);
+    }
+    
+    public static String searchEmailOf(String email) {
+        return email == null ? null : email.toLowerCase(Locale.ROOT);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,9 @@
+package com.substring.chat.repository;
+
+import com.substring.chat.model.Attachment;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface AttachmentRepository extends MongoRepository<Attachment, String> {
+}
@@ -1,6 +1,7 @@
 package com.substring.chat.repository;
 
 import java.util.List;
+import java.util.Optional;
 
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.data.mongodb.repository.Query;
@@ -11,6 +12,9 @@ import com.substring.chat.model.Chat;
 @Repository
 public interface ChatRepository extends MongoRepository<Chat, String> {
     List<Chat> findByParticipantsContaining(String userId);
-    @Query("{ 'participants' : { $all: ?0 } }")
-    List<Chat> findByParticipantsWithAll(List<String> participants);
+    Optional<Chat> findByPairKey(String pairKey);
+    @Query("{ 'participants' : { $all: ?0, $size: 2 }, 'pairKey' : null }")
+    List<Chat> findLegacyPrivateChats(List<String> participants);
+    @Query(value = "{ '_id' : ?0 }", fields = "{ 'participants' : 1 }")
+    Optional<Chat> findParticipantsByChatId(String chatId);
 }
\ No newline at end of file
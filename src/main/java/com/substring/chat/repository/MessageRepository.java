@@ -1,14 +1,9 @@
 package com.substring.chat.repository;
 
 import com.substring.chat.model.Message;
-import org.springframework.data.domain.Pageable;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.stereotype.Repository;
 
-import java.util.List;
-
 @Repository
 public interface MessageRepository extends MongoRepository<Message, String> {
-    List<Message> findByChatIdOrderByTimestampAsc(String chatId, Pageable pageable);
-    List<Message> findByChatId(String chatId);
-}
\ No newline at end of file
+}
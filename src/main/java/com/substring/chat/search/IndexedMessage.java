@@ -0,0 +1,29 @@
+package com.substring.chat.search;
+
+import java.time.ZoneOffset;
+
+import com.substring.chat.model.Message;
+
+/**
+ * What the index stores per message: enough to filter by chat, rank by recency and build a snippet without
+ * going back to Mongo. Attachment names are part of the text so files can be found by name.
+ */
+record IndexedMessage(String messageId, String chatId, String senderId, long timestamp, String text) {
+
+    static IndexedMessage of(Message message) {
+        StringBuilder text = new StringBuilder(message.getContent() != null ? message.getContent() : "");
+        if (message.getAttachments() != null) {
+            for (Message.AttachmentRef attachment : message.getAttachments()) {
+                if (attachment.getFileName() != null) {
+                    text.append(text.isEmpty() ? "" : " ").append(attachment.getFileName());
+                }
+            }
+        }
+        return new IndexedMessage(
+                message.getMessageId(),
+                message.getChatId(),
+                message.getSenderId() != null ? message.getSenderId() : "",
+                message.getTimestamp().toInstant(ZoneOffset.UTC).toEpochMilli(),
+                text.toString());
+    }
+}
@@ -0,0 +1,358 @@
+package com.substring.chat.search;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable segment file, memory-mapped and read in place. Layout, all offsets absolute:
+ * <pre>
+ * header   magic, version, docCount, chatCount, termCount, totalLength, section offsets
+ * stored   per doc: messageId, senderId (u16 length + UTF-8), text (u32 length + UTF-8)
+ * docs     per doc: timestamp (i64), chat ordinal, token count, stored position (i32 each)
+ * chats    per chat, sorted by UTF-8 bytes: string position
+ * terms    per term, sorted by UTF-8 bytes: string position, doc frequency, postings position
+ * postings per term: varint doc delta, varint frequency
+ * strings  chat ids and terms, u16 length + UTF-8
+ * </pre>
+ * Chat ids and terms are found by binary search over the sorted tables, without decoding the file.
+ */
+final class MappedSegment implements Segment {
+
+    private static final int MAGIC = 0x43485331;
+
+    static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 48;
+
+    private static final int DOC_BYTES = 20;
+
+    private static final int TERM_BYTES = 12;
+
+    private static final Comparator<byte[]> UTF8_ORDER = Arrays::compareUnsigned;
+
+    private final ByteBuffer buffer;
+
+    private final int docCount;
+
+    private final int chatCount;
+
+    private final int termCount;
+
+    private final long totalLength;
+
+    private final int docsOffset;
+
+    private final int chatsOffset;
+
+    private final int termsOffset;
+
+    private final int postingsOffset;
+
+    private final int stringsOffset;
+
+    private MappedSegment(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.docCount = buffer.getInt(8);
+        this.chatCount = buffer.getInt(12);
+        this.termCount = buffer.getInt(16);
+        this.totalLength = buffer.getLong(20);
+        this.docsOffset = buffer.getInt(28);
+        this.chatsOffset = buffer.getInt(32);
+        this.termsOffset = buffer.getInt(36);
+        this.postingsOffset = buffer.getInt(40);
+        this.stringsOffset = buffer.getInt(44);
+    }
+
+    static MappedSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a search segment: " + file);
+            }
+            // the mapping outlives the channel
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a search segment: " + file);
+            }
+            return new MappedSegment(buffer);
+        }
+    }
+
+    /**
+     * Writes a frozen builder as a segment file, via a temporary file so a crash never leaves a partial one.
+     */
+    static void write(SegmentBuilder builder, Path file) throws IOException {
+        int docCount = builder.docCount();
+
+        List<String> chatIds = builder.chats();
+        byte[][] chatBytes = new byte[chatIds.size()][];
+        Integer[] chatOrder = new Integer[chatIds.size()];
+        for (int i = 0; i < chatBytes.length; i++) {
+            chatBytes[i] = utf8(chatIds.get(i));
+            chatOrder[i] = i;
+        }
+        Arrays.sort(chatOrder, (a, b) -> UTF8_ORDER.compare(chatBytes[a], chatBytes[b]));
+        int[] chatRemap = new int[chatBytes.length];
+        for (int ordinal = 0; ordinal < chatOrder.length; ordinal++) {
+            chatRemap[chatOrder[ordinal]] = ordinal;
+        }
+
+        List<Map.Entry<byte[], SegmentBuilder.IntList>> terms = new ArrayList<>(builder.postingLists().size());
+        builder.postingLists().forEach((term, list) -> terms.add(Map.entry(utf8(term), list)));
+        terms.sort(Map.Entry.comparingByKey(UTF8_ORDER));
+
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        DataOutputStream strings = new DataOutputStream(stringBytes);
+        ByteArrayOutputStream postingBytes = new ByteArrayOutputStream();
+        DataOutputStream postings = new DataOutputStream(postingBytes);
+
+        int[] chatStrings = new int[chatOrder.length];
+        for (int ordinal = 0; ordinal < chatOrder.length; ordinal++) {
+            chatStrings[ordinal] = strings.size();
+            writeShortBytes(strings, chatBytes[chatOrder[ordinal]]);
+        }
+        int[] termEntries = new int[terms.size() * 3];
+        for (int i = 0; i < terms.size(); i++) {
+            SegmentBuilder.IntList list = terms.get(i).getValue();
+            termEntries[3 * i] = strings.size();
+            termEntries[3 * i + 1] = list.size / 2;
+            termEntries[3 * i + 2] = postings.size();
+            writeShortBytes(strings, terms.get(i).getKey());
+            int previous = 0;
+            for (int p = 0; p < list.size; p += 2) {
+                writeVarint(postings, list.values[p] - previous);
+                writeVarint(postings, list.values[p + 1]);
+                previous = list.values[p];
+            }
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_BYTES);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            long position = HEADER_BYTES;
+
+            int[] stored = new int[docCount];
+            for (int doc = 0; doc < docCount; doc++) {
+                IndexedMessage message = builder.document(doc);
+                byte[] messageId = utf8(message.messageId());
+                byte[] senderId = utf8(message.senderId());
+                byte[] text = utf8(message.text());
+                stored[doc] = checkedOffset(position);
+                writeShortBytes(out, messageId);
+                writeShortBytes(out, senderId);
+                out.writeInt(text.length);
+                out.write(text);
+                position += 2 + messageId.length + 2 + senderId.length + 4 + text.length;
+            }
+
+            int docs = checkedOffset(position);
+            for (int doc = 0; doc < docCount; doc++) {
+                out.writeLong(builder.timestamp(doc));
+                out.writeInt(chatRemap[builder.chatOrdinalOf(doc)]);
+                out.writeInt(builder.length(doc));
+                out.writeInt(stored[doc]);
+            }
+            position += (long) docCount * DOC_BYTES;
+
+            int chats = checkedOffset(position);
+            for (int chatString : chatStrings) {
+                out.writeInt(chatString);
+            }
+            position += 4L * chatStrings.length;
+
+            int termTable = checkedOffset(position);
+            for (int entry : termEntries) {
+                out.writeInt(entry);
+            }
+            position += 4L * termEntries.length;
+
+            int postingsStart = checkedOffset(position);
+            postingBytes.writeTo(out);
+            position += postingBytes.size();
+
+            int stringsStart = checkedOffset(position);
+            stringBytes.writeTo(out);
+            checkedOffset(position + stringBytes.size());
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                    .putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(docCount)
+                    .putInt(chatStrings.length)
+                    .putInt(terms.size())
+                    .putLong(builder.totalLength())
+                    .putInt(docs)
+                    .putInt(chats)
+                    .putInt(termTable)
+                    .putInt(postingsStart)
+                    .putInt(stringsStart)
+                    .flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public int docCount() {
+        return docCount;
+    }
+
+    @Override
+    public long totalLength() {
+        return totalLength;
+    }
+
+    @Override
+    public Postings postings(String term) {
+        int index = find(utf8(term), termsOffset, TERM_BYTES, termCount);
+        if (index < 0) {
+            return null;
+        }
+        int entry = termsOffset + index * TERM_BYTES;
+        int count = buffer.getInt(entry + 4);
+        int position = postingsOffset + buffer.getInt(entry + 8);
+        int[] docs = new int[count];
+        int[] freqs = new int[count];
+        int doc = 0;
+        for (int i = 0; i < count; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            int freq = 0;
+            shift = 0;
+            do {
+                b = buffer.get(position++);
+                freq |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            doc += delta;
+            docs[i] = doc;
+            freqs[i] = freq;
+        }
+        return new Postings(docs, freqs);
+    }
+
+    @Override
+    public int chatOrdinal(String chatId) {
+        return find(utf8(chatId), chatsOffset, 4, chatCount);
+    }
+
+    @Override
+    public int chatOrdinalOf(int doc) {
+        return buffer.getInt(docsOffset + doc * DOC_BYTES + 8);
+    }
+
+    @Override
+    public int length(int doc) {
+        return buffer.getInt(docsOffset + doc * DOC_BYTES + 12);
+    }
+
+    @Override
+    public long timestamp(int doc) {
+        return buffer.getLong(docsOffset + doc * DOC_BYTES);
+    }
+
+    @Override
+    public IndexedMessage document(int doc) {
+        int base = docsOffset + doc * DOC_BYTES;
+        int position = buffer.getInt(base + 16);
+        String messageId = shortString(position);
+        position += 2 + (buffer.getShort(position) & 0xFFFF);
+        String senderId = shortString(position);
+        position += 2 + (buffer.getShort(position) & 0xFFFF);
+        byte[] text = new byte[buffer.getInt(position)];
+        buffer.get(position + 4, text);
+        String chatId = shortString(stringsOffset + buffer.getInt(chatsOffset + buffer.getInt(base + 8) * 4));
+        return new IndexedMessage(messageId, chatId, senderId, buffer.getLong(base),
+                new String(text, StandardCharsets.UTF_8));
+    }
+
+    // binary search over a table whose entries start with a string position
+    private int find(byte[] key, int table, int entryBytes, int count) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareString(stringsOffset + buffer.getInt(table + mid * entryBytes), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareString(int position, byte[] key) {
+        int length = buffer.getShort(position) & 0xFFFF;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = Integer.compare(buffer.get(position + 2 + i) & 0xFF, key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    private String shortString(int position) {
+        byte[] bytes = new byte[buffer.getShort(position) & 0xFFFF];
+        buffer.get(position + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void writeShortBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Value too long for a segment: " + bytes.length + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int checkedOffset(long position) throws IOException {
+        if (position > Integer.MAX_VALUE) {
+            throw new IOException("Segment exceeds 2 GB; lower search.index.max-merge-docs");
+        }
+        return (int) position;
+    }
+}
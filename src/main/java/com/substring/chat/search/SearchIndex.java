@@ -0,0 +1,628 @@
+package com.substring.chat.search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import com.substring.chat.archive.MessageArchive;
+import com.substring.chat.dto.MessageSearchHit;
+import com.substring.chat.model.Message;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Full-text index over message text, ranked with BM25. New messages go into an in-memory segment that is
+ * searchable immediately; it is flushed to an immutable memory-mapped segment file when full or every
+ * {@code flush-seconds}, and small segments are merged in the background so a query touches only a few.
+ * <p>
+ * A manifest lists the live segment files and a watermark: every message whose id was created before it is
+ * in those files. On start the index re-reads newer messages from Mongo in {@code _id} order, and with no
+ * usable manifest that catch-up is a full rebuild, which also reads the archived history. In cluster mode
+ * each node keeps its own index and tails Mongo for other nodes' messages. One worker thread does all
+ * flushing, merging and catch-up.
+ */
+@Component
+public class SearchIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(SearchIndex.class);
+
+    private static final String MANIFEST = "manifest.properties";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int SCAN_BATCH_SIZE = 1000;
+
+    private static final int SNIPPET_LENGTH = 160;
+
+    private static final int SNIPPET_LEAD = 40;
+
+    private static final double K1 = 1.2;
+
+    private static final double B = 0.75;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MessageArchive messageArchive;
+
+    @Value("${search.index.enabled:true}")
+    private boolean enabled;
+
+    @Value("${search.index.path:./data/search}")
+    private String path;
+
+    @Value("${cluster.enabled:false}")
+    private boolean clusterEnabled;
+
+    @Value("${search.index.buffer-docs:10000}")
+    private int bufferDocs;
+
+    @Value("${search.index.flush-seconds:60}")
+    private long flushSeconds;
+
+    @Value("${search.index.max-segments:10}")
+    private int maxSegments;
+
+    @Value("${search.index.merge-factor:4}")
+    private int mergeFactor;
+
+    @Value("${search.index.max-merge-docs:1000000}")
+    private int maxMergeDocs;
+
+    @Value("${search.index.grace-seconds:30}")
+    private long graceSeconds;
+
+    @Value("${search.index.tail-seconds:5}")
+    private long tailSeconds;
+
+    @Value("${search.index.rebuild:false}")
+    private boolean rebuild;
+
+    private Path directory;
+
+    private ScheduledExecutorService worker;
+
+    private volatile State state;
+
+    // message id -> when it was indexed, so catch-up and tailing skip what hooks delivered; an id is never
+    // created after its message is indexed, so entries older than what a scan can revisit are dropped
+    private final Map<String, Long> seen = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+    private volatile boolean caughtUp;
+
+    private long startedAt;
+
+    // worker thread only from here on
+
+    private boolean archiveIndexed;
+
+    private long generation;
+
+    private long watermark;
+
+    // id creation time (millis) of the newest message read from Mongo
+    private long scanCursor;
+
+    /** The segments a search reads, swapped as a whole so a search never sees a document twice. */
+    private record State(List<Entry> segments, SegmentBuilder active) {
+    }
+
+    // a segment and its file name; null while a frozen builder waits to be written
+    private record Entry(Segment segment, String file) {
+    }
+
+    private record Candidate(double score, long timestamp, Segment segment, int doc) {
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        startedAt = System.currentTimeMillis();
+        directory = Files.createDirectories(Path.of(path));
+        state = new State(List.of(), new SegmentBuilder());
+        load();
+        scanCursor = watermark;
+
+        worker = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("search-index").daemon().factory());
+        worker.execute(this::catchUp);
+        worker.scheduleWithFixedDelay(this::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+        if (clusterEnabled) {
+            worker.scheduleWithFixedDelay(this::tail, tailSeconds, tailSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    void close() throws InterruptedException {
+        if (worker == null) {
+            return;
+        }
+        worker.execute(this::flush);
+        worker.shutdown();
+        worker.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** False while the first catch-up after start is still reading Mongo, so results may be incomplete. */
+    public boolean isCaughtUp() {
+        return caughtUp;
+    }
+
+    public void index(Message message) {
+        if (!enabled || message.getMessageId() == null || message.getTimestamp() == null) {
+            return;
+        }
+        IndexedMessage document = IndexedMessage.of(message);
+        if (seen.putIfAbsent(document.messageId(), System.currentTimeMillis()) != null) {
+            return;
+        }
+        if (add(document) >= bufferDocs && flushQueued.compareAndSet(false, true)) {
+            worker.execute(this::flush);
+        }
+    }
+
+    public long documentCount() {
+        State current = state;
+        if (current == null) {
+            return 0;
+        }
+        long count = current.active().docCount();
+        for (Entry entry : current.segments()) {
+            count += entry.segment().docCount();
+        }
+        return count;
+    }
+
+    public int segmentCount() {
+        State current = state;
+        return current == null ? 0 : current.segments().size();
+    }
+
+    /**
+     * The best matches for all of the query's terms among messages of the given chats, best first.
+     */
+    public List<MessageSearchHit> search(String query, Set<String> chatIds, int limit) {
+        List<String> terms = Tokenizer.terms(query);
+        if (!enabled || terms.isEmpty() || chatIds.isEmpty()) {
+            return List.of();
+        }
+
+        State current = state;
+        List<Segment> segments = new ArrayList<>(current.segments().size() + 1);
+        current.segments().forEach(entry -> segments.add(entry.segment()));
+        segments.add(current.active());
+
+        long docCount = 0;
+        long totalLength = 0;
+        long[] docFreqs = new long[terms.size()];
+        List<Segment.Postings[]> postingsBySegment = new ArrayList<>(segments.size());
+        for (Segment segment : segments) {
+            docCount += segment.docCount();
+            totalLength += segment.totalLength();
+            Segment.Postings[] postings = new Segment.Postings[terms.size()];
+            for (int t = 0; t < terms.size(); t++) {
+                postings[t] = segment.postings(terms.get(t));
+                if (postings[t] != null) {
+                    docFreqs[t] += postings[t].docs().length;
+                }
+            }
+            postingsBySegment.add(postings);
+        }
+        if (docCount == 0) {
+            return List.of();
+        }
+        double averageLength = Math.max(1.0, (double) totalLength / docCount);
+        double[] idf = new double[terms.size()];
+        for (int t = 0; t < terms.size(); t++) {
+            idf[t] = Math.log(1 + (docCount - docFreqs[t] + 0.5) / (docFreqs[t] + 0.5));
+        }
+
+        // a few extra candidates absorb duplicates a restart's catch-up may have indexed twice
+        int wanted = limit * 2;
+        Comparator<Candidate> worstFirst = Comparator.comparingDouble(Candidate::score)
+                .thenComparingLong(Candidate::timestamp);
+        PriorityQueue<Candidate> top = new PriorityQueue<>(wanted + 1, worstFirst);
+        for (int s = 0; s < segments.size(); s++) {
+            collect(segments.get(s), postingsBySegment.get(s), chatIds, idf, averageLength, top, wanted);
+        }
+
+        List<Candidate> ranked = new ArrayList<>(top);
+        ranked.sort(worstFirst.reversed());
+        Set<String> termSet = Set.copyOf(terms);
+        Set<String> returned = new HashSet<>();
+        List<MessageSearchHit> hits = new ArrayList<>(limit);
+        for (Candidate candidate : ranked) {
+            IndexedMessage document = candidate.segment().document(candidate.doc());
+            if (returned.add(document.messageId())) {
+                hits.add(hit(document, candidate.score(), termSet));
+                if (hits.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return hits;
+    }
+
+    private static void collect(Segment segment, Segment.Postings[] postings, Set<String> chatIds, double[] idf,
+            double averageLength, PriorityQueue<Candidate> top, int wanted) {
+        for (Segment.Postings list : postings) {
+            if (list == null) {
+                return;
+            }
+        }
+        BitSet allowed = new BitSet();
+        for (String chatId : chatIds) {
+            int ordinal = segment.chatOrdinal(chatId);
+            if (ordinal >= 0) {
+                allowed.set(ordinal);
+            }
+        }
+        if (allowed.isEmpty()) {
+            return;
+        }
+
+        // walk the rarest term's docs and advance the others to each of them
+        int rarest = 0;
+        for (int t = 1; t < postings.length; t++) {
+            if (postings[t].docs().length < postings[rarest].docs().length) {
+                rarest = t;
+            }
+        }
+        int[] cursors = new int[postings.length];
+        int[] leadDocs = postings[rarest].docs();
+        candidates:
+        for (int doc : leadDocs) {
+            for (int t = 0; t < postings.length; t++) {
+                int[] docs = postings[t].docs();
+                while (cursors[t] < docs.length && docs[cursors[t]] < doc) {
+                    cursors[t]++;
+                }
+                if (cursors[t] == docs.length) {
+                    return;
+                }
+                if (docs[cursors[t]] != doc) {
+                    continue candidates;
+                }
+            }
+            if (!allowed.get(segment.chatOrdinalOf(doc))) {
+                continue;
+            }
+            double norm = K1 * (1 - B + B * segment.length(doc) / averageLength);
+            double score = 0;
+            for (int t = 0; t < postings.length; t++) {
+                int freq = postings[t].freqs()[cursors[t]];
+                score += idf[t] * freq * (K1 + 1) / (freq + norm);
+            }
+            Candidate candidate = new Candidate(score, segment.timestamp(doc), segment, doc);
+            if (top.size() < wanted) {
+                top.add(candidate);
+            } else if (top.comparator().compare(candidate, top.peek()) > 0) {
+                top.poll();
+                top.add(candidate);
+            }
+        }
+    }
+
+    private static MessageSearchHit hit(IndexedMessage document, double score, Set<String> terms) {
+        String text = document.text();
+        List<int[]> matches = new ArrayList<>();
+        Tokenizer.tokenize(text, (term, start, end) -> {
+            if (terms.contains(term)) {
+                matches.add(new int[] { start, end });
+            }
+        });
+
+        int start = 0;
+        int end = text.length();
+        if (end > SNIPPET_LENGTH) {
+            start = matches.isEmpty() ? 0 : Math.max(0, matches.get(0)[0] - SNIPPET_LEAD);
+            end = Math.min(text.length(), start + SNIPPET_LENGTH);
+            start = Math.max(0, end - SNIPPET_LENGTH);
+            if (start > 0 && Character.isLowSurrogate(text.charAt(start))) {
+                start++;
+            }
+            if (end < text.length() && Character.isLowSurrogate(text.charAt(end))) {
+                end--;
+            }
+        }
+        String prefix = start > 0 ? "…" : "";
+        String snippet = prefix + text.substring(start, end) + (end < text.length() ? "…" : "");
+        List<int[]> highlights = new ArrayList<>();
+        for (int[] match : matches) {
+            if (match[0] >= start && match[1] <= end) {
+                highlights.add(new int[] { match[0] - start + prefix.length(), match[1] - start + prefix.length() });
+            }
+        }
+
+        MessageSearchHit hit = new MessageSearchHit();
+        hit.setMessageId(document.messageId());
+        hit.setChatId(document.chatId());
+        hit.setSenderId(document.senderId());
+        hit.setTimestamp(LocalDateTime.ofInstant(Instant.ofEpochMilli(document.timestamp()), ZoneOffset.UTC));
+        hit.setScore(score);
+        hit.setSnippet(snippet);
+        hit.setHighlights(highlights);
+        return hit;
+    }
+
+    /** Adds to the active builder, retrying if a flush froze it meanwhile; returns the builder's size. */
+    private int add(IndexedMessage document) {
+        while (true) {
+            SegmentBuilder active = state.active();
+            if (active.add(document)) {
+                return active.docCount();
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        Path manifest = directory.resolve(MANIFEST);
+        List<Entry> segments = new ArrayList<>();
+        if (rebuild) {
+            log.info("Rebuilding search index from Mongo (search.index.rebuild)");
+        } else if (Files.exists(manifest)) {
+            try (InputStream in = Files.newInputStream(manifest)) {
+                Properties properties = new Properties();
+                properties.load(in);
+                if (Integer.parseInt(properties.getProperty("version", "0")) != MappedSegment.VERSION) {
+                    throw new IOException("Search index format changed");
+                }
+                for (String name : properties.getProperty("segments", "").split(",")) {
+                    if (!name.isBlank()) {
+                        segments.add(new Entry(MappedSegment.open(directory.resolve(name)), name));
+                    }
+                }
+                generation = Long.parseLong(properties.getProperty("generation", "0"));
+                watermark = Long.parseLong(properties.getProperty("watermark", "0"));
+            } catch (IOException | RuntimeException e) {
+                log.warn("Search index at {} is unusable, rebuilding it from Mongo", directory, e);
+                segments.clear();
+                watermark = 0;
+            }
+        } else {
+            log.info("No search index at {}, building it from Mongo", directory);
+        }
+        if (segments.isEmpty()) {
+            Files.deleteIfExists(manifest);
+        }
+
+        // anything not in the manifest is a half-written flush, a merged-away segment or a discarded index
+        Set<String> live = new HashSet<>();
+        segments.forEach(entry -> live.add(entry.file()));
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (!name.equals(MANIFEST) && !live.contains(name)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        state = new State(List.copyOf(segments), state.active());
+    }
+
+    private void catchUp() {
+        try {
+            // a rebuild starts with the archived history, which Mongo no longer has
+            if (scanCursor == 0 && !archiveIndexed) {
+                messageArchive.forEachArchived(message -> addScanned(message, 0));
+                archiveIndexed = true;
+            }
+            long count = scan(scanCursor);
+            log.info("Search index caught up: {} messages read from Mongo, {} documents in {} segments",
+                    count, documentCount(), segmentCount());
+            caughtUp = true;
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Search index catch-up failed, retrying in 30 seconds", e);
+            worker.schedule(this::catchUp, 30, TimeUnit.SECONDS);
+        }
+    }
+
+    private void tail() {
+        if (!caughtUp) {
+            return;
+        }
+        try {
+            scan(scanCursor - graceSeconds * 1000);
+        } catch (RuntimeException e) {
+            log.warn("Search index failed to read new messages from Mongo", e);
+        }
+    }
+
+    /**
+     * Indexes messages whose ids were created at or after {@code fromMillis}, in id order, skipping those
+     * already indexed. Ids carry their creation second, so this reads the primary key index only.
+     */
+    private long scan(long fromMillis) {
+        ObjectId from = new ObjectId(String.format("%08x%016x", Math.max(0, fromMillis / 1000), 0));
+        Query query = Query.query(Criteria.where("_id").gte(from))
+                .with(Sort.by(Sort.Direction.ASC, "_id"))
+                .cursorBatchSize(SCAN_BATCH_SIZE);
+        query.fields().include("chatId", "senderId", "content", "attachments", "timestamp");
+
+        long count = 0;
+        try (Stream<Message> messages = mongoTemplate.stream(query, Message.class)) {
+            for (Message message : (Iterable<Message>) messages::iterator) {
+                count++;
+                long createdAt = new ObjectId(message.getMessageId()).getTimestamp() * 1000L;
+                scanCursor = Math.max(scanCursor, createdAt);
+                addScanned(message, createdAt);
+            }
+        }
+        return count;
+    }
+
+    // only messages created since this start can also arrive through index(), so only those are tracked
+    private void addScanned(Message message, long createdAt) {
+        if (message.getTimestamp() == null) {
+            return;
+        }
+        IndexedMessage document = IndexedMessage.of(message);
+        boolean recent = createdAt >= startedAt - graceSeconds * 1000;
+        if ((!recent || seen.putIfAbsent(document.messageId(), System.currentTimeMillis()) == null)
+                && add(document) >= bufferDocs) {
+            flush();
+        }
+    }
+
+    /**
+     * Freezes the active builder and writes every frozen builder to a segment file, then records the new
+     * watermark and merges if there are too many segments.
+     */
+    private void flush() {
+        flushQueued.set(false);
+        State current = state;
+        if (current.active().docCount() > 0) {
+            SegmentBuilder frozen = current.active();
+            List<Entry> segments = new ArrayList<>(current.segments());
+            segments.add(new Entry(frozen, null));
+            state = new State(List.copyOf(segments), new SegmentBuilder());
+            frozen.freeze();
+        }
+
+        // hooks deliver this node's messages as they are written; until caught up, or for other nodes'
+        // messages, only what the scan has read is covered
+        long covered = caughtUp && !clusterEnabled ? System.currentTimeMillis() : scanCursor;
+        long nextWatermark = Math.max(watermark, covered - graceSeconds * 1000);
+        try {
+            List<Entry> segments = new ArrayList<>(state.segments());
+            boolean written = false;
+            for (int i = 0; i < segments.size(); i++) {
+                Entry entry = segments.get(i);
+                if (entry.file() == null) {
+                    segments.set(i, writeSegment((SegmentBuilder) entry.segment()));
+                    written = true;
+                }
+            }
+            if (!written && nextWatermark == watermark) {
+                return;
+            }
+            if (written) {
+                replaceSegments(segments);
+            }
+            watermark = nextWatermark;
+            writeManifest();
+            // nothing at or below the watermark is scanned again
+            long forgetBefore = watermark - graceSeconds * 1000;
+            seen.values().removeIf(indexedAt -> indexedAt < forgetBefore);
+            while (mergeSmallest()) {
+                // keep merging until the segment count is back under the limit
+            }
+        } catch (IOException e) {
+            log.error("Failed to write search segment; its messages stay in memory until the next flush", e);
+        }
+    }
+
+    private boolean mergeSmallest() throws IOException {
+        List<Entry> segments = state.segments();
+        if (segments.size() <= maxSegments) {
+            return false;
+        }
+        List<Entry> candidates = segments.stream()
+                .filter(entry -> entry.file() != null && entry.segment().docCount() < maxMergeDocs)
+                .sorted(Comparator.comparingInt(entry -> entry.segment().docCount()))
+                .limit(Math.max(2, mergeFactor))
+                .toList();
+        if (candidates.size() < 2) {
+            return false;
+        }
+
+        SegmentBuilder merged = new SegmentBuilder();
+        Set<String> messageIds = new HashSet<>();
+        for (Entry entry : candidates) {
+            Segment segment = entry.segment();
+            for (int doc = 0; doc < segment.docCount(); doc++) {
+                IndexedMessage document = segment.document(doc);
+                if (messageIds.add(document.messageId())) {
+                    merged.add(document);
+                }
+            }
+        }
+        merged.freeze();
+        Entry mergedEntry = writeSegment(merged);
+
+        List<Entry> remaining = new ArrayList<>(state.segments());
+        remaining.removeAll(candidates);
+        remaining.add(mergedEntry);
+        replaceSegments(remaining);
+        writeManifest();
+        for (Entry entry : candidates) {
+            // open mappings stay readable after the file is gone
+            Files.deleteIfExists(directory.resolve(entry.file()));
+        }
+        log.debug("Merged {} search segments into {} ({} documents)", candidates.size(), mergedEntry.file(),
+                merged.docCount());
+        return true;
+    }
+
+    private Entry writeSegment(SegmentBuilder builder) throws IOException {
+        String name = String.format("%012d%s", ++generation, SEGMENT_SUFFIX);
+        Path file = directory.resolve(name);
+        MappedSegment.write(builder, file);
+        return new Entry(MappedSegment.open(file), name);
+    }
+
+    // the active builder is only swapped by this thread, so it can be carried over as is
+    private void replaceSegments(List<Entry> segments) {
+        state = new State(List.copyOf(segments), state.active());
+    }
+
+    private void writeManifest() throws IOException {
+        List<String> files = new ArrayList<>();
+        for (Entry entry : state.segments()) {
+            if (entry.file() != null) {
+                files.add(entry.file());
+            }
+        }
+        Properties properties = new Properties();
+        properties.setProperty("version", String.valueOf(MappedSegment.VERSION));
+        properties.setProperty("generation", String.valueOf(generation));
+        properties.setProperty("watermark", String.valueOf(watermark));
+        properties.setProperty("segments", String.join(",", files));
+        Path temporary = directory.resolve(MANIFEST + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            properties.store(out, "search index");
+        }
+        Files.move(temporary, directory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,30 @@
+package com.substring.chat.search;
+
+/**
+ * A searchable set of messages, numbered 0..docCount-1 in the order they were added. Doc numbers are local
+ * to the segment.
+ */
+interface Segment {
+
+    int docCount();
+
+    /** Sum of all documents' token counts, for BM25's average document length. */
+    long totalLength();
+
+    /** Documents containing the term, ascending, with the term's frequency in each; null if none do. */
+    Postings postings(String term);
+
+    /** Segment-local ordinal of the chat, or -1 if none of its messages are here. */
+    int chatOrdinal(String chatId);
+
+    int chatOrdinalOf(int doc);
+
+    int length(int doc);
+
+    long timestamp(int doc);
+
+    IndexedMessage document(int doc);
+
+    record Postings(int[] docs, int[] freqs) {
+    }
+}
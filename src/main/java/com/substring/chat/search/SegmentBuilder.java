@@ -0,0 +1,143 @@
+package com.substring.chat.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The in-memory segment new messages are added to. It is searchable while it fills, then frozen and written
+ * out as a {@link MappedSegment}; merges build one from the documents of the segments they combine.
+ */
+final class SegmentBuilder implements Segment {
+
+    // term -> interleaved (doc, freq) pairs, docs ascending since they are only ever appended
+    private final Map<String, IntList> postings = new HashMap<>();
+
+    private final Map<String, Integer> chatOrdinals = new HashMap<>();
+
+    private final List<String> chats = new ArrayList<>();
+
+    private final List<IndexedMessage> documents = new ArrayList<>();
+
+    private final IntList docChats = new IntList();
+
+    private final IntList lengths = new IntList();
+
+    private long totalLength;
+
+    private boolean frozen;
+
+    /**
+     * Adds the message unless the builder was frozen, in which case the caller adds it to the next one.
+     */
+    boolean add(IndexedMessage message) {
+        Map<String, Integer> freqs = new LinkedHashMap<>();
+        int[] length = new int[1];
+        Tokenizer.tokenize(message.text(), (term, start, end) -> {
+            freqs.merge(term, 1, Integer::sum);
+            length[0]++;
+        });
+
+        synchronized (this) {
+            if (frozen) {
+                return false;
+            }
+            int doc = documents.size();
+            documents.add(message);
+            docChats.add(chatOrdinals.computeIfAbsent(message.chatId(), chatId -> {
+                chats.add(chatId);
+                return chats.size() - 1;
+            }));
+            lengths.add(length[0]);
+            totalLength += length[0];
+            freqs.forEach((term, freq) -> {
+                IntList list = postings.computeIfAbsent(term, t -> new IntList());
+                list.add(doc);
+                list.add(freq);
+            });
+            return true;
+        }
+    }
+
+    synchronized void freeze() {
+        frozen = true;
+    }
+
+    @Override
+    public synchronized int docCount() {
+        return documents.size();
+    }
+
+    @Override
+    public synchronized long totalLength() {
+        return totalLength;
+    }
+
+    @Override
+    public synchronized Postings postings(String term) {
+        IntList list = postings.get(term);
+        if (list == null) {
+            return null;
+        }
+        int count = list.size / 2;
+        int[] docs = new int[count];
+        int[] freqs = new int[count];
+        for (int i = 0; i < count; i++) {
+            docs[i] = list.values[2 * i];
+            freqs[i] = list.values[2 * i + 1];
+        }
+        return new Postings(docs, freqs);
+    }
+
+    @Override
+    public synchronized int chatOrdinal(String chatId) {
+        return chatOrdinals.getOrDefault(chatId, -1);
+    }
+
+    @Override
+    public synchronized int chatOrdinalOf(int doc) {
+        return docChats.values[doc];
+    }
+
+    @Override
+    public synchronized int length(int doc) {
+        return lengths.values[doc];
+    }
+
+    @Override
+    public synchronized long timestamp(int doc) {
+        return documents.get(doc).timestamp();
+    }
+
+    @Override
+    public synchronized IndexedMessage document(int doc) {
+        return documents.get(doc);
+    }
+
+    // the writer's view; only called once the builder is frozen
+
+    List<String> chats() {
+        return chats;
+    }
+
+    Map<String, IntList> postingLists() {
+        return postings;
+    }
+
+    static final class IntList {
+
+        int[] values = new int[4];
+
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
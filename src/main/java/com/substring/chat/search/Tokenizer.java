@@ -0,0 +1,54 @@
+package com.substring.chat.search;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits text into lower-cased runs of letters and digits. Indexing, queries and snippets all go through
+ * here, so a query term matches exactly the tokens it was indexed as.
+ */
+final class Tokenizer {
+
+    // longer runs are pasted blobs or URLs' guts, not words anyone searches for
+    static final int MAX_TOKEN_LENGTH = 64;
+
+    interface TokenSink {
+        void token(String term, int start, int end);
+    }
+
+    private Tokenizer() {
+    }
+
+    static void tokenize(String text, TokenSink sink) {
+        if (text == null) {
+            return;
+        }
+        StringBuilder term = new StringBuilder();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int codePoint = text.codePointAt(i);
+            if (!Character.isLetterOrDigit(codePoint)) {
+                i += Character.charCount(codePoint);
+                continue;
+            }
+            int start = i;
+            term.setLength(0);
+            while (i < length && Character.isLetterOrDigit(codePoint = text.codePointAt(i))) {
+                term.appendCodePoint(Character.toLowerCase(codePoint));
+                i += Character.charCount(codePoint);
+            }
+            if (term.length() <= MAX_TOKEN_LENGTH) {
+                sink.token(term.toString(), start, i);
+            }
+        }
+    }
+
+    /** Distinct terms of a query, in order. */
+    static List<String> terms(String query) {
+        Set<String> terms = new LinkedHashSet<>();
+        tokenize(query, (term, start, end) -> terms.add(term));
+        return List.copyOf(terms);
+    }
+}
@@ -0,0 +1,25 @@
+package com.substring.chat.security;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Counts rejected authentication attempts as {@code auth.failures}, tagged by where the credentials
+ * arrived ({@code http}, {@code stomp}, {@code login}) and why they were refused.
+ */
+@Component
+public class AuthFailures {
+
+    public static final String INVALID_TOKEN = "invalid_token";
+    public static final String REVOKED = "revoked";
+    public static final String BAD_CREDENTIALS = "bad_credentials";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    public void record(String channel, String reason) {
+        meterRegistry.counter("auth.failures", "channel", channel, "reason", reason).increment();
+    }
+}
@@ -1,8 +1,12 @@
 package com.substring.chat.security;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.substring.chat.model.User;
 import com.substring.chat.repository.UserRepository;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
@@ -10,15 +14,48 @@ import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.util.Collection;
 import java.util.Collections;
 
 @Service
 public class CustomUserDetailsService implements UserDetailsService {
 
+    private static final Collection<? extends GrantedAuthority> AUTHORITIES =
+            Collections.singletonList(new SimpleGrantedAuthority("USER"));
+
     @Autowired
     private UserRepository userRepository;
 
+    @Value("${security.user-cache.enabled:true}")
+    private boolean userCacheEnabled;
+
+    @Value("${security.user-cache.ttl-seconds:60}")
+    private long userCacheTtlSeconds;
+
+    @Value("${security.user-cache.max-size:10000}")
+    private long userCacheMaxSize;
+
+    @Value("${jwt.expiration}")
+    private Long jwtExpiration;
+
+    // request principals only, never holds password hashes
+    private Cache<String, UserDetails> requestPrincipals;
+
+    // deleted/disabled users; kept as long as any token issued before revocation can still be valid
+    private Cache<String, Boolean> revokedUsers;
+
+    @PostConstruct
+    void init() {
+        requestPrincipals = Caffeine.newBuilder()
+                .maximumSize(userCacheMaxSize)
+                .expireAfterWrite(Duration.ofSeconds(userCacheTtlSeconds))
+                .build();
+        revokedUsers = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofMillis(jwtExpiration))
+                .build();
+    }
+
     @Override
     public UserDetails loadUserByUsername(String userId) throws UsernameNotFoundException {
         User user = userRepository.findById(userId)
@@ -31,7 +68,62 @@ public class CustomUserDetailsService implements UserDetailsService {
         );
     }
 
+    /**
+     * Builds the request principal purely from a verified token, without touching Mongo.
+     * Returns null if the user has been revoked since the token was issued.
+     */
+    public UserDetails loadUserFromToken(VerifiedToken verifiedToken) {
+        String userId = verifiedToken.userId();
+        if (isRevoked(userId)) {
+            return null;
+        }
+        return buildPrincipal(userId);
+    }
+
+    /**
+     * Loads the request principal from Mongo, going through the short-lived user cache when enabled.
+     */
+    public UserDetails loadUserForRequest(String userId) throws UsernameNotFoundException {
+        if (isRevoked(userId)) {
+            throw new UsernameNotFoundException("User not found with id: " + userId);
+        }
+        if (!userCacheEnabled) {
+            return loadPrincipalFromRepository(userId);
+        }
+        UserDetails principal = requestPrincipals.getIfPresent(userId);
+        if (principal == null) {
+            // loaded outside the cache so the Mongo call doesn't run under its bin lock (virtual-thread pinning)
+            principal = loadPrincipalFromRepository(userId);
+            requestPrincipals.put(userId, principal);
+        }
+        return principal;
+    }
+
+    public void evictUser(String userId) {
+        requestPrincipals.invalidate(userId);
+    }
+
+    public void revokeUser(String userId) {
+        revokedUsers.put(userId, Boolean.TRUE);
+        requestPrincipals.invalidate(userId);
+    }
+
+    public boolean isRevoked(String userId) {
+        return revokedUsers.getIfPresent(userId) != null;
+    }
+
+    private UserDetails loadPrincipalFromRepository(String userId) {
+        if (!userRepository.existsById(userId)) {
+            throw new UsernameNotFoundException("User not found with id: " + userId);
+        }
+        return buildPrincipal(userId);
+    }
+
+    private UserDetails buildPrincipal(String userId) {
+        return new org.springframework.security.core.userdetails.User(userId, "", getAuthorities());
+    }
+
     private Collection<? extends GrantedAuthority> getAuthorities() {
-        return Collections.singletonList(new SimpleGrantedAuthority("USER"));
+        return AUTHORITIES;
     }
-}
\ No newline at end of file
+}
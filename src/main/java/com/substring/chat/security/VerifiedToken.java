@@ -0,0 +1,18 @@
+package com.substring.chat.security;
+
+import java.util.Date;
+
+/**
+ * Result of verifying a JWT once: the subject and the timestamps we need later,
+ * so callers never have to parse the same token again.
+ */
+public record VerifiedToken(String userId, Date issuedAt, Date expiration) {
+
+    public boolean isExpired() {
+        return expiration != null && expiration.getTime() <= System.currentTimeMillis();
+    }
+
+    public long millisUntilExpiry() {
+        return expiration == null ? Long.MAX_VALUE : expiration.getTime() - System.currentTimeMillis();
+    }
+}
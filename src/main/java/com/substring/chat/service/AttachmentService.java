@@ -0,0 +1,328 @@
+package com.substring.chat.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import com.substring.chat.dto.AttachmentResponse;
+import com.substring.chat.dto.AttachmentUploadRequest;
+import com.substring.chat.model.Attachment;
+import com.substring.chat.model.Message;
+import com.substring.chat.repository.AttachmentRepository;
+import com.substring.chat.storage.BlobStore;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Resumable attachment uploads. A client declares the file, then sends its bytes in one or more chunks,
+ * each starting where the staged upload ends; after an interruption it reads {@code received} and carries
+ * on from there. The last chunk stores the file under its content hash, so a file sent twice takes space
+ * once. Participants of any chat where a message references the attachment may download it.
+ */
+@Service
+public class AttachmentService {
+
+    private static final Logger log = LoggerFactory.getLogger(AttachmentService.class);
+
+    private static final Duration PURGE_INTERVAL = Duration.ofHours(1);
+
+    @Autowired
+    private AttachmentRepository attachmentRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Autowired
+    private ChatService chatService;
+
+    @Autowired
+    @Qualifier("messageBrokerTaskScheduler")
+    private TaskScheduler scheduler;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${attachments.max-size-mb:100}")
+    private long maxSizeMb;
+
+    @Value("${attachments.max-per-message:10}")
+    private int maxPerMessage;
+
+    @Value("${attachments.upload-expiry-hours:24}")
+    private long uploadExpiryHours;
+
+    @Value("${attachments.chunk-lease-minutes:10}")
+    private long chunkLeaseMinutes;
+
+    private Counter uploadedBytes;
+
+    private Counter storedBlobs;
+
+    private Counter deduplicatedBlobs;
+
+    @PostConstruct
+    void init() {
+        uploadedBytes = Counter.builder("attachments.uploaded")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        storedBlobs = Counter.builder("attachments.stored")
+                .tag("result", "new")
+                .register(meterRegistry);
+        deduplicatedBlobs = Counter.builder("attachments.stored")
+                .tag("result", "deduplicated")
+                .register(meterRegistry);
+        scheduler.scheduleWithFixedDelay(this::purgeExpiredUploads, Instant.now().plus(PURGE_INTERVAL), PURGE_INTERVAL);
+    }
+
+    public AttachmentResponse createUpload(String ownerId, AttachmentUploadRequest request) {
+        if (request.getSize() <= 0) {
+            throw new RuntimeException("Attachment size must be positive");
+        }
+        if (request.getSize() > maxSizeMb * 1024 * 1024) {
+            throw new RuntimeException("Attachment exceeds " + maxSizeMb + " MB");
+        }
+        if (request.getFileName() == null || request.getFileName().isBlank()) {
+            throw new RuntimeException("File name is required");
+        }
+
+        Attachment attachment = new Attachment();
+        attachment.setOwnerId(ownerId);
+        attachment.setFileName(request.getFileName());
+        attachment.setContentType(request.getContentType() != null && !request.getContentType().isBlank()
+                ? request.getContentType()
+                : "application/octet-stream");
+        attachment.setSize(request.getSize());
+        if (request.getSha256() != null && !request.getSha256().isBlank()) {
+            attachment.setExpectedSha256(request.getSha256().toLowerCase(Locale.ROOT));
+        }
+        attachment.setStatus(Attachment.AttachmentStatus.UPLOADING);
+        attachment.setCreatedAt(LocalDateTime.now());
+
+        return AttachmentResponse.fromAttachment(attachmentRepository.save(attachment), 0);
+    }
+
+    public AttachmentResponse getUpload(String attachmentId, String userId) {
+        Attachment attachment = findAttachment(attachmentId);
+        if (!attachment.getOwnerId().equals(userId)) {
+            throw new RuntimeException("User is not authorized to access this attachment");
+        }
+        return AttachmentResponse.fromAttachment(attachment, received(attachment));
+    }
+
+    /**
+     * Writes one chunk, which must start at the upload's current {@code received}. The chunk may stop
+     * anywhere; the one that reaches the declared size completes the upload.
+     */
+    public AttachmentResponse appendChunk(String attachmentId, String userId, long offset, ReadableByteChannel body) {
+        Attachment attachment = findAttachment(attachmentId);
+        if (!attachment.getOwnerId().equals(userId)) {
+            throw new RuntimeException("User is not authorized to access this attachment");
+        }
+        if (attachment.getStatus() == Attachment.AttachmentStatus.COMPLETE) {
+            throw new RuntimeException("Attachment is already uploaded");
+        }
+        String lease = acquireChunkLease(attachmentId);
+        try {
+            long received = blobStore.stagedSize(attachmentId);
+            if (offset != received) {
+                throw new RuntimeException("Upload continues at offset " + received);
+            }
+            long written = blobStore.append(attachmentId, offset, body, attachment.getSize() - offset);
+            uploadedBytes.increment(written);
+            received += written;
+            if (received == attachment.getSize() && body.read(ByteBuffer.allocate(1)) > 0) {
+                throw new RuntimeException("Chunk runs past the declared size of " + attachment.getSize() + " bytes");
+            }
+            if (received == attachment.getSize()) {
+                if (!holdsChunkLease(attachmentId, lease)) {
+                    throw new RuntimeException("Chunk took longer than " + chunkLeaseMinutes + " minutes; upload it again");
+                }
+                complete(attachment);
+            }
+            return AttachmentResponse.fromAttachment(attachment, received);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to store attachment chunk", e);
+        } finally {
+            releaseChunkLease(attachmentId, lease);
+        }
+    }
+
+    /**
+     * Claims the upload for one chunk in Mongo, so two instances sharing the staging directory never write
+     * the same upload at once. A lease left by an instance that died mid-chunk expires after the lease time.
+     */
+    private String acquireChunkLease(String attachmentId) {
+        String lease = UUID.randomUUID().toString();
+        LocalDateTime now = LocalDateTime.now();
+        Query free = Query.query(Criteria.where("_id").is(attachmentId)
+                .and("status").is(Attachment.AttachmentStatus.UPLOADING)
+                .orOperator(Criteria.where("chunkLeaseUntil").exists(false),
+                        Criteria.where("chunkLeaseUntil").is(null),
+                        Criteria.where("chunkLeaseUntil").lt(now)));
+        Update claim = new Update()
+                .set("chunkLease", lease)
+                .set("chunkLeaseUntil", now.plusMinutes(chunkLeaseMinutes));
+        if (mongoTemplate.updateFirst(free, claim, Attachment.class).getModifiedCount() == 0) {
+            throw new RuntimeException("Another chunk of this attachment is being uploaded");
+        }
+        return lease;
+    }
+
+    private boolean holdsChunkLease(String attachmentId, String lease) {
+        return mongoTemplate.exists(Query.query(Criteria.where("_id").is(attachmentId)
+                .and("chunkLease").is(lease)
+                .and("chunkLeaseUntil").gte(LocalDateTime.now())), Attachment.class);
+    }
+
+    private void releaseChunkLease(String attachmentId, String lease) {
+        try {
+            mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("_id").is(attachmentId).and("chunkLease").is(lease)),
+                    new Update().unset("chunkLease").unset("chunkLeaseUntil"),
+                    Attachment.class);
+        } catch (RuntimeException e) {
+            log.warn("Failed to release chunk lease of upload {}", attachmentId, e);
+        }
+    }
+
+    private void complete(Attachment attachment) throws IOException {
+        String key = blobStore.hash(attachment.getId());
+        if (attachment.getExpectedSha256() != null && !attachment.getExpectedSha256().equals(key)) {
+            // checked before committing, so content the client did not mean to send is never stored
+            blobStore.discard(attachment.getId());
+            attachmentRepository.delete(attachment);
+            throw new RuntimeException("Attachment content does not match its SHA-256; upload it again");
+        }
+        BlobStore.Stored stored = blobStore.commit(attachment.getId(), key);
+        (stored.deduplicated() ? deduplicatedBlobs : storedBlobs).increment();
+        attachment.setBlobKey(stored.key());
+        attachment.setStatus(Attachment.AttachmentStatus.COMPLETE);
+        attachment.setCompletedAt(LocalDateTime.now());
+        attachmentRepository.save(attachment);
+    }
+
+    /**
+     * Checks that the sender owns the attachments and they are complete, grants the chat's participants
+     * access to them, and returns what the message embeds.
+     */
+    public List<Message.AttachmentRef> attachToChat(String senderId, String chatId, List<String> attachmentIds) {
+        Set<String> ids = new LinkedHashSet<>(attachmentIds);
+        if (ids.size() > maxPerMessage) {
+            throw new RuntimeException("A message can carry at most " + maxPerMessage + " attachments");
+        }
+        Query owned = Query.query(Criteria.where("_id").in(ids)
+                .and("ownerId").is(senderId)
+                .and("status").is(Attachment.AttachmentStatus.COMPLETE));
+        Map<String, Attachment> found = mongoTemplate.find(owned, Attachment.class).stream()
+                .collect(Collectors.toMap(Attachment::getId, Function.identity()));
+        if (found.size() != ids.size()) {
+            throw new RuntimeException("Attachment not found");
+        }
+        if (found.values().stream().anyMatch(attachment -> attachment.getChatIds() == null
+                || !attachment.getChatIds().contains(chatId))) {
+            mongoTemplate.updateMulti(owned, new Update().addToSet("chatIds", chatId), Attachment.class);
+        }
+
+        List<Message.AttachmentRef> refs = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Attachment attachment = found.get(id);
+            Message.AttachmentRef ref = new Message.AttachmentRef();
+            ref.setId(attachment.getId());
+            ref.setFileName(attachment.getFileName());
+            ref.setContentType(attachment.getContentType());
+            ref.setSize(attachment.getSize());
+            refs.add(ref);
+        }
+        return refs;
+    }
+
+    /**
+     * The attachment if its upload is complete and the user may read it: its owner, or a participant of a
+     * chat it was sent to.
+     */
+    public Attachment getForDownload(String attachmentId, String userId) {
+        Attachment attachment = findAttachment(attachmentId);
+        if (attachment.getStatus() != Attachment.AttachmentStatus.COMPLETE) {
+            throw new RuntimeException("Attachment is not uploaded yet");
+        }
+        boolean allowed = attachment.getOwnerId().equals(userId)
+                || (attachment.getChatIds() != null && attachment.getChatIds().stream()
+                        .anyMatch(chatId -> chatService.isUserParticipantOfChat(chatId, userId)));
+        if (!allowed) {
+            throw new RuntimeException("User is not authorized to access this attachment");
+        }
+        return attachment;
+    }
+
+    /** The blob's local file, for the servlet container to send without copying through the heap. */
+    public Path localFile(Attachment attachment) {
+        return blobStore.localPath(attachment.getBlobKey());
+    }
+
+    public long transferTo(Attachment attachment, long position, long count, WritableByteChannel target)
+            throws IOException {
+        return blobStore.transferTo(attachment.getBlobKey(), position, count, target);
+    }
+
+    private Attachment findAttachment(String attachmentId) {
+        return attachmentRepository.findById(attachmentId)
+                .orElseThrow(() -> new RuntimeException("Attachment not found"));
+    }
+
+    private long received(Attachment attachment) {
+        if (attachment.getStatus() == Attachment.AttachmentStatus.COMPLETE) {
+            return attachment.getSize();
+        }
+        try {
+            return blobStore.stagedSize(attachment.getId());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read upload state", e);
+        }
+    }
+
+    // uploads never finished within the expiry are dropped with their staged bytes
+    private void purgeExpiredUploads() {
+        Query expired = Query.query(Criteria.where("status").is(Attachment.AttachmentStatus.UPLOADING)
+                .and("createdAt").lt(LocalDateTime.now().minusHours(uploadExpiryHours)));
+        for (Attachment attachment : mongoTemplate.find(expired, Attachment.class)) {
+            try {
+                blobStore.discard(attachment.getId());
+                attachmentRepository.delete(attachment);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to purge expired upload {}", attachment.getId(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.substring.chat.service;
+
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.substring.chat.model.Chat;
+import com.substring.chat.repository.ChatRepository;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * In-process chatId -> participants index used to authorize chat reads without a Mongo round trip.
+ * Entries are loaded lazily and bounded by a frequency-aware (W-TinyLFU) eviction policy.
+ */
+@Component
+public class ChatMembershipCache {
+
+    @Autowired
+    private ChatRepository chatRepository;
+
+    @Value("${chat.membership-cache.max-size:100000}")
+    private long maxSize;
+
+    private Cache<String, Set<String>> participantsByChat;
+
+    @PostConstruct
+    void init() {
+        participantsByChat = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+    }
+
+    public boolean isParticipant(String chatId, String userId) {
+        Set<String> participants = participantsByChat.getIfPresent(chatId);
+        if (participants == null) {
+            // loaded outside the cache: a loader runs inside a synchronized map bin and would pin a
+            // virtual thread for the whole Mongo round trip; a rare duplicate load is harmless
+            participants = loadParticipants(chatId);
+            if (participants == null) {
+                throw new RuntimeException("Chat not found");
+            }
+            participantsByChat.put(chatId, participants);
+        }
+        return participants.contains(userId);
+    }
+
+    public void put(Chat chat) {
+        if (chat.getChatId() != null && chat.getParticipants() != null) {
+            participantsByChat.put(chat.getChatId(), Set.copyOf(chat.getParticipants()));
+        }
+    }
+
+    public void evict(String chatId) {
+        participantsByChat.invalidate(chatId);
+    }
+
+    public CacheStats stats() {
+        return participantsByChat.stats();
+    }
+
+    public long size() {
+        return participantsByChat.estimatedSize();
+    }
+
+    private Set<String> loadParticipants(String chatId) {
+        return chatRepository.findParticipantsByChatId(chatId)
+                .map(chat -> Set.copyOf(chat.getParticipants()))
+                .orElse(null);
+    }
+}
@@ -0,0 +1,250 @@
+package com.substring.chat.service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.substring.chat.model.Chat;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Hands out per-chat sequence numbers, hi/lo style: each node reserves a block of {@code block-size}
+ * numbers with one {@code $inc} on the chat's {@code sequenceHi} and allocates from it in memory. Numbers
+ * are unique per chat and increase on each node; blocks abandoned on restart or eviction leave gaps.
+ * <p>
+ * Every allocated number stays in flight until {@link #release} is called after its write, so
+ * {@link #settledSequences} can tell delta sync how far a client may safely advance its cursor. Numbers in
+ * flight are kept apart from the block cache, so evicting a chat's block never forgets them.
+ * <p>
+ * With {@code cluster.enabled} another node may be writing any number below this node's, so blocks are
+ * not used: each number is reserved on its own and leased in the chat's {@code sequencesInFlight} in the
+ * same update, and released from there. Leases older than {@code in-flight-lease-seconds} belong to a
+ * node that died mid-write and are ignored, and dropped on the chat's next reservation.
+ */
+@Component
+public class ChatSequenceAllocator {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatSequenceAllocator.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${message.sequence.block-size:100}")
+    private long blockSize;
+
+    @Value("${message.sequence.cache.max-size:100000}")
+    private long cacheMaxSize;
+
+    @Value("${message.sequence.in-flight-lease-seconds:60}")
+    private long inFlightLeaseSeconds;
+
+    @Value("${cluster.enabled:false}")
+    private boolean clusterEnabled;
+
+    private Cache<String, ChatBlock> blocks;
+
+    // per chat, allocated numbers whose write has not finished; a chat leaves the map once none are left
+    private final Map<String, ConcurrentSkipListSet<Long>> inFlight = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void init() {
+        blocks = Caffeine.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .expireAfterAccess(Duration.ofMinutes(30))
+                .build();
+    }
+
+    /**
+     * Next sequence number for the chat, marked in flight until released. Only a block refill goes to
+     * Mongo; senders to other chats never wait on each other.
+     */
+    public long allocate(String chatId) {
+        if (clusterEnabled) {
+            return reserveLeased(chatId);
+        }
+        ChatBlock block = blocks.get(chatId, id -> new ChatBlock());
+        // a ReentrantLock rather than synchronized so a refill doesn't pin a virtual thread
+        block.lock.lock();
+        try {
+            if (block.next > block.limit) {
+                long hi = reserveBlock(chatId);
+                block.next = hi - blockSize + 1;
+                block.limit = hi;
+            }
+            long sequence = block.next++;
+            inFlight.compute(chatId, (id, numbers) -> {
+                ConcurrentSkipListSet<Long> updated = numbers == null ? new ConcurrentSkipListSet<>() : numbers;
+                updated.add(sequence);
+                return updated;
+            });
+            return sequence;
+        } finally {
+            block.lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the number's write as finished, whether it succeeded or not.
+     */
+    public void release(String chatId, long sequence) {
+        if (clusterEnabled) {
+            releaseLease(chatId, sequence);
+            return;
+        }
+        inFlight.computeIfPresent(chatId, (id, numbers) -> {
+            numbers.remove(sequence);
+            return numbers.isEmpty() ? null : numbers;
+        });
+    }
+
+    /**
+     * Per chat, the highest number below which nothing is in flight and nothing more will be allocated, or
+     * {@code Long.MAX_VALUE} if none can be (a new block lies above every existing number). Without a cluster
+     * only this node's numbers are considered; with one, every node's leases. Read it before querying:
+     * anything at or below it that the query doesn't return was never written.
+     */
+    public Map<String, Long> settledSequences(List<String> chatIds) {
+        Map<String, Long> settled = new HashMap<>();
+        if (clusterEnabled) {
+            Query query = Query.query(Criteria.where("_id").in(chatIds));
+            query.fields().include("sequenceHi").include("sequencesInFlight");
+            LocalDateTime expired = LocalDateTime.now().minusSeconds(inFlightLeaseSeconds);
+            for (Chat chat : mongoTemplate.find(query, Chat.class)) {
+                settled.put(chat.getChatId(), settledSequence(chat, expired));
+            }
+        } else {
+            for (String chatId : chatIds) {
+                settled.put(chatId, localSettledSequence(chatId));
+            }
+        }
+        for (String chatId : chatIds) {
+            settled.putIfAbsent(chatId, Long.MAX_VALUE);
+        }
+        return settled;
+    }
+
+    private long localSettledSequence(String chatId) {
+        ChatBlock block = blocks.getIfPresent(chatId);
+        if (block == null) {
+            // the next block lies above every existing number, so only those still in flight hold the cursor back
+            return lowestInFlight(chatId, Long.MAX_VALUE);
+        }
+        // allocate takes a number and marks it in flight under the lock, so both are seen or neither
+        block.lock.lock();
+        try {
+            return lowestInFlight(chatId, block.limit == 0 ? Long.MAX_VALUE : block.next - 1);
+        } finally {
+            block.lock.unlock();
+        }
+    }
+
+    private long lowestInFlight(String chatId, long otherwise) {
+        ConcurrentSkipListSet<Long> numbers = inFlight.get(chatId);
+        Long lowest = numbers == null ? null : numbers.ceiling(Long.MIN_VALUE);
+        return lowest == null ? otherwise : Math.min(otherwise, lowest - 1);
+    }
+
+    // everything up to sequenceHi is reserved; the unexpired leases are the part not yet written
+    static long settledSequence(Chat chat, LocalDateTime expired) {
+        if (chat.getSequenceHi() == null) {
+            return Long.MAX_VALUE;
+        }
+        long settled = chat.getSequenceHi();
+        if (chat.getSequencesInFlight() != null) {
+            for (Chat.SequenceLease lease : chat.getSequencesInFlight()) {
+                if (lease.getAllocatedAt() != null && lease.getAllocatedAt().isAfter(expired)) {
+                    settled = Math.min(settled, lease.getSequence() - 1);
+                }
+            }
+        }
+        return settled;
+    }
+
+    private long reserveBlock(String chatId) {
+        Query query = Query.query(Criteria.where("_id").is(chatId));
+        query.fields().include("sequenceHi");
+        Chat chat = mongoTemplate.findAndModify(
+                query,
+                new Update().inc("sequenceHi", blockSize),
+                FindAndModifyOptions.options().returnNew(true),
+                Chat.class);
+        if (chat == null) {
+            throw new RuntimeException("Chat not found");
+        }
+        return chat.getSequenceHi();
+    }
+
+    // one number, leased in the same update that reserves it, so no other node can see it reserved but not leased
+    private long reserveLeased(String chatId) {
+        Document unexpired = new Document("$filter", new Document("input", ifNull("$sequencesInFlight", List.of()))
+                .append("as", "lease")
+                .append("cond", new Document("$gt", List.of("$$lease.allocatedAt",
+                        new Document("$subtract", List.of("$$NOW", inFlightLeaseSeconds * 1000))))));
+        AggregationOperation reserve = context -> new Document("$set", new Document()
+                .append("sequenceHi", new Document("$add", List.of(ifNull("$sequenceHi", 0L), 1L)))
+                .append("sequencesInFlight", unexpired));
+        AggregationOperation lease = context -> new Document("$set", new Document("sequencesInFlight",
+                new Document("$concatArrays", List.of("$sequencesInFlight",
+                        List.of(new Document("sequence", "$sequenceHi").append("allocatedAt", "$$NOW"))))));
+
+        Query query = Query.query(Criteria.where("_id").is(chatId));
+        query.fields().include("sequenceHi");
+        Chat chat = mongoTemplate.findAndModify(
+                query,
+                AggregationUpdate.from(List.of(reserve, lease)),
+                FindAndModifyOptions.options().returnNew(true),
+                Chat.class);
+        if (chat == null) {
+            throw new RuntimeException("Chat not found");
+        }
+        return chat.getSequenceHi();
+    }
+
+    // a lease left behind only holds the chat's sync cursor back until it expires
+    private void releaseLease(String chatId, long sequence) {
+        try {
+            mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("_id").is(chatId)),
+                    new Update().pull("sequencesInFlight", new Document("sequence", sequence)),
+                    Chat.class);
+        } catch (RuntimeException e) {
+            log.warn("Could not release sequence {} of chat {}: {}", sequence, chatId, e.getMessage());
+        }
+    }
+
+    private static Document ifNull(String field, Object otherwise) {
+        return new Document("$ifNull", List.of(field, otherwise));
+    }
+
+    private static final class ChatBlock {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        // an empty block, so the first allocation reserves one
+        private long next = 1;
+
+        private long limit = 0;
+    }
+}
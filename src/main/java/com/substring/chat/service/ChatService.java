@@ -1,58 +1,343 @@
 package com.substring.chat.service;
 
 import java.time.LocalDateTime;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationExpression;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.substring.chat.dto.ChatPageResponse;
 import com.substring.chat.dto.ChatResponse;
 import com.substring.chat.model.Chat;
+import com.substring.chat.model.Message;
 import com.substring.chat.repository.ChatRepository;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+
 @Service
 public class ChatService {
 
+    private static final Logger log = LoggerFactory.getLogger(ChatService.class);
+
+    private static final int MAX_PAGE_SIZE = 100;
+
+    private static final int PREVIEW_LENGTH = 100;
+
+    private static final Sort INBOX_ORDER = Sort.by(Sort.Direction.DESC, "lastActivityAt", "_id");
+
     @Autowired
     private ChatRepository chatRepository;
 
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ChatMembershipCache membershipCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.private-chat-cache.max-size:100000}")
+    private long privateChatCacheMaxSize;
+
+    // pairKey -> chatId, private chats never change participants so entries never go stale
+    private Cache<String, String> privateChatIds;
+
+    private Timer resolveTimer;
+
+    @PostConstruct
+    void init() {
+        resolveTimer = Timer.builder("chat.resolve")
+                .description("Private chat lookup or creation that missed the in-memory pair cache")
+                .register(meterRegistry);
+        privateChatIds = Caffeine.newBuilder()
+                .maximumSize(privateChatCacheMaxSize)
+                .build();
+    }
+
+    /**
+     * Resolves the private chat between two users, creating it on first use.
+     * Steady state is a single in-memory lookup with no chat query.
+     */
+    public String resolvePrivateChatId(String user1Id, String user2Id) {
+        String chatId = privateChatIds.getIfPresent(Chat.pairKeyOf(user1Id, user2Id));
+        if (chatId != null) {
+            return chatId;
+        }
+        return createOrGetChat(user1Id, user2Id).getChatId();
+    }
+
     public Chat createOrGetChat(String user1Id, String user2Id) {
-        List<Chat> existingChats = chatRepository.findByParticipantsWithAll(Arrays.asList(user1Id, user2Id));
-        
-        // Filter chats that contain exactly both participants
-        for (Chat chat : existingChats) {
-            if (chat.getParticipants().contains(user1Id) && 
-                chat.getParticipants().contains(user2Id) && 
-                chat.getParticipants().size() == 2) {
-                return chat;
+        return resolveTimer.record(() -> findOrCreatePrivateChat(user1Id, user2Id));
+    }
+
+    private Chat findOrCreatePrivateChat(String user1Id, String user2Id) {
+        String pairKey = Chat.pairKeyOf(user1Id, user2Id);
+
+        Chat chat = chatRepository.findByPairKey(pairKey)
+                .orElseGet(() -> adoptLegacyChat(pairKey, user1Id, user2Id));
+        if (chat == null) {
+            chat = upsertPrivateChat(pairKey, user1Id, user2Id);
+        }
+
+        privateChatIds.put(pairKey, chat.getChatId());
+        membershipCache.put(chat);
+        return chat;
+    }
+
+    // Private chats created before pair keys existed: claim the oldest one for this pair.
+    private Chat adoptLegacyChat(String pairKey, String user1Id, String user2Id) {
+        List<Chat> legacyChats = chatRepository.findLegacyPrivateChats(List.of(user1Id, user2Id));
+        if (legacyChats.isEmpty()) {
+            return null;
+        }
+
+        Chat chat = legacyChats.get(0);
+        for (Chat candidate : legacyChats) {
+            if (candidate.getCreatedAt() != null && chat.getCreatedAt() != null
+                    && candidate.getCreatedAt().isBefore(chat.getCreatedAt())) {
+                chat = candidate;
             }
         }
 
-        Chat chat = new Chat();
-        chat.setParticipants(List.of(user1Id, user2Id));
-        chat.setChatType(Chat.ChatType.PRIVATE);
-        chat.setCreatedAt(LocalDateTime.now());
-        
-        return chatRepository.save(chat);
+        try {
+            mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("_id").is(chat.getChatId())),
+                    Update.update("pairKey", pairKey),
+                    Chat.class);
+            chat.setPairKey(pairKey);
+            return chat;
+        } catch (DuplicateKeyException e) {
+            // another node adopted a different legacy chat for the same pair first
+            return chatRepository.findByPairKey(pairKey)
+                    .orElseThrow(() -> new RuntimeException("Chat not found"));
+        }
+    }
+
+    private Chat upsertPrivateChat(String pairKey, String user1Id, String user2Id) {
+        Query query = Query.query(Criteria.where("pairKey").is(pairKey));
+        LocalDateTime now = LocalDateTime.now();
+        Update update = new Update()
+                .setOnInsert("participants", List.of(user1Id, user2Id))
+                .setOnInsert("chatType", Chat.ChatType.PRIVATE)
+                .setOnInsert("createdAt", now)
+                .setOnInsert("lastActivityAt", now);
+
+        try {
+            return mongoTemplate.findAndModify(query, update,
+                    FindAndModifyOptions.options().upsert(true).returnNew(true), Chat.class);
+        } catch (DuplicateKeyException e) {
+            // concurrent upsert for the same pair won the insert, read its result
+            return mongoTemplate.findOne(query, Chat.class);
+        }
     }
 
     public List<ChatResponse> getChatsForUser(String userId) {
-        List<Chat> chats = chatRepository.findByParticipantsContaining(userId);
-        
+        Query query = Query.query(Criteria.where("participants").is(userId))
+                .with(INBOX_ORDER);
+        List<Chat> chats = mongoTemplate.find(query, Chat.class);
+
+        chats.forEach(membershipCache::put);
+
         return chats.stream()
-                .map(ChatResponse::fromChat)
+                .map(chat -> ChatResponse.fromChat(chat, userId))
                 .collect(Collectors.toList());
     }
 
+    /** Ids of every chat the user takes part in, read from the participants index alone. */
+    public Set<String> getChatIdsForUser(String userId) {
+        Query query = Query.query(Criteria.where("participants").is(userId));
+        query.fields().include("_id");
+        return mongoTemplate.find(query, Chat.class).stream()
+                .map(Chat::getChatId)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * One page of the inbox, most recently active chats first, read with a single query on the
+     * (participants, lastActivityAt, _id) index.
+     */
+    public ChatPageResponse getChatsPageForUser(String userId, String cursor, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+        Criteria criteria = Criteria.where("participants").is(userId);
+        if (cursor != null && !cursor.isBlank()) {
+            KeysetCursor position = KeysetCursor.decodeChat(cursor);
+            ObjectId lastId = new ObjectId(position.id());
+            // chats without an activity time sort after all others in descending order
+            criteria = position.timestamp() == null
+                    ? criteria.and("lastActivityAt").is(null).and("_id").lt(lastId)
+                    : criteria.orOperator(
+                            Criteria.where("lastActivityAt").lt(position.timestamp()),
+                            Criteria.where("lastActivityAt").is(position.timestamp()).and("_id").lt(lastId),
+                            Criteria.where("lastActivityAt").is(null));
+        }
+
+        Query query = Query.query(criteria)
+                .with(INBOX_ORDER)
+                .limit(pageSize + 1);
+        List<Chat> chats = new ArrayList<>(mongoTemplate.find(query, Chat.class));
+
+        boolean hasMore = chats.size() > pageSize;
+        if (hasMore) {
+            chats.remove(chats.size() - 1);
+        }
+        chats.forEach(membershipCache::put);
+
+        ChatPageResponse page = new ChatPageResponse();
+        page.setChats(chats.stream()
+                .map(chat -> ChatResponse.fromChat(chat, userId))
+                .collect(Collectors.toList()));
+        page.setHasMore(hasMore);
+        if (hasMore) {
+            page.setNextCursor(KeysetCursor.of(chats.get(chats.size() - 1)).encode());
+        }
+        return page;
+    }
+
+    /**
+     * Folds newly persisted messages into their chats' summaries: last message preview and activity
+     * time (never moved backwards), the highest sequence number plus the receivers' unread counters.
+     * One bulk round trip per call.
+     */
+    public void recordMessages(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        Map<String, Message> latestByChat = new LinkedHashMap<>();
+        Map<String, Map<String, Long>> unreadByChat = new HashMap<>();
+        Map<String, Long> lastSequenceByChat = new HashMap<>();
+        for (Message message : messages) {
+            latestByChat.merge(message.getChatId(), message,
+                    (current, candidate) -> candidate.getTimestamp().isBefore(current.getTimestamp()) ? current : candidate);
+            if (message.getReceiverId() != null && !message.getReceiverId().equals(message.getSenderId())) {
+                unreadByChat.computeIfAbsent(message.getChatId(), chatId -> new HashMap<>())
+                        .merge(message.getReceiverId(), 1L, Long::sum);
+            }
+            if (message.getSequence() != null) {
+                lastSequenceByChat.merge(message.getChatId(), message.getSequence(), Math::max);
+            }
+        }
+
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Chat.class);
+        for (Message latest : latestByChat.values()) {
+            Query notNewer = Query.query(Criteria.where("_id").is(latest.getChatId())
+                    .orOperator(
+                            Criteria.where("lastActivityAt").lte(latest.getTimestamp()),
+                            Criteria.where("lastActivityAt").is(null)));
+            Update summary = new Update()
+                    .set("lastMessage", preview(latest))
+                    .set("lastMessageSenderId", latest.getSenderId())
+                    .set("lastMessageTime", latest.getTimestamp())
+                    .set("lastActivityAt", latest.getTimestamp());
+            bulk.updateOne(notNewer, summary);
+        }
+        for (String chatId : latestByChat.keySet()) {
+            Update counters = new Update();
+            Long lastSequence = lastSequenceByChat.get(chatId);
+            if (lastSequence != null) {
+                counters.max("lastSequence", lastSequence);
+            }
+            unreadByChat.getOrDefault(chatId, Map.of())
+                    .forEach((receiverId, count) -> counters.inc("unreadCounts." + receiverId, count));
+            if (!counters.getUpdateObject().isEmpty()) {
+                bulk.updateOne(Query.query(Criteria.where("_id").is(chatId)), counters);
+            }
+        }
+
+        try {
+            bulk.execute();
+        } catch (RuntimeException e) {
+            // the messages are already stored, a stale inbox preview must not fail the send
+            log.warn("Failed to update summaries for {} chats", latestByChat.size(), e);
+        }
+    }
+
+    /**
+     * Takes {@code readCount} off the reader's unread counter, stopping at zero: messages sent before the
+     * counters existed were never counted, so their receipts must not drive it negative.
+     */
+    public void markRead(String chatId, String userId, long readCount) {
+        if (userId == null || readCount <= 0) {
+            return;
+        }
+        String counter = "unreadCounts." + userId;
+        AggregationExpression remaining = ArithmeticOperators
+                .valueOf(ConditionalOperators.ifNull(counter).then(0))
+                .subtract(readCount);
+        mongoTemplate.updateFirst(
+                Query.query(Criteria.where("_id").is(chatId)),
+                AggregationUpdate.update().set(counter).toValue(ConditionalOperators
+                        .when(ComparisonOperators.valueOf(remaining).greaterThanValue(0))
+                        .then(remaining)
+                        .otherwise(0)),
+                Chat.class);
+    }
+
+    /**
+     * Moves the reader's receipt watermark for the status to {@code messageId} at the given sequence
+     * number, so delta sync can pick up the change.
+     */
+    public void recordReceipt(String chatId, String userId, Message.MessageStatus status, String messageId,
+            long sequence) {
+        String mark = "receipts." + userId;
+        Update update = new Update()
+                .set(mark + (status == Message.MessageStatus.READ ? ".readUpTo" : ".deliveredUpTo"), messageId)
+                .max(mark + ".sequence", sequence)
+                .max("lastSequence", sequence);
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(chatId)), update, Chat.class);
+    }
+
+    private static String preview(Message message) {
+        String content = message.getContent();
+        if ((content == null || content.isBlank()) && message.getAttachments() != null
+                && !message.getAttachments().isEmpty()) {
+            content = "[" + message.getAttachments().get(0).getFileName() + "]";
+        }
+        if (content == null || content.length() <= PREVIEW_LENGTH) {
+            return content;
+        }
+        // never cut between the two halves of a surrogate pair
+        int end = Character.isHighSurrogate(content.charAt(PREVIEW_LENGTH - 1)) ? PREVIEW_LENGTH - 1 : PREVIEW_LENGTH;
+        return content.substring(0, end);
+    }
+
     public Chat getChatById(String chatId) {
-        return chatRepository.findById(chatId)
+        Chat chat = chatRepository.findById(chatId)
                 .orElseThrow(() -> new RuntimeException("Chat not found"));
+        membershipCache.put(chat);
+        return chat;
     }
 
     public boolean isUserParticipantOfChat(String chatId, String userId) {
-        Chat chat = getChatById(chatId);
-        return chat.getParticipants().contains(userId);
+        return membershipCache.isParticipant(chatId, userId);
     }
-}
\ No newline at end of file
+}
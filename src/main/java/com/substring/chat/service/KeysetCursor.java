@@ -0,0 +1,60 @@
+package com.substring.chat.service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+import com.substring.chat.model.Chat;
+import com.substring.chat.model.Message;
+
+/**
+ * Opaque keyset position: the (timestamp, id) of the last document a client has seen,
+ * either a message in a chat's history or a chat in the inbox.
+ */
+public record KeysetCursor(LocalDateTime timestamp, String id) {
+
+    public enum Direction {
+        BEFORE,
+        AFTER
+    }
+
+    public static KeysetCursor of(Message message) {
+        return new KeysetCursor(message.getTimestamp(), message.getMessageId());
+    }
+
+    /** A chat's inbox position; its timestamp is null for a chat with no activity time yet. */
+    public static KeysetCursor of(Chat chat) {
+        return new KeysetCursor(chat.getLastActivityAt(), chat.getChatId());
+    }
+
+    public String encode() {
+        String raw = (timestamp == null ? "" : timestamp.toString()) + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Decodes a message position, which always has a timestamp. */
+    public static KeysetCursor decode(String cursor) {
+        KeysetCursor position = decodeChat(cursor);
+        if (position.timestamp() == null) {
+            throw new RuntimeException("Invalid cursor");
+        }
+        return position;
+    }
+
+    /** Decodes an inbox position, whose timestamp may be null. */
+    public static KeysetCursor decodeChat(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = raw.indexOf('|');
+            if (separator < 0) {
+                throw new RuntimeException("Invalid cursor");
+            }
+            String timestamp = raw.substring(0, separator);
+            return new KeysetCursor(timestamp.isEmpty() ? null : LocalDateTime.parse(timestamp),
+                    raw.substring(separator + 1));
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            throw new RuntimeException("Invalid cursor");
+        }
+    }
+}
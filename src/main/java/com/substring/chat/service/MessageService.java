@@ -1,81 +1,648 @@
 package com.substring.chat.service;
 
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
+import com.mongodb.client.result.UpdateResult;
+import com.substring.chat.archive.ChatArchive;
+import com.substring.chat.archive.MessageArchive;
+import com.substring.chat.dto.ChatSyncResponse;
+import com.substring.chat.dto.MessagePageResponse;
+import com.substring.chat.dto.MessageSearchHit;
+import com.substring.chat.dto.MessageSearchResponse;
 import com.substring.chat.dto.MessageRequest;
 import com.substring.chat.dto.MessageResponse;
+import com.substring.chat.dto.ReceiptRequest;
+import com.substring.chat.dto.ReceiptResponse;
+import com.substring.chat.dto.SyncRequest;
+import com.substring.chat.dto.SyncResponse;
+import com.substring.chat.jfr.MessageTrace;
 import com.substring.chat.model.Chat;
 import com.substring.chat.model.Message;
 import com.substring.chat.repository.MessageRepository;
+import com.substring.chat.search.SearchIndex;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
 
 @Service
 public class MessageService {
 
+    private static final int MAX_PAGE_SIZE = 200;
+
+    private static final int STREAM_BATCH_SIZE = 500;
+
+    private static final int DEFAULT_SYNC_LIMIT = 50;
+
+    private static final int MAX_SEARCH_LIMIT = 50;
+
     @Autowired
     private MessageRepository messageRepository;
 
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
     @Autowired
     private ChatService chatService;
 
-    public Message sendMessage(String senderId, MessageRequest request) {
-        
-        Chat chat = chatService.createOrGetChat(senderId, request.getReceiverId());
+    @Autowired
+    private MessageWriteBatcher writeBatcher;
+
+    @Autowired
+    private ChatSequenceAllocator sequenceAllocator;
+
+    @Autowired
+    private RecentMessageCache recentMessages;
+
+    @Autowired
+    private AttachmentService attachmentService;
+
+    @Autowired
+    private SearchIndex searchIndex;
+
+    @Autowired
+    private MessageArchive messageArchive;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Timer sendTimer;
+
+    private Timer historyPageTimer;
+
+    private Timer historyCursorTimer;
+
+    private Timer searchTimer;
+
+    @PostConstruct
+    void init() {
+        sendTimer = Timer.builder("chat.messages.send")
+                .description("Resolve, persist and acknowledge one message, including the wait for its batch")
+                .register(meterRegistry);
+        historyPageTimer = historyTimer("page");
+        historyCursorTimer = historyTimer("cursor");
+        searchTimer = Timer.builder("chat.search")
+                .register(meterRegistry);
+    }
+
+    private Timer historyTimer(String kind) {
+        return Timer.builder("chat.history.read")
+                .tag("kind", kind)
+                .register(meterRegistry);
+    }
+
+    public Message sendMessage(String senderId, MessageRequest request, MessageTrace trace) {
+        return sendMessage(senderId, resolveChatId(senderId, request, trace), request, trace);
+    }
+
+    /** Same as {@link #sendMessage(String, MessageRequest, MessageTrace)} for a chat the caller already resolved. */
+    public Message sendMessage(String senderId, String chatId, MessageRequest request, MessageTrace trace) {
+        if (writeBatcher.isEnabled()) {
+            try {
+                return sendMessageAsync(senderId, chatId, request, trace).join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+        return sendTimer.record(() -> persist(buildMessage(senderId, chatId, request), trace));
+    }
+
+    /**
+     * Same as {@link #sendMessage} but completes once the message's batch is persisted,
+     * without holding the caller's thread when group commit is enabled.
+     */
+    public CompletableFuture<Message> sendMessageAsync(String senderId, MessageRequest request, MessageTrace trace) {
+        return sendMessageAsync(senderId, resolveChatId(senderId, request, trace), request, trace);
+    }
+
+    private CompletableFuture<Message> sendMessageAsync(String senderId, String chatId, MessageRequest request,
+            MessageTrace trace) {
+        long start = System.nanoTime();
+        Message message = buildMessage(senderId, chatId, request);
+        if (writeBatcher.isEnabled()) {
+            return writeBatcher.submit(message)
+                    .whenComplete((saved, error) -> {
+                        sequenceAllocator.release(message.getChatId(), message.getSequence());
+                        sendTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        if (saved != null) {
+                            recentMessages.onPersisted(saved);
+                            searchIndex.index(saved);
+                            trace.persisted(saved);
+                        }
+                    });
+        }
+        Message saved = persist(message, trace);
+        sendTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return CompletableFuture.completedFuture(saved);
+    }
+
+    private Message persist(Message message, MessageTrace trace) {
+        try {
+            Message savedMessage = messageRepository.save(message);
+            chatService.recordMessages(List.of(savedMessage));
+            recentMessages.onPersisted(savedMessage);
+            searchIndex.index(savedMessage);
+            trace.persisted(savedMessage);
+            return savedMessage;
+        } finally {
+            sequenceAllocator.release(message.getChatId(), message.getSequence());
+        }
+    }
 
+    private String resolveChatId(String senderId, MessageRequest request, MessageTrace trace) {
+        String chatId = chatService.resolvePrivateChatId(senderId, request.getReceiverId());
+        trace.chatResolved(chatId);
+        return chatId;
+    }
+
+    private Message buildMessage(String senderId, String chatId, MessageRequest request) {
+        
         Message message = new Message();
-        message.setChatId(chat.getChatId());
+        message.setChatId(chatId);
         message.setSenderId(senderId);
         message.setReceiverId(request.getReceiverId());
         message.setContent(request.getContent());
-        message.setTimestamp(LocalDateTime.now());
+        if (request.getAttachmentIds() != null && !request.getAttachmentIds().isEmpty()) {
+            message.setAttachments(attachmentService.attachToChat(senderId, chatId, request.getAttachmentIds()));
+        }
+        // Mongo keeps milliseconds; truncating here keeps in-memory copies and cursors equal to stored ones
+        message.setTimestamp(LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS));
+        message.setSequence(sequenceAllocator.allocate(chatId));
         message.setStatus(Message.MessageStatus.SENT);
 
-        return messageRepository.save(message);
+        return message;
     }
 
     public List<MessageResponse> getChatHistory(String chatId, String userId, int page, int size) {
+        return historyPageTimer.record(() -> readHistory(chatId, userId, page, size));
+    }
+
+    private List<MessageResponse> readHistory(String chatId, String userId, int page, int size) {
         
         if (!chatService.isUserParticipantOfChat(chatId, userId)) {
             throw new RuntimeException("User is not authorized to access this chat");
         }
 
-        Pageable pageable = PageRequest.of(page, size);
-        List<Message> messages = messageRepository.findByChatIdOrderByTimestampAsc(chatId, pageable);
+        if (page < 0 || size < 1) {
+            throw new RuntimeException("Invalid page");
+        }
+
+        List<MessageResponse> cached = recentMessages.offsetPage(chatId, page, size);
+        if (cached != null) {
+            return cached;
+        }
+
+        long offset = (long) page * size;
+        List<Message> messages = readArchivedThenHot(chatId, archive -> {
+            // archived messages are the start of the history, Mongo holds the rest
+            List<Message> read = new ArrayList<>(archive.range(offset, size));
+            if (read.size() < size) {
+                Query query = Query.query(hotMessages(chatId, archive, null, null))
+                        .with(Sort.by(Sort.Direction.ASC, "timestamp", "_id"))
+                        .skip(Math.max(0, offset - archive.size()))
+                        .limit(size - read.size());
+                read.addAll(mongoTemplate.find(query, Message.class));
+            }
+            return read;
+        });
 
         return messages.stream()
                 .map(MessageResponse::fromMessage)
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Keyset page of a chat's history: up to {@code limit} messages strictly before or after the cursor.
+     * Without a cursor, BEFORE returns the newest page and AFTER the oldest one.
+     */
+    public MessagePageResponse getChatHistoryPage(String chatId, String userId, String cursor,
+            KeysetCursor.Direction direction, int limit) {
+        return historyCursorTimer.record(() -> readHistoryPage(chatId, userId, cursor, direction, limit));
+    }
+
+    private MessagePageResponse readHistoryPage(String chatId, String userId, String cursor,
+            KeysetCursor.Direction direction, int limit) {
+
+        if (!chatService.isUserParticipantOfChat(chatId, userId)) {
+            throw new RuntimeException("User is not authorized to access this chat");
+        }
+
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        boolean before = direction == KeysetCursor.Direction.BEFORE;
+
+        MessagePageResponse cached = recentMessages.page(chatId, cursor, direction, pageSize);
+        if (cached != null) {
+            return cached;
+        }
+
+        // a newest-page miss reads a full ring's worth once, so the chat's next reads come from memory
+        boolean newestPage = before && (cursor == null || cursor.isBlank());
+        boolean seeding = newestPage && recentMessages.isEnabled();
+        long seedToken = seeding ? recentMessages.beginSeed(chatId) : 0;
+
+        KeysetCursor position = cursor != null && !cursor.isBlank() ? KeysetCursor.decode(cursor) : null;
+        int wanted = seeding ? Math.max(pageSize + 1, recentMessages.seedSize()) : pageSize + 1;
+
+        List<Message> messages = readArchivedThenHot(chatId, archive -> {
+            // every archived message precedes those in Mongo: reading forward the archive comes first,
+            // reading backward it continues where Mongo runs out
+            List<Message> read = new ArrayList<>(before || archive.isEmpty() ? List.of() : archive.after(position, wanted));
+            if (read.size() < wanted) {
+                Sort.Direction sortDirection = before ? Sort.Direction.DESC : Sort.Direction.ASC;
+                Query query = Query.query(hotMessages(chatId, archive, position, direction))
+                        .with(Sort.by(sortDirection, "timestamp", "_id"))
+                        .limit(wanted - read.size());
+                read.addAll(mongoTemplate.find(query, Message.class));
+            }
+            if (before && read.size() < wanted && !archive.isEmpty()) {
+                read.addAll(archive.before(position, wanted - read.size()));
+            }
+            return read;
+        });
+        if (seeding) {
+            recentMessages.seed(chatId, seedToken, messages);
+            if (messages.size() > pageSize + 1) {
+                messages.subList(pageSize + 1, messages.size()).clear();
+            }
+        }
+
+        boolean hasMore = messages.size() > pageSize;
+        if (hasMore) {
+            messages.remove(messages.size() - 1);
+        }
+        if (before) {
+            Collections.reverse(messages);
+        }
+
+        MessagePageResponse page = new MessagePageResponse();
+        page.setMessages(messages.stream()
+                .map(MessageResponse::fromMessage)
+                .collect(Collectors.toList()));
+        page.setHasMore(hasMore);
+        if (!messages.isEmpty()) {
+            page.setPrevCursor(KeysetCursor.of(messages.get(0)).encode());
+            page.setNextCursor(KeysetCursor.of(messages.get(messages.size() - 1)).encode());
+        } else if (cursor != null && !cursor.isBlank()) {
+            page.setPrevCursor(cursor);
+            page.setNextCursor(cursor);
+        }
+        return page;
+    }
+
+    /**
+     * Messages containing every word of the query, best match first, from one chat or all of the user's chats.
+     */
+    public MessageSearchResponse search(String userId, String query, String chatId, int limit) {
+        if (!searchIndex.isEnabled()) {
+            throw new RuntimeException("Search is disabled");
+        }
+        if (query == null || query.isBlank()) {
+            throw new RuntimeException("Search query is required");
+        }
+        int pageSize = Math.max(1, Math.min(limit, MAX_SEARCH_LIMIT));
+
+        return searchTimer.record(() -> {
+            Set<String> chatIds;
+            if (chatId != null) {
+                if (!chatService.isUserParticipantOfChat(chatId, userId)) {
+                    throw new RuntimeException("User is not authorized to access this chat");
+                }
+                chatIds = Set.of(chatId);
+            } else {
+                chatIds = chatService.getChatIdsForUser(userId);
+            }
+            List<MessageSearchHit> hits = searchIndex.search(query, chatIds, pageSize);
+
+            MessageSearchResponse response = new MessageSearchResponse();
+            response.setHits(hits);
+            response.setPartial(!searchIndex.isCaughtUp());
+            return response;
+        });
+    }
+
+    /**
+     * Lazily streams a chat's full history oldest first, reading the Mongo cursor in batches.
+     * The caller must close the returned stream.
+     */
+    public Stream<MessageResponse> streamAllMessagesInChat(String chatId, String userId) {
+        
+        if (!chatService.isUserParticipantOfChat(chatId, userId)) {
+            throw new RuntimeException("User is not authorized to access this chat");
+        }
+
+        ChatArchive archive = messageArchive.chat(chatId);
+        Query query = Query.query(hotMessages(chatId, archive, null, null))
+                .with(Sort.by(Sort.Direction.ASC, "timestamp", "_id"))
+                .cursorBatchSize(STREAM_BATCH_SIZE);
+
+        // the Mongo cursor is opened only once the archived part has been read, so it can't time out meanwhile
+        return Stream.concat(archive.stream(), Stream.of(query).flatMap(q -> mongoTemplate.stream(q, Message.class)))
+                .map(MessageResponse::fromMessage);
+    }
+
     public List<MessageResponse> getAllMessagesInChat(String chatId, String userId) {
         
         if (!chatService.isUserParticipantOfChat(chatId, userId)) {
             throw new RuntimeException("User is not authorized to access this chat");
         }
 
-        List<Message> messages = messageRepository.findByChatId(chatId);
+        List<Message> messages = readArchivedThenHot(chatId, archive -> {
+            List<Message> read = new ArrayList<>(archive.stream().toList());
+            read.addAll(mongoTemplate.find(Query.query(hotMessages(chatId, archive, null, null)), Message.class));
+            return read;
+        });
 
         return messages.stream()
                 .map(MessageResponse::fromMessage)
                 .collect(Collectors.toList());
     }
 
-    public void updateMessageStatus(String messageId, Message.MessageStatus status) {
-        Message message = messageRepository.findById(messageId)
-                .orElseThrow(() -> new RuntimeException("Message not found"));
+    /**
+     * Moves one message the user received to {@code status}. Statuses only ever move forward, so a
+     * message already at or past it is left as it is.
+     */
+    public void updateMessageStatus(String messageId, Message.MessageStatus status, String userId) {
+        Query receiverQuery = Query.query(Criteria.where("_id").is(messageId));
+        receiverQuery.fields().include("receiverId");
+        Message message = mongoTemplate.findOne(receiverQuery, Message.class);
+        if (message == null) {
+            throw new RuntimeException("Message not found");
+        }
+        if (!userId.equals(message.getReceiverId())) {
+            throw new RuntimeException("User is not authorized to update this message");
+        }
+
+        Message previous = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(messageId)
+                        .and("receiverId").is(userId)
+                        .and("status").in(lowerStatuses(status))),
+                Update.update("status", status),
+                Message.class);
+        if (previous == null) {
+            return;
+        }
+        recentMessages.onStatusChanged(previous.getChatId(), messageId, status);
+
+        if (status == Message.MessageStatus.READ) {
+            chatService.markRead(previous.getChatId(), userId, 1);
+        }
+    }
+
+    /**
+     * Marks every message the reader received in the chat, up to and including {@code messageId},
+     * as DELIVERED or READ with a single updateMany. Statuses only ever move forward.
+     */
+    public ReceiptResponse applyReceipt(String userId, ReceiptRequest request) {
+        
+        if (request.getStatus() == null || request.getStatus() == Message.MessageStatus.SENT) {
+            throw new RuntimeException("Receipt status must be DELIVERED or READ");
+        }
+
+        if (!chatService.isUserParticipantOfChat(request.getChatId(), userId)) {
+            throw new RuntimeException("User is not authorized to access this chat");
+        }
+
+        Query watermarkQuery = Query.query(Criteria.where("_id").is(request.getMessageId())
+                .and("chatId").is(request.getChatId()));
+        watermarkQuery.fields().include("timestamp");
+        Message watermark = mongoTemplate.findOne(watermarkQuery, Message.class);
+        if (watermark == null) {
+            throw new RuntimeException("Message not found");
+        }
+
+        List<Message.MessageStatus> lowerStatuses = lowerStatuses(request.getStatus());
+
+        Object watermarkId = idValue(watermark.getMessageId());
+        Criteria upToWatermark = Criteria.where("chatId").is(request.getChatId())
+                .and("receiverId").is(userId)
+                .and("status").in(lowerStatuses)
+                .orOperator(
+                        Criteria.where("timestamp").lt(watermark.getTimestamp()),
+                        Criteria.where("timestamp").is(watermark.getTimestamp()).and("_id").lte(watermarkId));
+
+        UpdateResult result = mongoTemplate.updateMulti(
+                Query.query(upToWatermark),
+                Update.update("status", request.getStatus()),
+                Message.class);
+
+        recentMessages.onReceipt(request.getChatId(), userId, KeysetCursor.of(watermark), lowerStatuses,
+                request.getStatus());
+
+        if (request.getStatus() == Message.MessageStatus.READ) {
+            chatService.markRead(request.getChatId(), userId, result.getModifiedCount());
+        }
+
+        Long sequence = null;
+        if (result.getModifiedCount() > 0) {
+            sequence = sequenceAllocator.allocate(request.getChatId());
+            try {
+                chatService.recordReceipt(request.getChatId(), userId, request.getStatus(),
+                        watermark.getMessageId(), sequence);
+            } finally {
+                sequenceAllocator.release(request.getChatId(), sequence);
+            }
+        }
 
-        message.setStatus(status);
-        messageRepository.save(message);
+        ReceiptResponse response = new ReceiptResponse();
+        response.setChatId(request.getChatId());
+        response.setUserId(userId);
+        response.setMessageId(watermark.getMessageId());
+        response.setStatus(request.getStatus());
+        response.setUpTo(watermark.getTimestamp());
+        response.setUpdatedCount(result.getModifiedCount());
+        response.setSequence(sequence);
+        return response;
+    }
+
+    /**
+     * Everything that changed in the user's chats since the client's last sequence per chat: new messages
+     * and receipt watermarks. Unchanged chats cost nothing beyond one read of the user's chat list.
+     */
+    public SyncResponse sync(String userId, SyncRequest request) {
+        Map<String, Long> lastSequences = request.getLastSequences() != null ? request.getLastSequences() : Map.of();
+        int limit = request.getLimit() != null ? Math.max(1, Math.min(request.getLimit(), MAX_PAGE_SIZE)) : DEFAULT_SYNC_LIMIT;
+
+        Query changedQuery = Query.query(Criteria.where("participants").is(userId).and("lastSequence").gt(0));
+        changedQuery.fields().include("lastSequence");
+        List<String> changedChatIds = mongoTemplate.find(changedQuery, Chat.class).stream()
+                .filter(chat -> chat.getLastSequence() > lastSequences.getOrDefault(chat.getChatId(), 0L))
+                .map(Chat::getChatId)
+                .collect(Collectors.toList());
+
+        if (changedChatIds.isEmpty()) {
+            SyncResponse response = new SyncResponse();
+            response.setChats(List.of());
+            return response;
+        }
+
+        // settled positions first: whatever was written at or below them is visible to the reads below
+        Map<String, Long> settled = sequenceAllocator.settledSequences(changedChatIds);
+
+        Query receiptsQuery = Query.query(Criteria.where("_id").in(changedChatIds));
+        receiptsQuery.fields().include("receipts");
+        Map<String, Chat> receiptsByChat = mongoTemplate.find(receiptsQuery, Chat.class).stream()
+                .collect(Collectors.toMap(Chat::getChatId, chat -> chat));
+
+        List<ChatSyncResponse> chats = new ArrayList<>();
+        for (String chatId : changedChatIds) {
+            long since = lastSequences.getOrDefault(chatId, 0L);
+            ChatSyncResponse chatSync = syncChat(chatId, since, limit, receiptsByChat.get(chatId));
+            chatSync.setLastSequence(syncCursor(since, chatSync.getLastSequence(), settled.get(chatId)));
+            if (!chatSync.getMessages().isEmpty() || !chatSync.getReceipts().isEmpty()) {
+                chats.add(chatSync);
+            }
+        }
+
+        SyncResponse response = new SyncResponse();
+        response.setChats(chats);
+        response.setHasMore(chats.stream().anyMatch(ChatSyncResponse::isHasMore));
+        return response;
+    }
+
+    /**
+     * Cursor to hand back for a chat: as far as the reads reached, but never past a number that may still
+     * be written below it, or the client would skip that message; and never behind where the client was.
+     */
+    static long syncCursor(long since, long reached, long settled) {
+        return Math.max(since, Math.min(reached, settled));
+    }
+
+    private ChatSyncResponse syncChat(String chatId, long since, int limit, Chat receiptState) {
+        long reached = since;
+
+        List<ReceiptResponse> receipts = new ArrayList<>();
+        if (receiptState != null && receiptState.getReceipts() != null) {
+            for (Map.Entry<String, Chat.ReceiptMark> entry : receiptState.getReceipts().entrySet()) {
+                Chat.ReceiptMark mark = entry.getValue();
+                if (mark.getSequence() <= since) {
+                    continue;
+                }
+                if (mark.getDeliveredUpTo() != null) {
+                    receipts.add(receiptMark(chatId, entry.getKey(), mark.getDeliveredUpTo(), Message.MessageStatus.DELIVERED, mark.getSequence()));
+                }
+                if (mark.getReadUpTo() != null) {
+                    receipts.add(receiptMark(chatId, entry.getKey(), mark.getReadUpTo(), Message.MessageStatus.READ, mark.getSequence()));
+                }
+                reached = Math.max(reached, mark.getSequence());
+            }
+        }
+
+        Query query = Query.query(Criteria.where("chatId").is(chatId).and("sequence").gt(since))
+                .with(Sort.by(Sort.Direction.ASC, "sequence"))
+                .limit(limit + 1);
+        List<Message> messages = new ArrayList<>(mongoTemplate.find(query, Message.class));
+        boolean hasMore = messages.size() > limit;
+        if (hasMore) {
+            messages.remove(messages.size() - 1);
+        }
+        if (!messages.isEmpty()) {
+            long lastMessage = messages.get(messages.size() - 1).getSequence();
+            // a later page resumes after the last message; receipts past it are resent then
+            reached = hasMore ? lastMessage : Math.max(reached, lastMessage);
+        }
+
+        ChatSyncResponse chatSync = new ChatSyncResponse();
+        chatSync.setChatId(chatId);
+        chatSync.setMessages(messages.stream()
+                .map(MessageResponse::fromMessage)
+                .collect(Collectors.toList()));
+        chatSync.setReceipts(receipts);
+        chatSync.setLastSequence(reached);
+        chatSync.setHasMore(hasMore);
+        return chatSync;
+    }
+
+    // the statuses a message can move forward from to reach status
+    private static List<Message.MessageStatus> lowerStatuses(Message.MessageStatus status) {
+        return Arrays.stream(Message.MessageStatus.values())
+                .filter(lower -> lower.compareTo(status) < 0)
+                .toList();
+    }
+
+    private static ReceiptResponse receiptMark(String chatId, String userId, String messageId,
+            Message.MessageStatus status, long sequence) {
+        ReceiptResponse receipt = new ReceiptResponse();
+        receipt.setChatId(chatId);
+        receipt.setUserId(userId);
+        receipt.setMessageId(messageId);
+        receipt.setStatus(status);
+        receipt.setSequence(sequence);
+        return receipt;
     }
 
     public Message getMessageById(String messageId) {
         return messageRepository.findById(messageId)
                 .orElseThrow(() -> new RuntimeException("Message not found"));
     }
-}
\ No newline at end of file
+
+    /**
+     * Runs a read over an archive snapshot and Mongo. The archiver writes a segment before deleting its
+     * messages from Mongo, so a read that started on the older snapshot may have found them gone; if the
+     * archive moved on meanwhile, the read is repeated once against the new snapshot.
+     */
+    private List<Message> readArchivedThenHot(String chatId, Function<ChatArchive, List<Message>> read) {
+        ChatArchive archive = messageArchive.chat(chatId);
+        List<Message> messages = read.apply(archive);
+        ChatArchive current = messageArchive.chat(chatId);
+        if (!Objects.equals(archive.newest(), current.newest())) {
+            messages = read.apply(current);
+        }
+        return messages;
+    }
+
+    /**
+     * A chat's messages in Mongo, after the cursor in the given direction when there is one. Messages the
+     * archiver has written out but not yet deleted are left out, so no read returns them twice.
+     */
+    private static Criteria hotMessages(String chatId, ChatArchive archive, KeysetCursor position,
+            KeysetCursor.Direction direction) {
+        List<Criteria> bounds = new ArrayList<>(2);
+        if (!archive.isEmpty()) {
+            bounds.add(keyset(archive.newest(), KeysetCursor.Direction.AFTER));
+        }
+        if (position != null) {
+            bounds.add(keyset(position, direction));
+        }
+        Criteria criteria = Criteria.where("chatId").is(chatId);
+        return bounds.isEmpty() ? criteria : criteria.andOperator(bounds);
+    }
+
+    private static Criteria keyset(KeysetCursor position, KeysetCursor.Direction direction) {
+        Object positionId = idValue(position.id());
+        return direction == KeysetCursor.Direction.BEFORE
+                ? new Criteria().orOperator(
+                        Criteria.where("timestamp").lt(position.timestamp()),
+                        Criteria.where("timestamp").is(position.timestamp()).and("_id").lt(positionId))
+                : new Criteria().orOperator(
+                        Criteria.where("timestamp").gt(position.timestamp()),
+                        Criteria.where("timestamp").is(position.timestamp()).and("_id").gt(positionId));
+    }
+
+    // _id range comparisons need the stored ObjectId, not its hex string
+    private static Object idValue(String messageId) {
+        return ObjectId.isValid(messageId) ? new ObjectId(messageId) : messageId;
+    }
+}
@@ -0,0 +1,264 @@
+package com.substring.chat.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.bulk.BulkWriteError;
+import com.substring.chat.model.Message;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Group-commit stage for message inserts. Concurrent senders enqueue their message and a single writer
+ * thread flushes them with one unordered bulk insert once the batch is full or the oldest entry has waited
+ * long enough. Each sender's future completes when its batch is acknowledged, and fails only if its own
+ * document was rejected; FIFO order is preserved. Futures complete on the writer thread, so callers should
+ * continue on their own executor.
+ */
+@Component
+public class MessageWriteBatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageWriteBatcher.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ChatService chatService;
+
+    @Value("${message.batch.enabled:false}")
+    private boolean enabled;
+
+    @Value("${message.batch.max-size:256}")
+    private int maxBatchSize;
+
+    @Value("${message.batch.max-delay-micros:2000}")
+    private long maxDelayMicros;
+
+    @Value("${message.batch.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${message.batch.enqueue-timeout-ms:1000}")
+    private long enqueueTimeoutMs;
+
+    private BlockingQueue<PendingWrite> queue;
+
+    private Thread writer;
+
+    private volatile boolean running;
+
+    private final LongAdder flushedBatches = new LongAdder();
+    private final LongAdder flushedMessages = new LongAdder();
+    private final LongAdder flushNanosTotal = new LongAdder();
+    private final LongAdder rejectedMessages = new LongAdder();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private volatile int lastBatchSize;
+
+    @PostConstruct
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        running = true;
+        writer = new Thread(this::runWriter, "message-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        // the writer drains what is queued before it exits; interrupting it could abort an insert half way
+        running = false;
+        writer.join(TimeUnit.SECONDS.toMillis(30));
+        List<PendingWrite> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (PendingWrite pending : left) {
+            pending.future().completeExceptionally(new RuntimeException("Message writer stopped, try again later"));
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues a message for the next batch. Blocks for up to the enqueue timeout when the queue is full
+     * and fails the returned future if there is still no room.
+     */
+    public CompletableFuture<Message> submit(Message message) {
+        PendingWrite pending = new PendingWrite(message, new CompletableFuture<>());
+        try {
+            if (!running || !queue.offer(pending, enqueueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                rejectedMessages.increment();
+                pending.future().completeExceptionally(new RuntimeException("Message queue is full, try again later"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.future().completeExceptionally(e);
+        }
+        return pending.future();
+    }
+
+    public BatchStats stats() {
+        long batches = flushedBatches.sum();
+        long messages = flushedMessages.sum();
+        return new BatchStats(
+                batches,
+                messages,
+                rejectedMessages.sum(),
+                batches == 0 ? 0 : (double) messages / batches,
+                batches == 0 ? 0 : flushNanosTotal.sum() / 1_000_000.0 / batches,
+                maxFlushNanos.get() / 1_000_000.0,
+                lastBatchSize,
+                queue == null ? 0 : queue.size());
+    }
+
+    private void runWriter() {
+        List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+        long maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatchSize - batch.size());
+
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                // not expected, stop() lets the loop run dry; flush what we have and drain the rest
+                Thread.currentThread().interrupt();
+                running = false;
+                queue.drainTo(batch);
+            }
+
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingWrite> batch) {
+        long startedAt = System.nanoTime();
+        try {
+            Map<Integer, RuntimeException> rejected = insert(batch);
+            List<Message> stored = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                if (!rejected.containsKey(i)) {
+                    stored.add(batch.get(i).message());
+                }
+            }
+            if (!rejected.isEmpty()) {
+                log.error("Failed to insert {} of a batch of {} messages", rejected.size(), batch.size());
+            }
+            try {
+                chatService.recordMessages(stored);
+            } catch (RuntimeException e) {
+                // the messages are stored; failing them now would only make clients send them again
+                log.error("Failed to update chat summaries for {} messages", stored.size(), e);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                PendingWrite pending = batch.get(i);
+                RuntimeException error = rejected.get(i);
+                if (error == null) {
+                    pending.future().complete(pending.message());
+                } else {
+                    pending.future().completeExceptionally(error);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to insert batch of {} messages", batch.size(), e);
+            for (PendingWrite pending : batch) {
+                pending.future().completeExceptionally(e);
+            }
+        }
+
+        long elapsed = System.nanoTime() - startedAt;
+        flushedBatches.increment();
+        flushedMessages.add(batch.size());
+        flushNanosTotal.add(elapsed);
+        maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+        lastBatchSize = batch.size();
+    }
+
+    /**
+     * Inserts the batch unordered, so one rejected document does not stop the rest, and returns the batch
+     * positions that were rejected with why. Throws when it cannot tell which documents were stored.
+     */
+    private Map<Integer, RuntimeException> insert(List<PendingWrite> batch) {
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Message.class);
+        for (PendingWrite pending : batch) {
+            // ids up front, so each future hands back its stored message
+            if (pending.message().getMessageId() == null) {
+                pending.message().setMessageId(new ObjectId().toHexString());
+            }
+            bulk.insert(pending.message());
+        }
+        try {
+            bulk.execute();
+            return Map.of();
+        } catch (BulkOperationException e) {
+            if (e.getErrors().isEmpty()) {
+                // a write concern error: any of the documents may or may not be durable
+                throw e;
+            }
+            Map<Integer, RuntimeException> rejected = new HashMap<>();
+            for (BulkWriteError error : e.getErrors()) {
+                rejected.put(error.getIndex(), new RuntimeException("Failed to store message: " + error.getMessage(), e));
+            }
+            return rejected;
+        }
+    }
+
+    private record PendingWrite(Message message, CompletableFuture<Message> future) {
+    }
+
+    public record BatchStats(
+            long batches,
+            long messages,
+            long rejected,
+            double averageBatchSize,
+            double averageFlushMillis,
+            double maxFlushMillis,
+            int lastBatchSize,
+            int queueDepth) {
+    }
+}
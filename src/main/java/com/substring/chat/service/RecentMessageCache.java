@@ -0,0 +1,404 @@
+package com.substring.chat.service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.substring.chat.dto.MessagePageResponse;
+import com.substring.chat.dto.MessageResponse;
+import com.substring.chat.model.Message;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * The newest messages of each active chat, kept in a per-chat ring buffer so the newest history page
+ * (and keyset pages close to it) is served without Mongo. A chat's ring is seeded from Mongo by its first
+ * newest-page read and then kept current by this node's writes and status changes. Rings are dropped
+ * after the chat has been idle, and the total is bounded by an estimated memory budget.
+ * <p>
+ * Only writes made on this node reach the rings, so the cache switches itself off in cluster mode.
+ */
+@Component
+public class RecentMessageCache {
+
+    private static final Logger log = LoggerFactory.getLogger(RecentMessageCache.class);
+
+    // rough per-message footprint: the response object, its ids, timestamp and slot, before the content
+    private static final int MESSAGE_OVERHEAD_BYTES = 360;
+
+    private static final int ATTACHMENT_REF_BYTES = 200;
+
+    @Value("${chat.recent-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${cluster.enabled:false}")
+    private boolean clusterEnabled;
+
+    @Value("${chat.recent-cache.messages-per-chat:100}")
+    private int capacity;
+
+    @Value("${chat.recent-cache.max-memory-mb:64}")
+    private long maxMemoryMb;
+
+    @Value("${chat.recent-cache.idle-minutes:10}")
+    private long idleMinutes;
+
+    private Cache<String, Ring> rings;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    @PostConstruct
+    void init() {
+        if (enabled && clusterEnabled) {
+            log.info("Recent message cache disabled: other nodes' writes would not reach it");
+            enabled = false;
+        }
+        rings = Caffeine.newBuilder()
+                .maximumWeight(maxMemoryMb * 1024 * 1024)
+                .weigher((String chatId, Ring ring) -> ring.bytes())
+                .expireAfterAccess(Duration.ofMinutes(idleMinutes))
+                .recordStats()
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Number of messages a seeding read should load: a full ring plus one, to tell whether older ones exist.
+     */
+    public int seedSize() {
+        return capacity + 1;
+    }
+
+    // only chats someone reads have a ring; a write that finished before the ring existed is in its seed
+    public void onPersisted(Message message) {
+        Ring ring = enabled ? rings.getIfPresent(message.getChatId()) : null;
+        if (ring != null) {
+            ring.insert(MessageResponse.fromMessage(message));
+            reweigh(message.getChatId(), ring);
+        }
+    }
+
+    public void onStatusChanged(String chatId, String messageId, Message.MessageStatus status) {
+        Ring ring = enabled ? rings.getIfPresent(chatId) : null;
+        if (ring != null) {
+            ring.updateStatus(messageId, status);
+        }
+    }
+
+    /**
+     * Mirrors a receipt's updateMany: the reader's messages up to the watermark move to {@code status}.
+     */
+    public void onReceipt(String chatId, String receiverId, KeysetCursor upTo, List<Message.MessageStatus> from,
+            Message.MessageStatus status) {
+        Ring ring = enabled ? rings.getIfPresent(chatId) : null;
+        if (ring != null) {
+            ring.applyReceipt(receiverId, upTo, from, status);
+        }
+    }
+
+    /**
+     * A keyset page from the ring, or null when the ring can't answer it and Mongo has to.
+     */
+    public MessagePageResponse page(String chatId, String cursor, KeysetCursor.Direction direction, int pageSize) {
+        Ring ring = enabled ? rings.getIfPresent(chatId) : null;
+        MessagePageResponse page = ring != null ? ring.page(cursor, direction, pageSize) : null;
+        (page != null ? hits : misses).increment();
+        return page;
+    }
+
+    /**
+     * Offset page, oldest first, served only when the ring holds the chat's entire history.
+     */
+    public List<MessageResponse> offsetPage(String chatId, int page, int size) {
+        Ring ring = enabled ? rings.getIfPresent(chatId) : null;
+        List<MessageResponse> messages = ring != null ? ring.offsetPage(page, size) : null;
+        (messages != null ? hits : misses).increment();
+        return messages;
+    }
+
+    /**
+     * Starts a seeding read; pass the token to {@link #seed} with what Mongo returned.
+     */
+    public long beginSeed(String chatId) {
+        return enabled ? rings.get(chatId, id -> new Ring(capacity)).statusVersion() : 0;
+    }
+
+    /**
+     * Seeds the chat's ring with its newest messages as read from Mongo, newest first. Skipped if a status
+     * change raced with the read, since the read may hold the old status.
+     */
+    public void seed(String chatId, long token, List<Message> newestFirst) {
+        Ring ring = enabled ? rings.getIfPresent(chatId) : null;
+        if (ring != null && ring.seed(token, newestFirst)) {
+            reweigh(chatId, ring);
+        }
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long size() {
+        return rings.estimatedSize();
+    }
+
+    public long memoryBytes() {
+        return rings.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+    }
+
+    public long evictionCount() {
+        return rings.stats().evictionCount();
+    }
+
+    // the weigher only runs on put, so a grown ring is put again to count its new size
+    private void reweigh(String chatId, Ring ring) {
+        rings.asMap().replace(chatId, ring, ring);
+    }
+
+    private static int weigh(MessageResponse message) {
+        String content = message.getContent();
+        List<Message.AttachmentRef> attachments = message.getAttachments();
+        return MESSAGE_OVERHEAD_BYTES
+                + (content != null ? content.length() * 2 : 0)
+                + (attachments != null ? attachments.size() * ATTACHMENT_REF_BYTES : 0);
+    }
+
+    private static int compare(MessageResponse message, LocalDateTime timestamp, String id) {
+        int byTime = message.getTimestamp().compareTo(timestamp);
+        return byTime != 0 ? byTime : message.getId().compareTo(id);
+    }
+
+    private static MessageResponse withStatus(MessageResponse message, Message.MessageStatus status) {
+        MessageResponse copy = new MessageResponse();
+        copy.setId(message.getId());
+        copy.setChatId(message.getChatId());
+        copy.setSenderId(message.getSenderId());
+        copy.setReceiverId(message.getReceiverId());
+        copy.setContent(message.getContent());
+        copy.setTimestamp(message.getTimestamp());
+        copy.setSequence(message.getSequence());
+        copy.setStatus(status);
+        copy.setAttachments(message.getAttachments());
+        return copy;
+    }
+
+    /**
+     * A chat's newest messages in (timestamp, id) order in a fixed circular array; a full ring drops its
+     * oldest entry. Entries are never mutated once stored, a status change swaps in a copy, so pages handed
+     * out keep a consistent view.
+     */
+    private static final class Ring {
+
+        private final MessageResponse[] slots;
+
+        private int head;
+
+        private int size;
+
+        private int bytes;
+
+        // until seeded, the ring only holds writes seen since it was created and can't answer reads
+        private boolean seeded;
+
+        // nothing older than the ring's entries exists: the chat's entire history is here
+        private boolean complete;
+
+        private long statusVersion;
+
+        Ring(int capacity) {
+            this.slots = new MessageResponse[capacity];
+        }
+
+        synchronized int bytes() {
+            return Math.max(1, bytes);
+        }
+
+        synchronized long statusVersion() {
+            return statusVersion;
+        }
+
+        private MessageResponse get(int index) {
+            return slots[(head + index) % slots.length];
+        }
+
+        private void set(int index, MessageResponse message) {
+            slots[(head + index) % slots.length] = message;
+        }
+
+        // first index whose entry sorts after (timestamp, id)
+        private int upperBound(LocalDateTime timestamp, String id) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(get(mid), timestamp, id) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        synchronized void insert(MessageResponse message) {
+            int position = upperBound(message.getTimestamp(), message.getId());
+            if (position > 0 && get(position - 1).getId().equals(message.getId())) {
+                return;
+            }
+            if (size == slots.length) {
+                if (position == 0) {
+                    // older than everything kept
+                    complete = false;
+                    return;
+                }
+                bytes -= weigh(get(0));
+                set(0, null);
+                head = (head + 1) % slots.length;
+                size--;
+                position--;
+                complete = false;
+            }
+            // usually appended at the tail; a write that finished out of order shifts a few entries
+            for (int i = size; i > position; i--) {
+                set(i, get(i - 1));
+            }
+            set(position, message);
+            size++;
+            bytes += weigh(message);
+        }
+
+        synchronized boolean seed(long token, List<Message> newestFirst) {
+            if (seeded || token != statusVersion) {
+                return false;
+            }
+            // a read of more than the capacity overflows the ring below, which clears complete again
+            complete = true;
+            for (Message message : newestFirst) {
+                insert(MessageResponse.fromMessage(message));
+            }
+            seeded = true;
+            return true;
+        }
+
+        synchronized void updateStatus(String messageId, Message.MessageStatus status) {
+            statusVersion++;
+            for (int i = size - 1; i >= 0; i--) {
+                MessageResponse message = get(i);
+                if (message.getId().equals(messageId)) {
+                    set(i, withStatus(message, status));
+                    return;
+                }
+            }
+        }
+
+        synchronized void applyReceipt(String receiverId, KeysetCursor upTo, List<Message.MessageStatus> from,
+                Message.MessageStatus status) {
+            statusVersion++;
+            int end = upperBound(upTo.timestamp(), upTo.id());
+            for (int i = 0; i < end; i++) {
+                MessageResponse message = get(i);
+                if (receiverId.equals(message.getReceiverId()) && from.contains(message.getStatus())) {
+                    set(i, withStatus(message, status));
+                }
+            }
+        }
+
+        synchronized MessagePageResponse page(String cursor, KeysetCursor.Direction direction, int pageSize) {
+            if (!seeded) {
+                return null;
+            }
+            boolean before = direction == KeysetCursor.Direction.BEFORE;
+            int from;
+            int to;
+            boolean hasMore;
+            if (cursor == null || cursor.isBlank()) {
+                if (!before) {
+                    // the oldest page is only here when the whole chat is
+                    if (!complete) {
+                        return null;
+                    }
+                    from = 0;
+                    to = Math.min(size, pageSize);
+                    hasMore = size > pageSize;
+                } else {
+                    to = size;
+                    from = Math.max(0, size - pageSize);
+                    if (size < pageSize && !complete) {
+                        return null;
+                    }
+                    hasMore = from > 0 || !complete;
+                }
+            } else {
+                KeysetCursor position = KeysetCursor.decode(cursor);
+                if (size == 0 || (!complete && compare(get(0), position.timestamp(), position.id()) > 0)) {
+                    // the cursor is older than anything kept
+                    return null;
+                }
+                int after = upperBound(position.timestamp(), position.id());
+                if (before) {
+                    // entries strictly before the cursor
+                    to = after > 0 && get(after - 1).getId().equals(position.id()) ? after - 1 : after;
+                    from = Math.max(0, to - pageSize);
+                    if (to < pageSize && !complete) {
+                        return null;
+                    }
+                    hasMore = from > 0 || !complete;
+                } else {
+                    from = after;
+                    to = Math.min(size, after + pageSize);
+                    hasMore = size > to;
+                }
+            }
+
+            List<MessageResponse> messages = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                messages.add(get(i));
+            }
+            MessagePageResponse page = new MessagePageResponse();
+            page.setMessages(messages);
+            page.setHasMore(hasMore);
+            if (!messages.isEmpty()) {
+                page.setPrevCursor(cursorOf(messages.get(0)));
+                page.setNextCursor(cursorOf(messages.get(messages.size() - 1)));
+            } else if (cursor != null && !cursor.isBlank()) {
+                page.setPrevCursor(cursor);
+                page.setNextCursor(cursor);
+            }
+            return page;
+        }
+
+        synchronized List<MessageResponse> offsetPage(int page, int pageSize) {
+            if (!seeded || !complete) {
+                return null;
+            }
+            List<MessageResponse> messages = new ArrayList<>();
+            long start = (long) page * pageSize;
+            for (long i = start; i < Math.min(size, start + pageSize); i++) {
+                messages.add(get((int) i));
+            }
+            return messages;
+        }
+
+        private static String cursorOf(MessageResponse message) {
+            return new KeysetCursor(message.getTimestamp(), message.getId()).encode();
+        }
+    }
+}
@@ -1,26 +1,44 @@
 package com.substring.chat.service;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.Locale;
 import java.util.stream.Collectors;
 
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 
 import com.substring.chat.dto.AuthResponse;
 import com.substring.chat.dto.UserLoginRequest;
+import com.substring.chat.dto.UserPageResponse;
 import com.substring.chat.dto.UserSignupRequest;
+import com.substring.chat.dto.UserSummaryResponse;
 import com.substring.chat.model.User;
 import com.substring.chat.repository.UserRepository;
+import com.substring.chat.security.AuthFailures;
 import com.substring.chat.security.JwtUtil;
 
 @Service
 public class UserService {
 
+    private static final int MAX_PAGE_SIZE = 100;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
     @Autowired
     private UserRepository userRepository;
 
@@ -33,6 +51,9 @@ public class UserService {
     @Autowired
     private JwtUtil jwtUtil;
 
+    @Autowired
+    private AuthFailures authFailures;
+
     public AuthResponse signup(UserSignupRequest request) {
         
         if (userRepository.findByEmail(request.getEmail()).isPresent()) {
@@ -45,7 +66,9 @@ public class UserService {
 
         User user = new User();
         user.setName(request.getName());
+        user.setSearchName(User.searchNameOf(request.getName()));
         user.setEmail(request.getEmail());
+        user.setSearchEmail(User.searchEmailOf(request.getEmail()));
         user.setMobile(request.getMobile());
         user.setPassword(passwordEncoder.encode(request.getPassword()));
         user.setProfilePicture(request.getProfilePicture());
@@ -66,11 +89,21 @@ public class UserService {
 
     public AuthResponse login(UserLoginRequest request) {
         User user = userRepository.findByEmailOrMobile(request.getEmailOrMobile(), request.getEmailOrMobile())
-                .orElseThrow(() -> new RuntimeException("Invalid credentials"));
+                .orElse(null);
+        if (user == null) {
+            authFailures.record("login", AuthFailures.BAD_CREDENTIALS);
+            throw new RuntimeException("Invalid credentials");
+        }
 
-        Authentication authentication = authenticationManager.authenticate(
-                new UsernamePasswordAuthenticationToken(user.getId(), request.getPassword())
-        );
+        Authentication authentication;
+        try {
+            authentication = authenticationManager.authenticate(
+                    new UsernamePasswordAuthenticationToken(user.getId(), request.getPassword())
+            );
+        } catch (AuthenticationException e) {
+            authFailures.record("login", AuthFailures.BAD_CREDENTIALS);
+            throw e;
+        }
 
         String token = jwtUtil.generateToken(user.getId());
 
@@ -84,9 +117,146 @@ public class UserService {
     }
 
     public List<User> getAllUsersExceptLoggedIn(String loggedInUserId) {
-        return userRepository.findAll().stream()
-                .filter(user -> !user.getId().equals(loggedInUserId))
-                .collect(Collectors.toList());
+        Query query = Query.query(Criteria.where("_id").ne(loggedInUserId));
+        query.fields().exclude("password");
+        return mongoTemplate.find(query, User.class);
+    }
+
+    /**
+     * Directory search: prefix match on name, email or mobile. Name matches come first, then users found only
+     * by email, then only by mobile, each ordered by the matched field so every query reads its index in
+     * order and stops at the page size. Without a prefix, all users in id order. Only the summary fields are
+     * read from Mongo.
+     */
+    public UserPageResponse searchUsers(String loggedInUserId, String prefix, String cursor, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        String term = prefix == null || prefix.isBlank() ? null : prefix.trim().toLowerCase(Locale.ROOT);
+        DirectoryCursor position = cursor == null || cursor.isBlank() ? null : DirectoryCursor.decode(cursor);
+
+        List<SearchBranch> branches = term == null ? List.of(SearchBranch.ALL) : SearchBranch.MATCHING;
+        int first = position == null ? 0 : branches.indexOf(position.branch());
+        if (first < 0) {
+            throw new RuntimeException("Invalid cursor");
+        }
+
+        // one more than a page, read across branches, tells whether there is a next page
+        List<User> users = new ArrayList<>();
+        List<SearchBranch> foundBy = new ArrayList<>();
+        for (int i = first; i < branches.size() && users.size() <= pageSize; i++) {
+            DirectoryCursor after = i == first ? position : null;
+            for (User user : findBranch(branches, i, loggedInUserId, term, after, pageSize + 1 - users.size())) {
+                users.add(user);
+                foundBy.add(branches.get(i));
+            }
+        }
+
+        boolean hasMore = users.size() > pageSize;
+        if (hasMore) {
+            users.remove(users.size() - 1);
+        }
+
+        UserPageResponse page = new UserPageResponse();
+        page.setUsers(users.stream()
+                .map(UserSummaryResponse::fromUser)
+                .collect(Collectors.toList()));
+        page.setHasMore(hasMore);
+        if (hasMore) {
+            User last = users.get(users.size() - 1);
+            SearchBranch branch = foundBy.get(users.size() - 1);
+            page.setNextCursor(new DirectoryCursor(branch, branch.keyOf(last), last.getId()).encode());
+        }
+        return page;
+    }
+
+    // one branch's matches in (field, _id) order, skipping users an earlier branch already returns
+    private List<User> findBranch(List<SearchBranch> branches, int index, String loggedInUserId, String term,
+            DirectoryCursor after, int limit) {
+        SearchBranch branch = branches.get(index);
+        List<Criteria> filters = new ArrayList<>();
+        filters.add(Criteria.where("_id").ne(loggedInUserId));
+        String startsWith = null;
+        if (term != null) {
+            // escape metacharacters one by one so Mongo still sees a plain, index-friendly prefix
+            startsWith = "^" + term.replaceAll("\\W", "\\\\$0");
+            filters.add(Criteria.where(branch.field()).regex(startsWith));
+            for (SearchBranch earlier : branches.subList(0, index)) {
+                filters.add(Criteria.where(earlier.field()).not().regex(startsWith));
+            }
+        }
+        if (after != null) {
+            ObjectId lastId = new ObjectId(after.id());
+            filters.add(branch == SearchBranch.ALL ? Criteria.where("_id").gt(lastId)
+                    : branch.unique() ? Criteria.where(branch.field()).gt(after.key())
+                    : new Criteria().orOperator(
+                            Criteria.where(branch.field()).gt(after.key()),
+                            Criteria.where(branch.field()).is(after.key()).and("_id").gt(lastId)));
+        }
+
+        // a unique field orders on its own; (field, _id) matches the compound indexes of the others
+        Sort order = branch.unique()
+                ? Sort.by(Sort.Direction.ASC, branch.field())
+                : Sort.by(Sort.Direction.ASC, branch.field(), "_id");
+        Query query = Query.query(new Criteria().andOperator(filters))
+                .with(order)
+                .limit(limit);
+        query.fields().include("name", "profilePicture", branch.field());
+        return mongoTemplate.find(query, User.class);
+    }
+
+    private enum SearchBranch {
+        ALL("_id", true),
+        NAME("searchName", false),
+        EMAIL("searchEmail", false),
+        MOBILE("mobile", true);
+
+        static final List<SearchBranch> MATCHING = List.of(NAME, EMAIL, MOBILE);
+
+        private final String field;
+
+        private final boolean unique;
+
+        SearchBranch(String field, boolean unique) {
+            this.field = field;
+            this.unique = unique;
+        }
+
+        String field() {
+            return field;
+        }
+
+        boolean unique() {
+            return unique;
+        }
+
+        String keyOf(User user) {
+            return switch (this) {
+                case ALL -> user.getId();
+                case NAME -> user.getSearchName();
+                case EMAIL -> user.getSearchEmail();
+                case MOBILE -> user.getMobile();
+            };
+        }
+    }
+
+    // opaque position in the directory: the branch being read and the (field, id) of the last user returned
+    private record DirectoryCursor(SearchBranch branch, String key, String id) {
+
+        String encode() {
+            String raw = branch + "|" + id + "|" + key;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static DirectoryCursor decode(String cursor) {
+            try {
+                String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", 3);
+                if (parts.length != 3 || !ObjectId.isValid(parts[1])) {
+                    throw new RuntimeException("Invalid cursor");
+                }
+                return new DirectoryCursor(SearchBranch.valueOf(parts[0]), parts[2], parts[1]);
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException("Invalid cursor");
+            }
+        }
     }
 
     public User getUserById(String userId) {
@@ -0,0 +1,46 @@
+package com.substring.chat.storage;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * Content-addressed storage for attachment bytes. An upload is staged under its upload id, appended to in
+ * chunks, {@link #hash hashed}, and on {@link #commit} stored under the SHA-256 of its content, so identical
+ * files are kept once.
+ * Stored blobs are immutable.
+ */
+public interface BlobStore {
+
+    /** Bytes staged so far for the upload, 0 if nothing arrived yet. */
+    long stagedSize(String uploadId) throws IOException;
+
+    /**
+     * Writes up to {@code maxBytes} from the source at {@code offset} of the staged upload, stopping early at
+     * the end of the source. Whatever was written before a failure stays staged. Returns the bytes written.
+     */
+    long append(String uploadId, long offset, ReadableByteChannel source, long maxBytes) throws IOException;
+
+    /** Flushes the staged upload to disk and returns the hex SHA-256 of its content, its key once committed. */
+    String hash(String uploadId) throws IOException;
+
+    /**
+     * Moves the staged upload under {@code key}, the value {@link #hash} returned for it, or drops it if that
+     * content is stored.
+     */
+    Stored commit(String uploadId, String key) throws IOException;
+
+    void discard(String uploadId) throws IOException;
+
+    /** Copies {@code count} bytes of the blob from {@code position}; returns the bytes copied. */
+    long transferTo(String key, long position, long count, WritableByteChannel target) throws IOException;
+
+    /** The blob's file, if it sits on the local disk and the servlet container may send it itself. */
+    default Path localPath(String key) {
+        return null;
+    }
+
+    record Stored(String key, long size, boolean deduplicated) {
+    }
+}
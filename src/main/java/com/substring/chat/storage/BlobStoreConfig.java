@@ -0,0 +1,24 @@
+package com.substring.chat.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Default {@link BlobStore} for attachments. Declare another {@link BlobStore} bean to replace it; with
+ * several instances, the local store's directory has to be shared between them.
+ */
+@Configuration
+public class BlobStoreConfig {
+
+    @Bean
+    @ConditionalOnMissingBean(BlobStore.class)
+    public BlobStore localBlobStore(@Value("${attachments.storage.path:./data/attachments}") String path)
+            throws IOException {
+        return new LocalBlobStore(Path.of(path));
+    }
+}
@@ -0,0 +1,140 @@
+package com.substring.chat.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.regex.Pattern;
+
+/**
+ * {@link BlobStore} on the local file system: uploads are staged in {@code uploads/<id>.part} and blobs live
+ * in {@code blobs/ab/cd/<sha256>}. Chunks are written with {@link FileChannel#transferFrom} and reads use
+ * {@link FileChannel#transferTo}, so the servlet container can also send blob files with sendfile.
+ */
+public class LocalBlobStore implements BlobStore {
+
+    private static final Pattern NAME = Pattern.compile("[0-9a-f]{16,64}");
+
+    private static final int HASH_BUFFER_SIZE = 256 * 1024;
+
+    private final Path uploads;
+
+    private final Path blobs;
+
+    public LocalBlobStore(Path root) throws IOException {
+        this.uploads = Files.createDirectories(root.resolve("uploads"));
+        this.blobs = Files.createDirectories(root.resolve("blobs"));
+    }
+
+    @Override
+    public long stagedSize(String uploadId) throws IOException {
+        try {
+            return Files.size(stagedPath(uploadId));
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public long append(String uploadId, long offset, ReadableByteChannel source, long maxBytes) throws IOException {
+        try (FileChannel file = FileChannel.open(stagedPath(uploadId), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = offset;
+            long end = offset + maxBytes;
+            while (position < end) {
+                long written = file.transferFrom(source, position, end - position);
+                if (written <= 0) {
+                    break;
+                }
+                position += written;
+            }
+            return position - offset;
+        }
+    }
+
+    @Override
+    public String hash(String uploadId) throws IOException {
+        MessageDigest sha256 = sha256();
+        try (FileChannel file = FileChannel.open(stagedPath(uploadId), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            file.force(true);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+            while (file.read(buffer) > 0) {
+                sha256.update(buffer.flip());
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(sha256.digest());
+    }
+
+    @Override
+    public Stored commit(String uploadId, String key) throws IOException {
+        Path staged = stagedPath(uploadId);
+        long size = Files.size(staged);
+        Path target = blobPath(key);
+        if (Files.exists(target)) {
+            Files.delete(staged);
+            return new Stored(key, size, true);
+        }
+        Files.createDirectories(target.getParent());
+        // a concurrent commit of the same content replaces it with identical bytes
+        Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE);
+        return new Stored(key, size, false);
+    }
+
+    @Override
+    public void discard(String uploadId) throws IOException {
+        Files.deleteIfExists(stagedPath(uploadId));
+    }
+
+    @Override
+    public long transferTo(String key, long position, long count, WritableByteChannel target) throws IOException {
+        try (FileChannel file = FileChannel.open(blobPath(key), StandardOpenOption.READ)) {
+            long sent = 0;
+            while (sent < count) {
+                long written = file.transferTo(position + sent, count - sent, target);
+                if (written <= 0) {
+                    break;
+                }
+                sent += written;
+            }
+            return sent;
+        }
+    }
+
+    @Override
+    public Path localPath(String key) {
+        return blobPath(key);
+    }
+
+    private Path stagedPath(String uploadId) {
+        return uploads.resolve(checked(uploadId) + ".part");
+    }
+
+    private Path blobPath(String key) {
+        return blobs.resolve(checked(key).substring(0, 2)).resolve(key.substring(2, 4)).resolve(key);
+    }
+
+    // ids and keys become file names, so only lower-case hex gets through
+    private static String checked(String name) {
+        if (name == null || !NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid blob name");
+        }
+        return name;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
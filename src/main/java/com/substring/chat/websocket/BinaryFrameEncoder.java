@@ -0,0 +1,165 @@
+package com.substring.chat.websocket;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import tools.jackson.core.JacksonException;
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.json.JsonMapper;
+import tools.jackson.databind.node.ObjectNode;
+import tools.jackson.dataformat.cbor.CBORMapper;
+
+/**
+ * Compact payloads for native WebSocket clients. A session connected through the plain endpoint may send
+ * {@code payload-encoding:cbor} in its CONNECT frame; MESSAGE frames to it are then re-encoded from JSON to
+ * CBOR with timestamps as epoch millis, and go out as binary WebSocket frames. SockJS sessions always get
+ * JSON.
+ *
+ * <p>The broker hands the same payload array to every subscriber of a publication, so each publication is
+ * transcoded once no matter how many CBOR sessions receive it.
+ */
+@Component
+public class BinaryFrameEncoder implements ChannelInterceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(BinaryFrameEncoder.class);
+
+    public static final String ENCODING_HEADER = "payload-encoding";
+
+    public static final String NATIVE_TRANSPORT_ATTRIBUTE = "nativeTransport";
+
+    private static final String CBOR = "cbor";
+
+    // LocalDateTime fields of the DTOs pushed over STOMP
+    private static final Set<String> TIMESTAMP_FIELDS = Set.of("timestamp", "upTo", "createdAt", "lastMessageTime", "lastActivityAt");
+
+    @Value("${websocket.native.binary-encoding.enabled:true}")
+    private boolean enabled;
+
+    private final JsonMapper jsonMapper = JsonMapper.builder().build();
+
+    private final CBORMapper cborMapper = CBORMapper.builder().build();
+
+    private final Set<String> cborSessions = ConcurrentHashMap.newKeySet();
+
+    // keyed by payload identity (weak keys compare with ==), so entries die with the publication
+    private final Cache<byte[], byte[]> transcoded = Caffeine.newBuilder()
+            .weakKeys()
+            .maximumSize(1024)
+            .build();
+
+    /** Records the encoding a CONNECT frame asked for, if its session came in over the native endpoint. */
+    public void negotiate(StompHeaderAccessor connect) {
+        if (!enabled || !CBOR.equalsIgnoreCase(connect.getFirstNativeHeader(ENCODING_HEADER))) {
+            return;
+        }
+        Map<String, Object> attributes = connect.getSessionAttributes();
+        if (attributes != null && Boolean.TRUE.equals(attributes.get(NATIVE_TRANSPORT_ATTRIBUTE))) {
+            cborSessions.add(connect.getSessionId());
+        }
+    }
+
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        cborSessions.remove(event.getSessionId());
+    }
+
+    public int binarySessions() {
+        return cborSessions.size();
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if (cborSessions.isEmpty()) {
+            return message;
+        }
+        MessageHeaders headers = message.getHeaders();
+        if (SimpMessageHeaderAccessor.getMessageType(headers) != SimpMessageType.MESSAGE
+                || !cborSessions.contains(SimpMessageHeaderAccessor.getSessionId(headers))
+                || !(message.getPayload() instanceof byte[] json)
+                || !isJson(headers.get(MessageHeaders.CONTENT_TYPE))) {
+            return message;
+        }
+
+        byte[] cbor = transcoded.get(json, this::toCbor);
+        if (cbor == null) {
+            return message;
+        }
+
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(message);
+        // STOMP only sends binary WebSocket frames for octet-stream; the encoding header says what is inside
+        accessor.setContentType(MimeTypeUtils.APPLICATION_OCTET_STREAM);
+        accessor.setNativeHeader(ENCODING_HEADER, CBOR);
+        return MessageBuilder.createMessage(cbor, accessor.getMessageHeaders());
+    }
+
+    private static boolean isJson(Object contentType) {
+        if (contentType instanceof MimeType mimeType) {
+            return MimeTypeUtils.APPLICATION_JSON.isCompatibleWith(mimeType);
+        }
+        return contentType instanceof String value && value.startsWith(MimeTypeUtils.APPLICATION_JSON_VALUE);
+    }
+
+    private byte[] toCbor(byte[] json) {
+        try {
+            JsonNode tree = jsonMapper.readTree(json);
+            toEpochMillis(tree);
+            return cborMapper.writeValueAsBytes(tree);
+        } catch (JacksonException e) {
+            log.debug("Sending JSON, payload could not be transcoded: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static void toEpochMillis(JsonNode node) {
+        if (node instanceof ObjectNode object) {
+            List<String> timestamps = new ArrayList<>();
+            for (Map.Entry<String, JsonNode> property : object.properties()) {
+                if (TIMESTAMP_FIELDS.contains(property.getKey()) && property.getValue().isString()) {
+                    timestamps.add(property.getKey());
+                } else {
+                    toEpochMillis(property.getValue());
+                }
+            }
+            for (String field : timestamps) {
+                try {
+                    // timestamps are server-local LocalDateTime values
+                    long millis = LocalDateTime.parse(object.get(field).asString())
+                            .atZone(ZoneId.systemDefault())
+                            .toInstant()
+                            .toEpochMilli();
+                    object.put(field, millis);
+                } catch (DateTimeParseException e) {
+                    // not a LocalDateTime, leave it as sent
+                }
+            }
+        } else if (node.isArray()) {
+            node.forEach(BinaryFrameEncoder::toEpochMillis);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.substring.chat.websocket;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+/**
+ * Gives every session its own bounded outbound queue. {@link #sendMessage} only enqueues, so broker and
+ * outbound-channel threads never block on a slow socket; a drain task writes queued frames to the real
+ * session one at a time. Ephemeral frames (receipts, typing) replace a queued one for the same destination,
+ * user and status, and the configured overflow action applies once the queue exceeds its byte, frame or
+ * age limits.
+ */
+class BoundedOutboundSession extends WebSocketSessionDecorator {
+
+    private final OutboundFlowControl flowControl;
+    private final Executor drainExecutor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private final Map<String, Pending> pendingEphemeral = new HashMap<>();
+
+    private long queuedBytes;
+    private boolean draining;
+    private boolean closed;
+
+    BoundedOutboundSession(WebSocketSession delegate, OutboundFlowControl flowControl, Executor drainExecutor) {
+        super(delegate);
+        this.flowControl = flowControl;
+        this.drainExecutor = drainExecutor;
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        boolean startDrain = false;
+        boolean overflow = false;
+
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+
+            String ephemeralKey = flowControl.ephemeralKey(message);
+            Pending coalesced = ephemeralKey == null ? null : pendingEphemeral.get(ephemeralKey);
+            if (coalesced != null) {
+                queuedBytes += message.getPayloadLength() - coalesced.message.getPayloadLength();
+                coalesced.message = message;
+                flowControl.recordCoalesced();
+            } else {
+                Pending pending = new Pending(message, ephemeralKey, System.nanoTime());
+                queue.addLast(pending);
+                queuedBytes += message.getPayloadLength();
+                if (ephemeralKey != null) {
+                    pendingEphemeral.put(ephemeralKey, pending);
+                }
+            }
+
+            if (isOverLimit() && flowControl.overflowAction() == OutboundFlowControl.OverflowAction.DROP_EPHEMERAL) {
+                dropOldestEphemeral();
+            }
+            overflow = isOverLimit();
+
+            if (!overflow && !draining) {
+                draining = true;
+                startDrain = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (overflow) {
+            disconnect();
+        } else if (startDrain) {
+            drainExecutor.execute(this::drain);
+        }
+    }
+
+    long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getQueuedFrames() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            WebSocketMessage<?> next;
+            lock.lock();
+            try {
+                Pending pending = queue.pollFirst();
+                if (pending == null || closed) {
+                    draining = false;
+                    return;
+                }
+                if (pending.ephemeralKey != null) {
+                    pendingEphemeral.remove(pending.ephemeralKey, pending);
+                }
+                next = pending.message;
+                queuedBytes -= next.getPayloadLength();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                getDelegate().sendMessage(next);
+            } catch (IOException | RuntimeException e) {
+                lock.lock();
+                try {
+                    closed = true;
+                    clearQueue();
+                    draining = false;
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean isOverLimit() {
+        if (queuedBytes > flowControl.bufferSizeLimit() || queue.size() > flowControl.maxQueuedFrames()) {
+            return true;
+        }
+        Pending oldest = queue.peekFirst();
+        return oldest != null && System.nanoTime() - oldest.enqueuedAt > flowControl.sendTimeLimitNanos();
+    }
+
+    private void dropOldestEphemeral() {
+        Iterator<Pending> iterator = queue.iterator();
+        while (iterator.hasNext() && isOverLimit()) {
+            Pending pending = iterator.next();
+            if (pending.ephemeralKey != null) {
+                iterator.remove();
+                pendingEphemeral.remove(pending.ephemeralKey, pending);
+                queuedBytes -= pending.message.getPayloadLength();
+                flowControl.recordDropped();
+            }
+        }
+    }
+
+    private void disconnect() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            clearQueue();
+        } finally {
+            lock.unlock();
+        }
+
+        flowControl.recordDisconnect();
+        // the client missed frames; the close reason tells it to re-fetch history before resubscribing
+        drainExecutor.execute(() -> {
+            try {
+                getDelegate().close(OutboundFlowControl.RESYNC_REQUIRED);
+            } catch (IOException e) {
+                // already gone
+            }
+        });
+    }
+
+    private void clearQueue() {
+        queue.clear();
+        pendingEphemeral.clear();
+        queuedBytes = 0;
+    }
+
+    @Override
+    public void close(CloseStatus status) throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            clearQueue();
+        } finally {
+            lock.unlock();
+        }
+        super.close(status);
+    }
+
+    private static final class Pending {
+
+        private WebSocketMessage<?> message;
+        private final String ephemeralKey;
+        private final long enqueuedAt;
+
+        private Pending(WebSocketMessage<?> message, String ephemeralKey, long enqueuedAt) {
+            this.message = message;
+            this.ephemeralKey = ephemeralKey;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.substring.chat.websocket;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Striped serial executor for inbound chat work. Every task for a chat hashes to the same lane and lanes
+ * run one task at a time, so a chat's messages are persisted and broadcast in the order they arrived while
+ * different chats proceed in parallel. A burst in one chat only backs up its own lane.
+ */
+@Component
+public class ChatLaneExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatLaneExecutor.class);
+
+    @Value("${websocket.inbound.lanes.enabled:false}")
+    private boolean enabled;
+
+    @Value("${websocket.inbound.lanes.count:64}")
+    private int laneCount;
+
+    @Value("${websocket.inbound.lanes.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${websocket.inbound.lanes.virtual-threads:false}")
+    private boolean virtualThreads;
+
+    private Lane[] lanes;
+
+    private final LongAdder rejectedTasks = new LongAdder();
+
+    @PostConstruct
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i);
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        if (lanes == null) {
+            return;
+        }
+        for (Lane lane : lanes) {
+            lane.worker.interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues the task on the lane owning {@code chatId}, or returns false at once if that lane is full.
+     * Callers run on the shared inbound channel threads, so waiting here would let one hot chat stall
+     * every other chat's messages.
+     */
+    public boolean execute(String chatId, Runnable task) {
+        Lane lane = lanes[Math.floorMod(chatId.hashCode(), lanes.length)];
+        if (lane.queue.offer(task)) {
+            return true;
+        }
+        rejectedTasks.increment();
+        return false;
+    }
+
+    public int[] queueDepths() {
+        if (lanes == null) {
+            return new int[0];
+        }
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].queue.size();
+        }
+        return depths;
+    }
+
+    public int totalQueued() {
+        int total = 0;
+        for (int depth : queueDepths()) {
+            total += depth;
+        }
+        return total;
+    }
+
+    public long rejectedTasks() {
+        return rejectedTasks.sum();
+    }
+
+    private final class Lane {
+
+        private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(queueCapacity);
+
+        private final Thread worker;
+
+        private Lane(int index) {
+            Thread.Builder builder = virtualThreads
+                    ? Thread.ofVirtual().name("chat-lane-" + index)
+                    : Thread.ofPlatform().name("chat-lane-" + index).daemon();
+            worker = builder.start(this::run);
+        }
+
+        private void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Chat lane task failed", e);
+                }
+            }
+        }
+    }
+}
@@ -1,36 +1,158 @@
 package com.substring.chat.websocket;
 
 import java.security.Principal;
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.Payload;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Controller;
 
 import com.substring.chat.dto.MessageRequest;
 import com.substring.chat.dto.MessageResponse;
+import com.substring.chat.dto.ReceiptRequest;
+import com.substring.chat.dto.ReceiptResponse;
+import com.substring.chat.dto.WebSocketErrorResponse;
+import com.substring.chat.jfr.MessageTrace;
 import com.substring.chat.model.Message;
+import com.substring.chat.service.ChatService;
 import com.substring.chat.service.MessageService;
+import com.substring.chat.service.MessageWriteBatcher;
+
+import jakarta.annotation.PreDestroy;
 
 @Controller
 public class ChatWebSocketController {
 
+    private static final Logger log = LoggerFactory.getLogger(ChatWebSocketController.class);
+
     @Autowired
     private SimpMessagingTemplate messagingTemplate;
 
     @Autowired
     private MessageService messageService;
 
+    @Autowired
+    private ChatService chatService;
+
+    @Autowired
+    private ChatLaneExecutor chatLanes;
+
+    @Autowired
+    private MessageWriteBatcher writeBatcher;
+
+    // batched sends complete on the single message-writer thread; broadcasting there would hold up the
+    // next flush. One thread keeps broadcasts in the order the writer completed them.
+    private final ExecutorService batchedBroadcasts = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("message-broadcast").daemon().factory());
+
+    @PreDestroy
+    void close() {
+        batchedBroadcasts.shutdown();
+    }
+
     @MessageMapping("/sendMessage")
-    public void sendMessage(@Payload MessageRequest messageRequest, Principal principal) {
+    public void sendMessage(@Payload MessageRequest messageRequest, Principal principal,
+            @Header(SimpMessageHeaderAccessor.SESSION_ID_HEADER) String sessionId) {
         
         String senderId = principal.getName();
+        MessageTrace trace = MessageTrace.start("stomp");
         
-        Message savedMessage = messageService.sendMessage(senderId, messageRequest);
+        if (chatLanes.isEnabled()) {
+            String chatId = chatService.resolvePrivateChatId(senderId, messageRequest.getReceiverId());
+            trace.chatResolved(chatId);
+            boolean queued = dispatch(chatId, () -> {
+                trace.dequeued();
+                Message savedMessage;
+                try {
+                    savedMessage = messageService.sendMessage(senderId, chatId, messageRequest, trace);
+                } catch (RuntimeException e) {
+                    trace.failed();
+                    throw e;
+                }
+                broadcast(savedMessage, trace);
+            });
+            if (!queued) {
+                trace.failed();
+                sendError(senderId, sessionId, "/app/sendMessage", chatId, messageRequest.getReceiverId());
+            }
+            return;
+        }
         
-        MessageResponse response = MessageResponse.fromMessage(savedMessage);
+        CompletableFuture<Message> saved;
+        try {
+            saved = messageService.sendMessageAsync(senderId, messageRequest, trace);
+        } catch (RuntimeException e) {
+            trace.failed();
+            throw e;
+        }
+        saved.thenAcceptAsync(savedMessage -> broadcast(savedMessage, trace),
+                        writeBatcher.isEnabled() ? batchedBroadcasts : Runnable::run)
+                .exceptionally(ex -> {
+                    trace.failed();
+                    log.error("Failed to send message from {}", senderId, ex);
+                    return null;
+                });
+    }
+
+    @MessageMapping("/receipt")
+    public void sendReceipt(@Payload ReceiptRequest receiptRequest, Principal principal,
+            @Header(SimpMessageHeaderAccessor.SESSION_ID_HEADER) String sessionId) {
         
+        String userId = principal.getName();
+        
+        if (chatLanes.isEnabled()) {
+            if (!dispatch(receiptRequest.getChatId(), () -> applyReceipt(userId, receiptRequest))) {
+                sendError(userId, sessionId, "/app/receipt", receiptRequest.getChatId(), null);
+            }
+            return;
+        }
+        
+        applyReceipt(userId, receiptRequest);
+    }
+
+    private void applyReceipt(String userId, ReceiptRequest receiptRequest) {
+        ReceiptResponse receipt = messageService.applyReceipt(userId, receiptRequest);
+        
+        messagingTemplate.convertAndSend("/topic/chat/" + receipt.getChatId() + "/receipts", receipt);
+    }
+
+    private void broadcast(Message savedMessage, MessageTrace trace) {
+        MessageResponse response = MessageResponse.fromMessage(savedMessage);
         messagingTemplate.convertAndSend("/topic/chat/" + savedMessage.getChatId(), response);
+        trace.broadcast();
+    }
+
+    private boolean dispatch(String chatId, Runnable task) {
+        if (!chatLanes.execute(chatId, task)) {
+            log.warn("Chat lane for {} is full, dropping inbound message", chatId);
+            return false;
+        }
+        return true;
+    }
+
+    // tells only the session that sent the dropped message, on /user/queue/errors, that it may send it again
+    private void sendError(String userId, String sessionId, String destination, String chatId, String receiverId) {
+        WebSocketErrorResponse error = new WebSocketErrorResponse();
+        error.setDestination(destination);
+        error.setChatId(chatId);
+        error.setReceiverId(receiverId);
+        error.setMessage("Chat is busy, try again later");
+        error.setRetryable(true);
+        error.setTimestamp(LocalDateTime.now());
+
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headers.setSessionId(sessionId);
+        headers.setLeaveMutable(true);
+        messagingTemplate.convertAndSendToUser(userId, "/queue/errors", error, headers.getMessageHeaders());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,47 @@
+package com.substring.chat.websocket;
+
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+
+/**
+ * Handshake handler and interceptor for the plain (non-SockJS) endpoint. Marks the session as a native
+ * transport so it may negotiate binary payloads, and withholds permessage-deflate when compression is off.
+ */
+public class NativeHandshakeHandler extends DefaultHandshakeHandler implements HandshakeInterceptor {
+
+    private static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+    private final boolean permessageDeflate;
+
+    public NativeHandshakeHandler(boolean permessageDeflate) {
+        this.permessageDeflate = permessageDeflate;
+    }
+
+    @Override
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+            Map<String, Object> attributes) {
+        attributes.put(BinaryFrameEncoder.NATIVE_TRANSPORT_ATTRIBUTE, Boolean.TRUE);
+        return true;
+    }
+
+    @Override
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+            Exception exception) {
+    }
+
+    @Override
+    protected List<WebSocketExtension> filterRequestedExtensions(ServerHttpRequest request,
+            List<WebSocketExtension> requestedExtensions, List<WebSocketExtension> supportedExtensions) {
+        List<WebSocketExtension> requested = permessageDeflate
+                ? requestedExtensions
+                : requestedExtensions.stream().filter(extension -> !PERMESSAGE_DEFLATE.equals(extension.getName())).toList();
+        return super.filterRequestedExtensions(request, requested, supportedExtensions);
+    }
+}
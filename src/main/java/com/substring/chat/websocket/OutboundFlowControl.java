@@ -0,0 +1,324 @@
+package com.substring.chat.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Slow-consumer protection for WebSocket sessions. Wraps every session in a {@link BoundedOutboundSession}
+ * so a client that cannot keep up only grows its own bounded queue instead of holding outbound threads or
+ * heap, and keeps per-session queue metrics.
+ */
+@Component
+public class OutboundFlowControl {
+
+    /** Close status sent to a client that fell too far behind; it should reload history and reconnect. */
+    public static final CloseStatus RESYNC_REQUIRED = new CloseStatus(4008, "Slow consumer, resync required");
+
+    // CBOR major type 3, a text string, in the top three bits of an item's initial byte
+    private static final int CBOR_TEXT = 0x60;
+
+    public enum OverflowAction {
+        /** Drop the oldest queued receipt/typing frames first, disconnect only if that is not enough. */
+        DROP_EPHEMERAL,
+        /** Disconnect as soon as any limit is exceeded. */
+        DISCONNECT
+    }
+
+    @Value("${websocket.outbound.flow-control.enabled:true}")
+    private boolean enabled;
+
+    @Value("${websocket.outbound.send-time-limit-ms:10000}")
+    private long sendTimeLimitMs;
+
+    @Value("${websocket.outbound.buffer-size-limit:524288}")
+    private long bufferSizeLimit;
+
+    @Value("${websocket.outbound.max-queued-frames:1000}")
+    private int maxQueuedFrames;
+
+    @Value("${websocket.outbound.overflow-action:DROP_EPHEMERAL}")
+    private OverflowAction overflowAction;
+
+    @Value("${websocket.outbound.ephemeral-suffixes:/receipts,/typing}")
+    private List<String> ephemeralSuffixes;
+
+    // one short-lived virtual thread per active drain; blocking on a slow socket costs no platform thread
+    private final ExecutorService drainExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Map<String, BoundedOutboundSession> sessions = new ConcurrentHashMap<>();
+
+    private final LongAdder coalescedFrames = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    @PreDestroy
+    void stop() {
+        drainExecutor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Decorator factory for the WebSocket transport; a no-op when flow control is disabled. */
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        if (!enabled) {
+            return handler;
+        }
+        return new WebSocketHandlerDecorator(handler) {
+
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                BoundedOutboundSession bounded = new BoundedOutboundSession(session, OutboundFlowControl.this, drainExecutor);
+                sessions.put(session.getId(), bounded);
+                super.afterConnectionEstablished(bounded);
+            }
+
+            @Override
+            public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+                super.handleMessage(bounded(session), message);
+            }
+
+            @Override
+            public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
+                super.handleTransportError(bounded(session), exception);
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                BoundedOutboundSession bounded = sessions.remove(session.getId());
+                super.afterConnectionClosed(bounded != null ? bounded : session, closeStatus);
+            }
+        };
+    }
+
+    /** The decorated session for {@code sessionId}, or null if it is not open or flow control is off. */
+    WebSocketSession session(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    private WebSocketSession bounded(WebSocketSession session) {
+        BoundedOutboundSession bounded = sessions.get(session.getId());
+        return bounded != null ? bounded : session;
+    }
+
+    /**
+     * Returns the coalescing key of a STOMP MESSAGE frame whose destination ends with one of the ephemeral
+     * suffixes, or null for every other frame. One destination carries receipts or typing events of several
+     * users, so the key is the destination plus the body's {@code userId} and {@code status}: a frame only
+     * replaces an older one from the same user about the same thing. Only the header block and those two
+     * body fields are scanned, in the JSON body of a text frame or the CBOR body of a binary one.
+     */
+    String ephemeralKey(WebSocketMessage<?> message) {
+        if (message instanceof TextMessage text) {
+            String frame = text.getPayload();
+            String destination = ephemeralDestination(frame);
+            if (destination == null) {
+                return null;
+            }
+            int bodyStart = frame.indexOf("\n\n") + 2;
+            return destination + '|' + jsonString(frame, bodyStart, "userId") + '|' + jsonString(frame, bodyStart, "status");
+        }
+        if (message instanceof BinaryMessage binary) {
+            ByteBuffer frame = binary.getPayload();
+            int bodyStart = bodyStart(frame);
+            if (bodyStart < 0) {
+                return null;
+            }
+            byte[] headers = new byte[bodyStart];
+            frame.get(frame.position(), headers);
+            String destination = ephemeralDestination(new String(headers, StandardCharsets.UTF_8));
+            if (destination == null) {
+                return null;
+            }
+            return destination + '|' + cborString(frame, bodyStart, "userId") + '|' + cborString(frame, bodyStart, "status");
+        }
+        return null;
+    }
+
+    // destination of a MESSAGE frame if it is ephemeral, read from the header lines up to the blank one
+    private String ephemeralDestination(String frame) {
+        if (!frame.startsWith("MESSAGE\n")) {
+            return null;
+        }
+        String destination = null;
+        int lineStart = "MESSAGE\n".length();
+        while (lineStart < frame.length()) {
+            int lineEnd = frame.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                return null;
+            }
+            if (lineEnd == lineStart) {
+                break;
+            }
+            if (destination == null && frame.startsWith("destination:", lineStart)) {
+                destination = frame.substring(lineStart + "destination:".length(), lineEnd);
+                if (!isEphemeral(destination)) {
+                    return null;
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return destination;
+    }
+
+    private boolean isEphemeral(String destination) {
+        for (String suffix : ephemeralSuffixes) {
+            if (destination.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // value of a top-level string field in a flat JSON body, or "" if absent; ids and enums need no unescaping
+    private static String jsonString(String frame, int bodyStart, String field) {
+        String prefix = "\"" + field + "\":\"";
+        int start = frame.indexOf(prefix, bodyStart);
+        if (start < 0) {
+            return "";
+        }
+        start += prefix.length();
+        int end = frame.indexOf('"', start);
+        return end < 0 ? "" : frame.substring(start, end);
+    }
+
+    // offset just past the blank line that ends the STOMP headers, relative to the buffer's position, or -1
+    private static int bodyStart(ByteBuffer frame) {
+        for (int i = frame.position() + 1; i < frame.limit(); i++) {
+            if (frame.get(i) == '\n' && frame.get(i - 1) == '\n') {
+                return i + 1 - frame.position();
+            }
+        }
+        return -1;
+    }
+
+    // value of a string field in a CBOR body, or "" if absent; keys are short definite-length text strings
+    private static String cborString(ByteBuffer frame, int bodyStart, String field) {
+        byte[] key = new byte[field.length() + 1];
+        key[0] = (byte) (CBOR_TEXT | field.length());
+        System.arraycopy(field.getBytes(StandardCharsets.US_ASCII), 0, key, 1, field.length());
+        int limit = frame.limit();
+        for (int i = frame.position() + bodyStart; i + key.length < limit; i++) {
+            if (!matches(frame, i, key)) {
+                continue;
+            }
+            int at = i + key.length;
+            int initial = frame.get(at++) & 0xFF;
+            if ((initial & 0xE0) != CBOR_TEXT) {
+                return "";
+            }
+            int length = initial & 0x1F;
+            if (length == 24 && at < limit) {
+                length = frame.get(at++) & 0xFF;
+            } else if (length == 25 && at + 1 < limit) {
+                length = (frame.get(at) & 0xFF) << 8 | frame.get(at + 1) & 0xFF;
+                at += 2;
+            } else if (length >= 24) {
+                return "";
+            }
+            if (at + length > limit) {
+                return "";
+            }
+            byte[] value = new byte[length];
+            frame.get(at, value);
+            return new String(value, StandardCharsets.UTF_8);
+        }
+        return "";
+    }
+
+    private static boolean matches(ByteBuffer frame, int at, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (frame.get(at + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long bufferSizeLimit() {
+        return bufferSizeLimit;
+    }
+
+    int maxQueuedFrames() {
+        return maxQueuedFrames;
+    }
+
+    long sendTimeLimitNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(sendTimeLimitMs);
+    }
+
+    OverflowAction overflowAction() {
+        return overflowAction;
+    }
+
+    void recordCoalesced() {
+        coalescedFrames.increment();
+    }
+
+    void recordDropped() {
+        droppedFrames.increment();
+    }
+
+    void recordDisconnect() {
+        disconnects.increment();
+    }
+
+    public Map<String, Long> sessionQueuedBytes() {
+        Map<String, Long> queued = new HashMap<>();
+        sessions.forEach((sessionId, session) -> queued.put(sessionId, session.getQueuedBytes()));
+        return queued;
+    }
+
+    public long totalQueuedBytes() {
+        long total = 0;
+        for (BoundedOutboundSession session : sessions.values()) {
+            total += session.getQueuedBytes();
+        }
+        return total;
+    }
+
+    public long maxSessionQueuedBytes() {
+        long max = 0;
+        for (BoundedOutboundSession session : sessions.values()) {
+            max = Math.max(max, session.getQueuedBytes());
+        }
+        return max;
+    }
+
+    public int sessionCount() {
+        return sessions.size();
+    }
+
+    public long coalescedFrames() {
+        return coalescedFrames.sum();
+    }
+
+    public long droppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    public long slowConsumerDisconnects() {
+        return disconnects.sum();
+    }
+}
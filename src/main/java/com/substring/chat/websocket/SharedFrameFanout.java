@@ -0,0 +1,149 @@
+package com.substring.chat.websocket;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.broker.OrderedMessageChannelDecorator;
+import org.springframework.messaging.simp.stomp.StompEncoder;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.messaging.support.NativeMessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Serialize-once delivery of broker MESSAGE frames. The STOMP handler would encode the frame and decode it
+ * back into a String for every subscriber; but subscribers of one publication get the same payload array
+ * and their frames differ only in the subscription id, which clients mostly number the same way. Frames
+ * are therefore encoded once per publication and subscription id, with one message-id per publication, and
+ * the same immutable WebSocket message is queued on every matching session.
+ *
+ * <p>Runs as the last step before the STOMP handler on the outbound channel and needs the session registry
+ * of {@link OutboundFlowControl}; frames it cannot handle take the regular path.
+ */
+@Component
+public class SharedFrameFanout implements ExecutorChannelInterceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedFrameFanout.class);
+
+    @Autowired
+    private OutboundFlowControl outboundFlowControl;
+
+    @Value("${websocket.outbound.shared-frames.enabled:true}")
+    private boolean enabled;
+
+    private final StompEncoder encoder = new StompEncoder();
+
+    private final AtomicLong publicationIds = new AtomicLong();
+
+    // keyed by payload identity, so an entry lives as long as the broker still holds the publication
+    private final Cache<byte[], Publication> publications = Caffeine.newBuilder()
+            .weakKeys()
+            .maximumSize(1024)
+            .build();
+
+    private final LongAdder encodedFrames = new LongAdder();
+    private final LongAdder deliveredFrames = new LongAdder();
+
+    @Override
+    public Message<?> beforeHandle(Message<?> message, MessageChannel channel, MessageHandler handler) {
+        if (!enabled) {
+            return message;
+        }
+        MessageHeaders headers = message.getHeaders();
+        if (SimpMessageHeaderAccessor.getMessageType(headers) != SimpMessageType.MESSAGE
+                || !(message.getPayload() instanceof byte[] payload)
+                || payload.length == 0
+                || isUserDestination(headers)) {
+            return message;
+        }
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(headers);
+        String subscriptionId = SimpMessageHeaderAccessor.getSubscriptionId(headers);
+        WebSocketSession session = sessionId == null ? null : outboundFlowControl.session(sessionId);
+        if (session == null || subscriptionId == null) {
+            return message;
+        }
+
+        // same rule as the STOMP handler: binary frames only for octet-stream, and never over SockJS
+        boolean binary = !(WebSocketSessionDecorator.unwrap(session) instanceof SockJsSession)
+                && headers.get(MessageHeaders.CONTENT_TYPE) instanceof MimeType contentType
+                && MimeTypeUtils.APPLICATION_OCTET_STREAM.isCompatibleWith(contentType);
+
+        Publication publication = publications.get(payload,
+                key -> new Publication(Long.toString(publicationIds.incrementAndGet())));
+        WebSocketMessage<?> frame = publication.frames.computeIfAbsent(binary ? "b:" + subscriptionId : "t:" + subscriptionId,
+                key -> encode(message, payload, publication.messageId, binary));
+
+        try {
+            session.sendMessage(frame);
+            deliveredFrames.increment();
+        } catch (IOException e) {
+            log.debug("Dropping frame for closed session {}: {}", sessionId, e.getMessage());
+        }
+        // handled here; returning null skips the STOMP handler for this frame. The ordered-publish callback
+        // is appended after this interceptor, so release the session's next message ourselves
+        Runnable nextMessage = OrderedMessageChannelDecorator.getNextMessageTask(message);
+        if (nextMessage != null) {
+            nextMessage.run();
+        }
+        return null;
+    }
+
+    public long encodedFrames() {
+        return encodedFrames.sum();
+    }
+
+    public long deliveredFrames() {
+        return deliveredFrames.sum();
+    }
+
+    private WebSocketMessage<?> encode(Message<?> message, byte[] payload, String messageId, boolean binary) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.wrap(message);
+        accessor.setNativeHeader(StompHeaderAccessor.STOMP_MESSAGE_ID_HEADER, messageId);
+        accessor.updateStompCommandAsServerMessage();
+        byte[] bytes = encoder.encode(accessor.getMessageHeaders(), payload);
+        encodedFrames.increment();
+        return binary ? new BinaryMessage(bytes) : new TextMessage(bytes);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean isUserDestination(MessageHeaders headers) {
+        // frames for /user destinations carry the original destination and are rewritten by the STOMP handler
+        Object nativeHeaders = headers.get(NativeMessageHeaderAccessor.NATIVE_HEADERS);
+        return nativeHeaders instanceof Map<?, ?> map
+                && ((Map<String, ?>) map).containsKey(SimpMessageHeaderAccessor.ORIGINAL_DESTINATION);
+    }
+
+    private static final class Publication {
+
+        private final String messageId;
+        private final Map<String, WebSocketMessage<?>> frames = new ConcurrentHashMap<>();
+
+        private Publication(String messageId) {
+            this.messageId = messageId;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.substring.chat.archive;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.substring.chat.model.Message;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class ArchiveSegmentTests {
+
+    private static final String CHAT_ID = "65f0c0ffee00000000000a1b";
+
+    private static final LocalDateTime START = LocalDateTime.of(2024, 1, 1, 12, 0, 0, 123_000_000);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackEveryField() throws IOException {
+        List<Message> messages = new ArrayList<>();
+        Message full = message(new ObjectId().toHexString(), 0, "hello ☕");
+        full.setSequence(0L);
+        full.setStatus(Message.MessageStatus.READ);
+        Message.AttachmentRef attachment = new Message.AttachmentRef();
+        attachment.setId("att-1");
+        attachment.setFileName("report.pdf");
+        attachment.setContentType("application/pdf");
+        attachment.setSize(5_000_000_000L);
+        full.setAttachments(List.of(attachment));
+        messages.add(full);
+
+        Message empty = message(new ObjectId().toHexString(), 1, null);
+        empty.setReceiverId(null);
+        empty.setStatus(null);
+        empty.setSequence(null);
+        empty.setAttachments(List.of());
+        messages.add(empty);
+        messages.add(message(new ObjectId().toHexString(), 1, ""));
+
+        ArchiveSegment segment = write(messages, 256, 0, "000000000001.seg");
+
+        assertThat(segment.chatId()).isEqualTo(CHAT_ID);
+        assertThat(segment.count()).isEqualTo(3);
+        assertThat(segment.block(0)).isEqualTo(messages);
+    }
+
+    @Test
+    void readsBackIdsThatAreNotObjectIds() throws IOException {
+        // one such id makes the whole block store ids as strings
+        List<Message> messages = List.of(
+                message("legacy-1", 0, "first"),
+                message(new ObjectId().toHexString(), 1, "second"),
+                message("legacy-ü", 2, "third"));
+
+        ArchiveSegment segment = write(messages, 2, 0, "000000000001.seg");
+
+        assertThat(ChatArchive.rows(segment).toList()).isEqualTo(messages);
+    }
+
+    @Test
+    void indexesBlocksByRowAndTime() throws IOException {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            messages.add(message(new ObjectId().toHexString(), i * 10, "message " + i));
+        }
+
+        ArchiveSegment segment = write(messages, 3, 0, "000000000001.seg");
+
+        assertThat(segment.blockCount()).isEqualTo(3);
+        assertThat(segment.block(2)).hasSize(1);
+        assertThat(ChatArchive.rows(segment).toList()).isEqualTo(messages);
+        assertThat(segment.firstRow(1)).isEqualTo(3);
+        assertThat(segment.blockOfRow(2)).isZero();
+        assertThat(segment.blockOfRow(3)).isEqualTo(1);
+        assertThat(segment.blockOfRow(6)).isEqualTo(2);
+        // block 1 holds seconds 30..50, block 2 second 60
+        assertThat(segment.firstBlockEndingAtOrAfter(millis(30))).isEqualTo(1);
+        assertThat(segment.firstBlockEndingAtOrAfter(millis(51))).isEqualTo(2);
+        assertThat(segment.firstBlockEndingAtOrAfter(millis(61))).isEqualTo(3);
+        assertThat(segment.lastBlockStartingAtOrBefore(millis(29))).isZero();
+        assertThat(segment.lastBlockStartingAtOrBefore(millis(30))).isEqualTo(1);
+        assertThat(segment.lastBlockStartingAtOrBefore(millis(-1))).isEqualTo(-1);
+    }
+
+    @Test
+    void readersSkipASegmentThatATopUpReplaced() throws IOException {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            messages.add(message(new ObjectId().toHexString(), i, "message " + i));
+        }
+        // a run stopped after writing the topped-up segment 2 but before deleting segment 1 it replaces,
+        // and in the middle of writing segment 3
+        write(messages.subList(0, 3), 2, 0, "000000000001.seg");
+        write(messages, 2, 1, "000000000002.seg");
+        Files.writeString(chatDirectory().resolve("000000000003.seg.tmp"), "half-written");
+
+        ChatArchive archive = archive().chat(CHAT_ID);
+
+        assertThat(archive.size()).isEqualTo(5);
+        assertThat(archive.generations()).containsExactly(2L);
+        assertThat(archive.stream().toList()).isEqualTo(messages);
+        assertThat(archive.newest().id()).isEqualTo(messages.get(4).getMessageId());
+        assertThat(archive.range(2, 2)).isEqualTo(messages.subList(2, 4));
+    }
+
+    private ArchiveSegment write(List<Message> messages, int blockMessages, long replaces, String name)
+            throws IOException {
+        Path file = Files.createDirectories(chatDirectory()).resolve(name);
+        ArchiveSegment.write(CHAT_ID, messages, blockMessages, replaces, file);
+        return ArchiveSegment.open(file);
+    }
+
+    private Path chatDirectory() {
+        return directory.resolve(CHAT_ID.substring(CHAT_ID.length() - 2)).resolve(CHAT_ID);
+    }
+
+    private MessageArchive archive() {
+        MessageArchive archive = new MessageArchive();
+        ReflectionTestUtils.setField(archive, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(archive, "path", directory.toString());
+        ReflectionTestUtils.setField(archive, "openChats", 10L);
+        archive.init();
+        return archive;
+    }
+
+    private static Message message(String id, int seconds, String content) {
+        Message message = new Message();
+        message.setMessageId(id);
+        message.setChatId(CHAT_ID);
+        message.setSenderId("alice");
+        message.setReceiverId("bob");
+        message.setContent(content);
+        message.setTimestamp(START.plusSeconds(seconds));
+        message.setSequence((long) seconds + 1);
+        message.setStatus(Message.MessageStatus.DELIVERED);
+        return message;
+    }
+
+    private static long millis(int seconds) {
+        return ArchiveSegment.millis(START.plusSeconds(seconds));
+    }
+}
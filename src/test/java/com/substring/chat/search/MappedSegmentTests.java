@@ -0,0 +1,72 @@
+package com.substring.chat.search;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedSegmentTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackWhatTheBuilderHeld() throws IOException {
+        SegmentBuilder builder = new SegmentBuilder();
+        builder.add(new IndexedMessage("m1", "chat-b", "alice", 1_000L, "Lunch at noon? lunch!"));
+        builder.add(new IndexedMessage("m2", "chat-a", "bob", 2_000L, "Ünïcödé lunch ☕ plans"));
+        builder.add(new IndexedMessage("m3", "chat-b", "", 3_000L, ""));
+        builder.freeze();
+
+        Path file = directory.resolve("000000000001.seg");
+        MappedSegment.write(builder, file);
+        MappedSegment segment = MappedSegment.open(file);
+
+        assertThat(segment.docCount()).isEqualTo(builder.docCount());
+        assertThat(segment.totalLength()).isEqualTo(builder.totalLength());
+        for (int doc = 0; doc < builder.docCount(); doc++) {
+            assertThat(segment.document(doc)).isEqualTo(builder.document(doc));
+            assertThat(segment.timestamp(doc)).isEqualTo(builder.timestamp(doc));
+            assertThat(segment.length(doc)).isEqualTo(builder.length(doc));
+        }
+        for (String term : new String[] { "lunch", "noon", "ünïcödé", "plans" }) {
+            Segment.Postings expected = builder.postings(term);
+            Segment.Postings actual = segment.postings(term);
+            assertThat(actual.docs()).as(term).containsExactly(expected.docs());
+            assertThat(actual.freqs()).as(term).containsExactly(expected.freqs());
+        }
+        assertThat(segment.postings("lunch").freqs()).containsExactly(2, 1);
+        assertThat(segment.postings("dinner")).isNull();
+    }
+
+    @Test
+    void findsChatsByOrdinalInByteOrder() throws IOException {
+        SegmentBuilder builder = new SegmentBuilder();
+        builder.add(new IndexedMessage("m1", "chat-b", "alice", 1L, "one"));
+        builder.add(new IndexedMessage("m2", "chat-a", "bob", 2L, "two"));
+        builder.freeze();
+        Path file = directory.resolve("000000000001.seg");
+        MappedSegment.write(builder, file);
+
+        MappedSegment segment = MappedSegment.open(file);
+
+        assertThat(segment.chatOrdinal("chat-a")).isZero();
+        assertThat(segment.chatOrdinal("chat-b")).isEqualTo(1);
+        assertThat(segment.chatOrdinal("chat-c")).isEqualTo(-1);
+        assertThat(segment.chatOrdinalOf(0)).isEqualTo(segment.chatOrdinal("chat-b"));
+        assertThat(segment.chatOrdinalOf(1)).isEqualTo(segment.chatOrdinal("chat-a"));
+        assertThat(Files.exists(directory.resolve("000000000001.seg.tmp"))).isFalse();
+    }
+
+    @Test
+    void rejectsFilesThatAreNotSegments() throws IOException {
+        Path file = Files.write(directory.resolve("junk.seg"), new byte[64]);
+
+        assertThatThrownBy(() -> MappedSegment.open(file)).isInstanceOf(IOException.class);
+    }
+}
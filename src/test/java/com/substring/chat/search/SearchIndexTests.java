@@ -0,0 +1,159 @@
+package com.substring.chat.search;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.substring.chat.archive.MessageArchive;
+import com.substring.chat.dto.MessageSearchHit;
+import com.substring.chat.model.Message;
+
+class SearchIndexTests {
+
+    @TempDir
+    Path directory;
+
+    private MongoTemplate mongoTemplate;
+
+    private MessageArchive messageArchive;
+
+    // what a catch-up scan reads from Mongo
+    private final List<Message> stored = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        messageArchive = mock(MessageArchive.class);
+        when(mongoTemplate.stream(any(Query.class), eq(Message.class))).thenAnswer(invocation -> stored.stream());
+    }
+
+    @Test
+    void searchesOnlyTheGivenChats() throws Exception {
+        SearchIndex index = start();
+        index.index(message(new ObjectId(), "chat-1", "quarterly report draft"));
+        index.index(message(new ObjectId(), "chat-2", "report is late"));
+
+        assertThat(chatsOf(index.search("report", Set.of("chat-1"), 10))).containsExactly("chat-1");
+        assertThat(chatsOf(index.search("report", Set.of("chat-3"), 10))).isEmpty();
+
+        index.close();
+        // the same filter once the messages are in a segment file
+        assertThat(index.segmentCount()).isEqualTo(1);
+        assertThat(chatsOf(index.search("report", Set.of("chat-2"), 10))).containsExactly("chat-2");
+        assertThat(chatsOf(index.search("report", Set.of("chat-1", "chat-2"), 10)))
+                .containsExactlyInAnyOrder("chat-1", "chat-2");
+    }
+
+    @Test
+    void reopensTheSegmentsListedInTheManifest() throws Exception {
+        SearchIndex first = start();
+        first.index(message(new ObjectId(), "chat-1", "kept across restarts"));
+        first.close();
+        Files.writeString(directory.resolve("000000000099.seg.tmp"), "half-written flush");
+
+        SearchIndex second = start();
+        second.close();
+
+        assertThat(second.documentCount()).isEqualTo(1);
+        assertThat(chatsOf(second.search("restarts", Set.of("chat-1"), 10))).containsExactly("chat-1");
+        assertThat(Files.exists(directory.resolve("000000000099.seg.tmp"))).isFalse();
+    }
+
+    @Test
+    void rebuildsFromMongoWhenTheManifestIsUnusable() throws Exception {
+        SearchIndex first = start();
+        first.index(message(new ObjectId(), "chat-1", "lost with its segment"));
+        first.close();
+        try (var files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                if (file.toString().endsWith(".seg")) {
+                    Files.delete(file);
+                }
+            }
+        }
+        stored.add(message(oldId(), "chat-1", "read back from mongo"));
+
+        SearchIndex second = start();
+        second.close();
+
+        verify(messageArchive, times(2)).forEachArchived(any());
+        assertThat(second.documentCount()).isEqualTo(1);
+        assertThat(chatsOf(second.search("mongo", Set.of("chat-1"), 10))).containsExactly("chat-1");
+    }
+
+    @Test
+    void mergeKeepsOneCopyOfAMessageIndexedTwice() throws Exception {
+        Message message = message(oldId(), "chat-1", "duplicate after restart");
+        SearchIndex first = start();
+        first.index(message);
+        first.close();
+
+        // the restart's catch-up reads the message again and indexes it into a second segment
+        stored.add(message);
+        SearchIndex second = start();
+        second.close();
+
+        assertThat(second.segmentCount()).isEqualTo(1);
+        assertThat(second.documentCount()).isEqualTo(1);
+        assertThat(second.search("duplicate", Set.of("chat-1"), 10)).hasSize(1);
+    }
+
+    private SearchIndex start() throws IOException {
+        SearchIndex index = new SearchIndex();
+        ReflectionTestUtils.setField(index, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(index, "messageArchive", messageArchive);
+        ReflectionTestUtils.setField(index, "enabled", true);
+        ReflectionTestUtils.setField(index, "path", directory.toString());
+        ReflectionTestUtils.setField(index, "bufferDocs", 10_000);
+        ReflectionTestUtils.setField(index, "flushSeconds", 3600L);
+        ReflectionTestUtils.setField(index, "maxSegments", 1);
+        ReflectionTestUtils.setField(index, "mergeFactor", 4);
+        ReflectionTestUtils.setField(index, "maxMergeDocs", 1_000_000);
+        ReflectionTestUtils.setField(index, "graceSeconds", 30L);
+        ReflectionTestUtils.setField(index, "tailSeconds", 5L);
+        index.init();
+        return index;
+    }
+
+    // created long before the index started, so a scan adds it without checking what was indexed
+    private static ObjectId oldId() {
+        return new ObjectId(Date.from(Instant.parse("2024-01-01T00:00:00Z")));
+    }
+
+    private static Message message(ObjectId id, String chatId, String content) {
+        Message message = new Message();
+        message.setMessageId(id.toHexString());
+        message.setChatId(chatId);
+        message.setSenderId("sender");
+        message.setContent(content);
+        message.setTimestamp(LocalDateTime.ofInstant(id.getDate().toInstant(), ZoneOffset.UTC));
+        return message;
+    }
+
+    private static List<String> chatsOf(List<MessageSearchHit> hits) {
+        return hits.stream().map(MessageSearchHit::getChatId).toList();
+    }
+}
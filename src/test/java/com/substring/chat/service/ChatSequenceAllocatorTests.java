@@ -0,0 +1,181 @@
+package com.substring.chat.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.substring.chat.model.Chat;
+
+class ChatSequenceAllocatorTests {
+
+    private MongoTemplate mongoTemplate;
+
+    private ChatSequenceAllocator allocator;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        allocator = new ChatSequenceAllocator();
+        ReflectionTestUtils.setField(allocator, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(allocator, "blockSize", 2L);
+        ReflectionTestUtils.setField(allocator, "cacheMaxSize", 100L);
+        ReflectionTestUtils.setField(allocator, "inFlightLeaseSeconds", 60L);
+        allocator.init();
+    }
+
+    @Test
+    void allocatesFromReservedBlocks() {
+        reserves(2L, 4L);
+
+        assertThat(allocator.allocate("c")).isEqualTo(1);
+        assertThat(allocator.allocate("c")).isEqualTo(2);
+        assertThat(allocator.allocate("c")).isEqualTo(3);
+
+        verify(mongoTemplate, times(2)).findAndModify(any(Query.class), any(Update.class),
+                any(FindAndModifyOptions.class), eq(Chat.class));
+    }
+
+    @Test
+    void settlesBelowTheLowestNumberInFlight() {
+        reserves(2L, 4L);
+
+        assertThat(settled("c")).isEqualTo(Long.MAX_VALUE);
+        long first = allocator.allocate("c");
+        long second = allocator.allocate("c");
+        assertThat(settled("c")).isZero();
+
+        allocator.release("c", second);
+        assertThat(settled("c")).isZero();
+        allocator.release("c", first);
+        // 2 is the last number of the block, so the next one is reserved above everything written
+        assertThat(settled("c")).isEqualTo(2);
+    }
+
+    @Test
+    void settlesBelowNumbersTheBlockStillHolds() {
+        reserves(2L);
+
+        allocator.release("c", allocator.allocate("c"));
+
+        assertThat(settled("c")).isEqualTo(1);
+    }
+
+    @Test
+    void keepsNumbersInFlightWhenTheirBlockIsEvicted() {
+        ReflectionTestUtils.setField(allocator, "cacheMaxSize", 0L);
+        allocator.init();
+        reserves(2L, 4L);
+
+        long first = allocator.allocate("c");
+        evictBlocks();
+        assertThat(settled("c")).isZero();
+
+        long second = allocator.allocate("c");
+        assertThat(second).isEqualTo(3);
+        evictBlocks();
+        allocator.release("c", first);
+        assertThat(settled("c")).isEqualTo(2);
+
+        allocator.release("c", second);
+        assertThat(settled("c")).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    void clusterReservesOneLeasedNumberAtATime() {
+        ReflectionTestUtils.setField(allocator, "clusterEnabled", true);
+        when(mongoTemplate.findAndModify(any(Query.class), any(AggregationUpdate.class),
+                any(FindAndModifyOptions.class), eq(Chat.class))).thenReturn(chat("c", 7L));
+
+        assertThat(allocator.allocate("c")).isEqualTo(7);
+        allocator.release("c", 7);
+
+        ArgumentCaptor<AggregationUpdate> reservation = ArgumentCaptor.forClass(AggregationUpdate.class);
+        verify(mongoTemplate).findAndModify(any(Query.class), reservation.capture(),
+                any(FindAndModifyOptions.class), eq(Chat.class));
+        List<Document> pipeline = reservation.getValue().toPipeline(Aggregation.DEFAULT_CONTEXT);
+        assertThat(pipeline).hasSize(2);
+        assertThat(pipeline.get(0).toJson()).contains("\"$add\"", "\"$filter\"", "\"$$NOW\"");
+        assertThat(pipeline.get(1).toJson()).contains("\"sequence\": \"$sequenceHi\"");
+        verify(mongoTemplate).updateFirst(any(Query.class), any(Update.class), eq(Chat.class));
+    }
+
+    @Test
+    void clusterSettlesBelowTheLowestLiveLease() {
+        ReflectionTestUtils.setField(allocator, "clusterEnabled", true);
+        Chat busy = chat("busy", 10L);
+        busy.setSequencesInFlight(List.of(lease(9, LocalDateTime.now()), lease(6, LocalDateTime.now())));
+        Chat idle = chat("idle", 4L);
+        when(mongoTemplate.find(any(Query.class), eq(Chat.class))).thenReturn(List.of(busy, idle));
+
+        Map<String, Long> settled = allocator.settledSequences(List.of("busy", "idle", "missing"));
+
+        assertThat(settled).containsEntry("busy", 5L)
+                .containsEntry("idle", 4L)
+                .containsEntry("missing", Long.MAX_VALUE);
+    }
+
+    @Test
+    void clusterIgnoresExpiredLeases() {
+        LocalDateTime expired = LocalDateTime.now().minusSeconds(60);
+        Chat chat = chat("c", 10L);
+        chat.setSequencesInFlight(List.of(lease(3, expired.minusSeconds(1)), lease(8, expired.plusSeconds(1))));
+
+        assertThat(ChatSequenceAllocator.settledSequence(chat, expired)).isEqualTo(7);
+        assertThat(ChatSequenceAllocator.settledSequence(chat("new", null), expired)).isEqualTo(Long.MAX_VALUE);
+    }
+
+    private void reserves(Long first, Long... rest) {
+        Chat[] more = new Chat[rest.length];
+        for (int i = 0; i < rest.length; i++) {
+            more[i] = chat("c", rest[i]);
+        }
+        when(mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class),
+                any(FindAndModifyOptions.class), eq(Chat.class))).thenReturn(chat("c", first), more);
+    }
+
+    private void evictBlocks() {
+        Cache<?, ?> blocks = (Cache<?, ?>) ReflectionTestUtils.getField(allocator, "blocks");
+        blocks.cleanUp();
+        assertThat(blocks.estimatedSize()).isZero();
+    }
+
+    private long settled(String chatId) {
+        return allocator.settledSequences(List.of(chatId)).get(chatId);
+    }
+
+    private static Chat chat(String chatId, Long sequenceHi) {
+        Chat chat = new Chat();
+        chat.setChatId(chatId);
+        chat.setSequenceHi(sequenceHi);
+        return chat;
+    }
+
+    private static Chat.SequenceLease lease(long sequence, LocalDateTime allocatedAt) {
+        Chat.SequenceLease lease = new Chat.SequenceLease();
+        lease.setSequence(sequence);
+        lease.setAllocatedAt(allocatedAt);
+        return lease;
+    }
+}
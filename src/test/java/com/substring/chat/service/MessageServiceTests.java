@@ -0,0 +1,24 @@
+package com.substring.chat.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class MessageServiceTests {
+
+    @Test
+    void syncCursorAdvancesToWhatWasRead() {
+        assertThat(MessageService.syncCursor(3, 9, Long.MAX_VALUE)).isEqualTo(9);
+    }
+
+    @Test
+    void syncCursorStopsBelowAnUnfinishedWrite() {
+        assertThat(MessageService.syncCursor(3, 9, 6)).isEqualTo(6);
+    }
+
+    @Test
+    void syncCursorNeverMovesBack() {
+        assertThat(MessageService.syncCursor(5, 9, 2)).isEqualTo(5);
+        assertThat(MessageService.syncCursor(5, 5, Long.MAX_VALUE)).isEqualTo(5);
+    }
+}
@@ -0,0 +1,85 @@
+package com.substring.chat.websocket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+
+import tools.jackson.databind.json.JsonMapper;
+import tools.jackson.dataformat.cbor.CBORMapper;
+
+class OutboundFlowControlTests {
+
+    private static final String RECEIPTS = "/topic/chat/c1/receipts";
+
+    private OutboundFlowControl flowControl;
+
+    @BeforeEach
+    void setUp() {
+        flowControl = new OutboundFlowControl();
+        ReflectionTestUtils.setField(flowControl, "ephemeralSuffixes", List.of("/receipts", "/typing"));
+    }
+
+    @Test
+    void keysTextReceiptsByReaderAndStatus() {
+        String key = flowControl.ephemeralKey(textFrame(RECEIPTS, receipt("u1", "READ")));
+
+        assertThat(key).isEqualTo(RECEIPTS + "|u1|READ");
+        assertThat(flowControl.ephemeralKey(textFrame("/topic/chat/c1", receipt("u1", "READ")))).isNull();
+    }
+
+    @Test
+    void keysBinaryReceiptsLikeTextOnes() {
+        Map<String, Object> read = receipt("u1", "READ");
+
+        assertThat(flowControl.ephemeralKey(binaryFrame(RECEIPTS, read)))
+                .isEqualTo(flowControl.ephemeralKey(textFrame(RECEIPTS, read)))
+                .isEqualTo(RECEIPTS + "|u1|READ");
+        assertThat(flowControl.ephemeralKey(binaryFrame(RECEIPTS, receipt("u2", "DELIVERED"))))
+                .isEqualTo(RECEIPTS + "|u2|DELIVERED");
+    }
+
+    @Test
+    void leavesOtherBinaryFramesAlone() {
+        assertThat(flowControl.ephemeralKey(binaryFrame("/topic/chat/c1", receipt("u1", "READ")))).isNull();
+        assertThat(flowControl.ephemeralKey(new BinaryMessage("MESSAGE\ndestination:/x/receipts\n".getBytes(
+                StandardCharsets.UTF_8)))).isNull();
+    }
+
+    private static Map<String, Object> receipt(String userId, String status) {
+        Map<String, Object> receipt = new LinkedHashMap<>();
+        receipt.put("chatId", "c1");
+        receipt.put("userId", userId);
+        receipt.put("messageId", "m".repeat(30));
+        receipt.put("status", status);
+        receipt.put("sequence", 42);
+        return receipt;
+    }
+
+    private static TextMessage textFrame(String destination, Map<String, Object> body) {
+        return new TextMessage(headers(destination, "application/json")
+                + JsonMapper.builder().build().writeValueAsString(body) + "\0");
+    }
+
+    private static BinaryMessage binaryFrame(String destination, Map<String, Object> body) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.writeBytes(headers(destination, "application/octet-stream").getBytes(StandardCharsets.UTF_8));
+        frame.writeBytes(CBORMapper.builder().build().writeValueAsBytes(body));
+        frame.write(0);
+        return new BinaryMessage(frame.toByteArray());
+    }
+
+    private static String headers(String destination, String contentType) {
+        return "MESSAGE\ndestination:" + destination + "\ncontent-type:" + contentType
+                + "\nsubscription:sub-0\nmessage-id:1-0\n\n";
+    }
+}